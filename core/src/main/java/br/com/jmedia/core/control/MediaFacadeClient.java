@@ -1,5 +1,7 @@
 package br.com.jmedia.core.control;
 
+import java.nio.file.Path;
+
 /**
  * @author Lima Filho, A. L. - amsterdam@luvva.com.br
  */
@@ -15,6 +17,42 @@ public interface MediaFacadeClient
 
     void recordingFinished ();
 
+    /**
+     * Invoked right before {@link #recordingFinished()} when the encoder could not keep up with the capture, so some
+     * frames were not recorded. The last recorded frame was repeated in their place, so the recording keeps its
+     * length, but its motion stutters there.
+     *
+     * @param frames the number of frames not recorded
+     */
+    default void recordingFramesDropped (long frames)
+    {
+    }
+
+    /**
+     * Invoked when a facade that records in segments finishes one of them, while the recording goes on. The segment
+     * will not change anymore, so it can be copied elsewhere, but it is deleted when the recording is finished.
+     *
+     * @param segment the segment file
+     */
+    default void recordingSegmentFinished (Path segment)
+    {
+    }
+
+    /**
+     * Invoked when the device keeps sending frames, but they have no picture, like when the source of a capture card
+     * is unplugged
+     */
+    default void signalLost ()
+    {
+    }
+
+    /**
+     * Invoked when the frames have a picture again after the signal was lost
+     */
+    default void signalRestored ()
+    {
+    }
+
     void previewingException ();
 
     void recordingException ();
@@ -5,7 +5,40 @@ package br.com.jmedia.core.model;
  */
 public class VideoPreferences
 {
+    /**
+     * The memory cap of the pre-record buffer used by preferences persisted before it existed
+     */
+    public static final int DEFAULT_PRE_RECORD_MEGABYTES = 64;
+    /**
+     * The capture restarts used by preferences persisted before they existed
+     */
+    public static final int DEFAULT_CAPTURE_RESTARTS     = 5;
+
     private boolean enabled;
+    /**
+     * How many seconds of video before a recording starts are kept in memory and added to the recording. Zero
+     * disables the pre-record buffer.
+     */
+    private int     preRecordSeconds;
+    /**
+     * The memory cap of the pre-record buffer. Older video is dropped to stay under it, even if the buffer covers
+     * less than the pre-record seconds.
+     */
+    private int     preRecordMegabytes;
+    /**
+     * How many times in a row the capture is restarted when it fails, before the device connection is reported lost.
+     * Zero reports the first failure.
+     */
+    private Integer captureRestarts;
+    /**
+     * If the frames are checked for a picture, so the client is told when the source of a capture card is unplugged
+     */
+    private boolean detectSignalLoss;
+    /**
+     * If the recording is paused while the frames have no picture, so no disk is spent on them. Only when the signal
+     * loss is detected.
+     */
+    private boolean pauseRecordingWithoutSignal;
 
     public boolean isEnabled ()
     {
@@ -16,4 +49,60 @@ public class VideoPreferences
     {
         this.enabled = enabled;
     }
+
+    public int getPreRecordSeconds ()
+    {
+        return preRecordSeconds;
+    }
+
+    public void setPreRecordSeconds (int preRecordSeconds)
+    {
+        this.preRecordSeconds = preRecordSeconds;
+    }
+
+    /**
+     * @return the memory cap of the pre-record buffer, {@value #DEFAULT_PRE_RECORD_MEGABYTES} if it was not set
+     */
+    public int getPreRecordMegabytes ()
+    {
+        return preRecordMegabytes > 0 ? preRecordMegabytes : DEFAULT_PRE_RECORD_MEGABYTES;
+    }
+
+    public void setPreRecordMegabytes (int preRecordMegabytes)
+    {
+        this.preRecordMegabytes = preRecordMegabytes;
+    }
+
+    /**
+     * @return the capture restarts in a row, {@value #DEFAULT_CAPTURE_RESTARTS} if it was not set
+     */
+    public int getCaptureRestarts ()
+    {
+        return captureRestarts == null ? DEFAULT_CAPTURE_RESTARTS : captureRestarts;
+    }
+
+    public void setCaptureRestarts (int captureRestarts)
+    {
+        this.captureRestarts = captureRestarts;
+    }
+
+    public boolean isDetectSignalLoss ()
+    {
+        return detectSignalLoss;
+    }
+
+    public void setDetectSignalLoss (boolean detectSignalLoss)
+    {
+        this.detectSignalLoss = detectSignalLoss;
+    }
+
+    public boolean isPauseRecordingWithoutSignal ()
+    {
+        return pauseRecordingWithoutSignal;
+    }
+
+    public void setPauseRecordingWithoutSignal (boolean pauseRecordingWithoutSignal)
+    {
+        this.pauseRecordingWithoutSignal = pauseRecordingWithoutSignal;
+    }
 }
@@ -62,6 +62,12 @@ public class VideoDemo extends BorderPane implements MediaControllerStateListene
         StackPane stackPane = new StackPane();
         stackPane.setStyle("-fx-background-color: black");
         ImageView imageView = new ImageView();
+        // fit the preview to the pane, which lets the preview downscale the frames to the pane size
+        imageView.setPreserveRatio(true);
+        imageView.fitWidthProperty().bind(stackPane.widthProperty());
+        imageView.fitHeightProperty().bind(stackPane.heightProperty());
+        // the view is as big as the pane, so the pane must not take the view size as its minimum size
+        stackPane.setMinSize(0, 0);
         stackPane.getChildren().add(imageView);
 
         videoController.setView(imageView, () -> Platform.runLater(() -> chkVideoEnabled.setSelected(false)));
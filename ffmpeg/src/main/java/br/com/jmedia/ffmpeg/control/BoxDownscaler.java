@@ -0,0 +1,77 @@
+package br.com.jmedia.ffmpeg.control;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Downscales BGRA frames by an integer factor, each target pixel being the average of a square of factor x factor
+ * source pixels. Reads each source pixel once and allocates nothing but the little endian views of the buffers.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+final class BoxDownscaler
+{
+    /**
+     * The biggest factor whose averages can not overflow a component
+     */
+    static final int MAX_FACTOR = 16;
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int SHIFT           = 16;
+
+    private BoxDownscaler ()
+    {
+    }
+
+    /**
+     * @param source       the BGRA source frame, from its position
+     * @param sourceWidth  the source width
+     * @param sourceHeight the source height
+     * @param factor       the downscale factor, from 1 to {@value #MAX_FACTOR}
+     * @param target       the BGRA target frame, from position zero, with sourceWidth / factor pixels per row and
+     *                     sourceHeight / factor rows. Its position is not changed.
+     * @param sums         the per component sums of a target row, at least 4 * (sourceWidth / factor) long
+     */
+    static void downscale (ByteBuffer source, int sourceWidth, int sourceHeight, int factor, ByteBuffer target,
+            int[] sums)
+    {
+        ByteBuffer sourceInts = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer targetInts = target.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int base = source.position();
+        int targetWidth = sourceWidth / factor;
+        int targetHeight = sourceHeight / factor;
+        int sourceStride = sourceWidth * BYTES_PER_PIXEL;
+        // multiplying by the reciprocal, rounded up so white stays white, is cheaper than dividing each component
+        int reciprocal = ((1 << SHIFT) + factor * factor - 1) / (factor * factor);
+        for (int targetRow = 0; targetRow < targetHeight; targetRow++)
+        {
+            Arrays.fill(sums, 0, targetWidth * BYTES_PER_PIXEL, 0);
+            for (int sourceRow = targetRow * factor; sourceRow < (targetRow + 1) * factor; sourceRow++)
+            {
+                int sourceIndex = base + sourceRow * sourceStride;
+                for (int targetColumn = 0; targetColumn < targetWidth; targetColumn++)
+                {
+                    int sum = targetColumn * BYTES_PER_PIXEL;
+                    for (int i = 0; i < factor; i++, sourceIndex += BYTES_PER_PIXEL)
+                    {
+                        int pixel = sourceInts.getInt(sourceIndex);
+                        sums[sum] += pixel & 0xFF;
+                        sums[sum + 1] += (pixel >>> 8) & 0xFF;
+                        sums[sum + 2] += (pixel >>> 16) & 0xFF;
+                        sums[sum + 3] += pixel >>> 24;
+                    }
+                }
+            }
+            int targetIndex = targetRow * targetWidth * BYTES_PER_PIXEL;
+            for (int sum = 0; sum < targetWidth * BYTES_PER_PIXEL; sum += BYTES_PER_PIXEL)
+            {
+                targetInts.putInt(targetIndex, (sums[sum] * reciprocal >>> SHIFT)
+                        | (sums[sum + 1] * reciprocal >>> SHIFT) << 8
+                        | (sums[sum + 2] * reciprocal >>> SHIFT) << 16
+                        | (sums[sum + 3] * reciprocal >>> SHIFT) << 24);
+                targetIndex += BYTES_PER_PIXEL;
+            }
+        }
+    }
+}
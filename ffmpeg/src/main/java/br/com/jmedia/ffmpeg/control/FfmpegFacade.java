@@ -1,19 +1,37 @@
 package br.com.jmedia.ffmpeg.control;
 
 import br.com.jmedia.ffmpeg.dao.MediaFrameworkSettingsDao;
+import br.com.jmedia.ffmpeg.model.DeliveryPolicy;
 import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
+import br.com.jmedia.ffmpeg.model.PipelineMode;
+import br.com.jmedia.ffmpeg.model.RecordingMode;
+import br.com.jmedia.ffmpeg.model.PixelLayouts;
+import br.com.jmedia.ffmpeg.service.CaptureMetrics;
 import br.com.jmedia.ffmpeg.service.CaptureService;
+import br.com.jmedia.ffmpeg.service.ConvertService;
 import br.com.jmedia.ffmpeg.service.EncodeService;
+import br.com.jmedia.ffmpeg.service.EncoderCalibration;
+import br.com.jmedia.ffmpeg.service.EncoderPool;
 import br.com.jmedia.ffmpeg.service.MediaFramework;
+import br.com.jmedia.ffmpeg.service.PixelConverter;
+import br.com.jmedia.ffmpeg.service.PreRecordService;
+import br.com.jmedia.ffmpeg.service.ProcessSupervisor;
+import br.com.jmedia.ffmpeg.service.QualityController;
+import br.com.jmedia.ffmpeg.service.RecordService;
+import br.com.jmedia.ffmpeg.service.SegmentService;
+import br.com.jmedia.ffmpeg.service.SignalDetector;
 import br.com.jmedia.core.control.MediaFacadeClient;
 import br.com.jmedia.core.control.VideoFacade;
+import br.com.jmedia.core.model.InvalidPixelFormatException;
 import br.com.jmedia.core.model.NoMediaDeviceException;
+import br.com.jmedia.core.model.VideoPreferences;
 import br.com.jwheel.weld.WeldContext;
 import br.com.jwheel.xml.model.FromXmlPreferences;
 import br.com.jmedia.ffmpeg.service.PreviewService;
 import com.google.common.base.Strings;
 import com.thoughtworks.xstream.XStreamException;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import org.slf4j.Logger;
 
@@ -21,7 +39,14 @@ import javax.enterprise.util.AnnotationLiteral;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A Media Facade implementation based on an ffmpeg
@@ -34,17 +59,69 @@ public class FfmpegFacade implements VideoFacade
     private @Inject Logger                    logger;
     private @Inject MediaFrameworkSettingsDao dao;
     private @Inject MediaFramework            mediaFramework;
+    private @Inject CaptureMetrics            captureMetrics;
+    private @Inject EncoderPool               encoderPool;
+    private @Inject EncoderCalibration        encoderCalibration;
+    private @Inject ProcessSupervisor         supervisor;
 
-    private CaptureService captureService;
-    private PreviewService previewService;
+    private @Inject @FromXmlPreferences VideoPreferences videoPreferences;
+
+    private CaptureService         captureService;
+    private PreviewService         previewService;
+    private RecordService          recordService;
+    /**
+     * Keeps the video before a recording starts, null if it is disabled or was flushed
+     */
+    private PreRecordService       preRecordService;
+    private QualityController      qualityController;
+    /**
+     * Follows the segments recorded by the single process pipeline, null if it does not record in segments
+     */
+    private SegmentService         segmentService;
+    private MediaFrameworkSettings settings;
+    private MediaFacadeClient      client;
+    private ImageView              view;
+    /**
+     * If the preview and the recording share a single process, which must be restarted to start or stop recording
+     */
+    private boolean                singleProcess;
+    private Path                   recordingFile;
+    private boolean                recordingPaused;
+    /**
+     * If the signal detector found that the frames have no picture
+     */
+    private boolean                signalLost;
+    /**
+     * If the client paused the preview, so the end of the encoder calibration does not resume it
+     */
+    private boolean                previewPaused;
+
+    /**
+     * The encoder calibration running or last run, null if none was started
+     */
+    private CompletableFuture<Boolean> calibration;
+    /**
+     * The copy of the settings the running encoder calibration changes, null if none is running
+     */
+    private MediaFrameworkSettings     calibratedSettings;
 
     public static final String SUPPORTED_PIXEL_FORMAT = "bgr0";
 
+    /**
+     * How long a photo waits for the next captured frame before it is taken from the preview
+     */
+    private static final int PHOTO_TIMEOUT_SECONDS = 2;
+
+    /**
+     * How long a quitting process has to finish its file before the capture is stopped anyway
+     */
+    private static final int QUIT_TIMEOUT_SECONDS = 10;
+
     @Override
     public void startPreviewing (MediaFacadeClient client, ImageView view) throws IOException,
             NoMediaDeviceException, InterruptedException
     {
-        MediaFrameworkSettings settings = getCurrentSettings();
+        settings = getCurrentSettings();
         // check if a video device has been chosen
         if (Strings.isNullOrEmpty(settings.getVideoDevice()))
         {
@@ -61,83 +138,689 @@ public class FfmpegFacade implements VideoFacade
             }
         }
         logger.info("A video device has been chosen. Starting capture...");
-        captureService = WeldContext.getInstance().getAny(CaptureService.class);
-        captureService.start(settings, client);
-        VideoPreview videoPreview = new VideoPreview(view, settings.getWidth(), settings.getHeight());
-        if (SUPPORTED_PIXEL_FORMAT.equals(settings.getPixelFormat()))
-        {
-            logger.info("Captured pixel format is supported. Preview directly...");
-            previewService = videoPreview;
-        }
-        else
+        this.client = client;
+        this.view = view;
+        startCapture(null);
+        if (isEncoderCalibrationNeeded())
         {
-            logger.info("Captured pixel format is not supported! Creating encode process...");
-            EncodeService encodeService = WeldContext.getInstance().getAny(EncodeService.class);
-            encodeService.start(settings, videoPreview);
-            previewService = encodeService;
+            logger.info("The encoder was not calibrated for this machine. Recording with the default encoder " +
+                    "settings until it is...");
         }
-        captureService.addClient(previewService);
     }
 
     @Override
     public void stopPreviewing ()
     {
-        captureService.stop();
+        encoderPool.close();
+        qualityController.stop();
+        if (singleProcess && recordingFile != null)
+        {
+            // the single process pipeline is recording, let it finish the file
+            captureService.quit();
+        }
+        else
+        {
+            captureService.stop();
+        }
         captureService = null;
         previewService = null;
+        recordService = null;
+        preRecordService = null;
+        recordingFile = null;
     }
 
     @Override
-    public void pausePreview ()
+    public synchronized void pausePreview ()
     {
-        captureService.removeClient(previewService);
+        previewPaused = true;
+        captureService.pauseClient(previewService);
     }
 
     @Override
-    public void resumePreview ()
+    public synchronized void resumePreview ()
     {
-        captureService.addClient(previewService);
+        previewPaused = false;
+        captureService.resumeClient(previewService);
     }
 
     @Override
     public WritableImage takePhotoFromPreview ()
     {
+        // the preview may be downscaled to the view size, so the photo is taken from the next captured frame
+        try
+        {
+            WritableImage photo = toImage(captureService.snapshot().get(PHOTO_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            if (photo != null)
+            {
+                return photo;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while taking a photo! Taking it from the preview...");
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            logger.warn("Could not take a full resolution photo! Taking it from the preview...", e);
+        }
         return previewService.snapshot();
     }
 
-    //<editor-fold desc="Later">
+    /**
+     * The metrics of the capture pipeline, also registered as an MBean named {@value CaptureMetrics#OBJECT_NAME}
+     *
+     * @return the metrics, which read the counters of the current capture
+     */
+    public CaptureMetrics getCaptureMetrics ()
+    {
+        return captureMetrics;
+    }
 
-    @Override
-    public void showSettingsDialog ()
+    /**
+     * Chooses the best quality encoder settings this machine records in realtime, in the background, and persists
+     * them. It is never started implicitly, since the preview and the pre-record are paused while it runs, so the
+     * encoder is measured without them competing for the processors. It is not started while recording, and a
+     * recording started while it runs cancels it, without changing the settings.
+     * <p>
+     * The calibration changes a copy of the settings. Its result is applied to a new copy of the current settings,
+     * which replaces them, so the services started with the previous settings never see them change. Recordings
+     * started before it finishes use the previous settings.
+     *
+     * @return a future completed with true if the encoder settings were changed, the running one if there is one. It
+     * is cancelled if the calibration was cancelled.
+     */
+    public synchronized CompletableFuture<Boolean> calibrateEncoder ()
+    {
+        if (isCalibrating())
+        {
+            return calibration;
+        }
+        if (recordingFile != null)
+        {
+            logger.warn("The encoder can not be calibrated while recording!");
+            return CompletableFuture.completedFuture(false);
+        }
+        if (settings == null)
+        {
+            settings = getCurrentSettings();
+        }
+        calibratedSettings = new MediaFrameworkSettings(settings);
+        pauseForCalibration(true);
+        calibration = encoderCalibration.start(calibratedSettings);
+        CompletableFuture<Boolean> started = calibration;
+        calibration.whenComplete((changed, e) -> calibrationFinished(started));
+        return calibration;
+    }
+
+    /**
+     * @return if the encoder was not calibrated for this machine and no calibration ran to its end yet, so
+     * {@link #calibrateEncoder()} should be called when the preview can be paused
+     */
+    public boolean isEncoderCalibrationNeeded ()
+    {
+        MediaFrameworkSettings current = settings != null ? settings : getCurrentSettings();
+        return !current.isEncoderCalibrated() && !current.isCalibrationAttempted();
+    }
+
+    /**
+     * Applies the result of a calibration to a copy of the current settings, which replaces them, and persists it.
+     * The calibration is marked as attempted even if it could not choose the encoder settings, so it is not run again
+     * on every start. A cancelled calibration changes nothing.
+     */
+    private synchronized void calibrationFinished (CompletableFuture<Boolean> finished)
+    {
+        if (finished != calibration)
+        {
+            return;
+        }
+        pauseForCalibration(false);
+        MediaFrameworkSettings calibrated = calibratedSettings;
+        calibratedSettings = null;
+        if (finished.isCancelled())
+        {
+            return;
+        }
+        boolean changed = finished.join();
+        MediaFrameworkSettings current = settings != null ? settings : getCurrentSettings();
+        MediaFrameworkSettings updated = new MediaFrameworkSettings(current);
+        updated.setCalibrationAttempted(true);
+        if (changed)
+        {
+            updated.setCrf(calibrated.getCrf());
+            updated.setPreset(calibrated.getPreset());
+            updated.setThreads(calibrated.getThreads());
+            updated.setCalibratedSpeed(calibrated.getCalibratedSpeed());
+        }
+        try
+        {
+            dao.merge(updated);
+        }
+        catch (XStreamException | IOException e)
+        {
+            logger.warn("Could not persist MediaFrameworkSettings!", e);
+        }
+        settings = updated;
+        // the prepared encoder was started with the previous settings
+        if (changed && captureService != null && !singleProcess)
+        {
+            encoderPool.open(settings);
+        }
+    }
+
+    private boolean isCalibrating ()
     {
+        return calibration != null && !calibration.isDone();
+    }
 
+    /**
+     * Pauses or resumes the clients of the capture that compete with the encoder calibration. The recording is never
+     * paused, and the preview is not resumed if the client paused it.
+     *
+     * @param paused true to pause them, false to resume them
+     */
+    private synchronized void pauseForCalibration (boolean paused)
+    {
+        if (captureService == null)
+        {
+            return;
+        }
+        if (paused)
+        {
+            logger.info("Pausing the preview and the pre-record while the encoder is calibrated...");
+            captureService.pauseClient(previewService);
+        }
+        else if (!previewPaused)
+        {
+            captureService.resumeClient(previewService);
+        }
+        if (preRecordService != null)
+        {
+            if (paused)
+            {
+                captureService.pauseClient(preRecordService);
+            }
+            else
+            {
+                captureService.resumeClient(preRecordService);
+            }
+        }
     }
 
     @Override
-    public void startRecording (Path videoFilePath) throws IOException
+    public synchronized void startRecording (Path videoFilePath) throws IOException
     {
+        if (isCalibrating())
+        {
+            logger.info("Cancelling the encoder calibration, which must not compete with the recording...");
+            encoderCalibration.cancel();
+        }
+        if (singleProcess)
+        {
+            logger.info("Restarting the single process pipeline to record " + videoFilePath + "...");
+            if (settings.getRecordingMode() == RecordingMode.SEGMENTED)
+            {
+                segmentService = WeldContext.getInstance().getAny(SegmentService.class);
+                segmentService.start(settings, videoFilePath, client);
+                CompletableFuture<Path> preRecordSegment = flushPreRecord(segmentService.getSegmentFolder());
+                if (preRecordSegment != null)
+                {
+                    segmentService.prependSegment(preRecordSegment);
+                }
+            }
+            restartCapture(videoFilePath);
+        }
+        else
+        {
+            logger.info("Starting to record " + videoFilePath + "...");
+            recordService = startRecordService(videoFilePath);
+            captureService.addClient(recordService, DeliveryPolicy.DROP_NEWEST,
+                    RecordService.queueCapacity(settings, captureService.getPixelFormat()));
+            if (isPausedWithoutSignal())
+            {
+                captureService.pauseClient(recordService);
+            }
+            // the encoder is added first, so the frames around the start may be in both files, but none is lost
+            CompletableFuture<Path> preRecordSegment = flushPreRecord(recordService.getSegmentFolder());
+            if (preRecordSegment != null)
+            {
+                recordService.prependSegment(preRecordSegment);
+            }
+        }
+        recordingFile = videoFilePath;
+        recordingPaused = false;
     }
 
     @Override
-    public void pauseRecording ()
+    public synchronized void pauseRecording ()
     {
+        if (singleProcess)
+        {
+            logger.warn("The single process pipeline can not pause the recording!");
+        }
+        else
+        {
+            // the frames stop being delivered at the next frame boundary, the encoder keeps running
+            captureService.pauseClient(recordService);
+            recordingPaused = true;
+        }
     }
 
     @Override
-    public void stopRecording ()
+    public synchronized void resumeRecording ()
     {
+        if (!singleProcess)
+        {
+            recordingPaused = false;
+            // without signal the recording goes on when the signal is restored
+            if (!isPausedWithoutSignal())
+            {
+                captureService.resumeClient(recordService);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stopRecording ()
+    {
+        if (recordingFile == null)
+        {
+            return;
+        }
+        logger.info("Stopping to record " + recordingFile + "...");
+        recordingFile = null;
+        if (singleProcess)
+        {
+            try
+            {
+                // the file is finished when the process quits
+                restartCapture(null);
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not restart the preview after recording!", e);
+                client.previewingException();
+            }
+            // the segments are concatenated in the background, so the caller does not wait for the whole file
+            SegmentService finishingSegments = segmentService;
+            MediaFacadeClient finishingClient = client;
+            supervisor.executeBeforeExit("Recording finish task", () -> finishRecording(finishingSegments,
+                    finishingClient));
+            segmentService = null;
+        }
+        else
+        {
+            // the frames already queued are recorded before the encoder input is closed
+            RecordService finishing = recordService;
+            recordService = null;
+            captureService.drainClient(finishing).whenComplete((result, e) -> finishing.finish());
+            startPreRecord();
+        }
     }
 
+    //<editor-fold desc="Later">
+
     @Override
-    public void resumeRecording ()
+    public void showSettingsDialog ()
     {
+
     }
 
     //</editor-fold>
 
+    /**
+     * Starts the capture and the preview of its frames, with the single process pipeline if the settings have it
+     *
+     * @param videoFilePath the file the single process pipeline records, or null to only preview
+     * @throws IOException if a process could not be started
+     */
+    private void startCapture (Path videoFilePath) throws IOException
+    {
+        if (qualityController != null)
+        {
+            qualityController.stop();
+        }
+        qualityController = WeldContext.getInstance().getAny(QualityController.class);
+        captureService = WeldContext.getInstance().getAny(CaptureService.class);
+        VideoPreview videoPreview = new VideoPreview(view, settings.getWidth(), settings.getHeight(),
+                captureMetrics);
+        List<String> pipelineCommand = settings.getPipelineMode() == PipelineMode.SINGLE_PROCESS ?
+                settings.getPipelineCommand(videoFilePath) : null;
+        singleProcess = pipelineCommand != null;
+        // a restarted single process pipeline would record the file again from its start
+        captureService.setRestartPolicy(singleProcess && videoFilePath != null ? 0 :
+                videoPreferences.getCaptureRestarts(), this::captureRestarted);
+        captureService.setWritesFile(singleProcess && videoFilePath != null);
+        if (singleProcess)
+        {
+            logger.info("Single process pipeline. Preview directly...");
+            captureService.start(settings, pipelineCommand, SUPPORTED_PIXEL_FORMAT, client);
+            previewService = videoPreview;
+            captureService.addClient(previewService, DeliveryPolicy.LATEST_ONLY, 1);
+            qualityController.start(captureService, previewService, videoPreview, settings,
+                    this::continueRecording);
+            startSignalDetector();
+            if (videoFilePath == null)
+            {
+                startPreRecord();
+            }
+            return;
+        }
+        if (settings.getPipelineMode() == PipelineMode.SINGLE_PROCESS)
+        {
+            logger.warn("The settings were created without the pipeline commands! Using separate processes...");
+        }
+        captureService.start(settings, client);
+        encoderPool.open(settings);
+        PixelConverter converter = PixelConverter.forPixelFormat(settings.getPixelFormat(), settings.getWidth(),
+                settings.getHeight());
+        if (SUPPORTED_PIXEL_FORMAT.equals(settings.getPixelFormat()))
+        {
+            logger.info("Captured pixel format is supported. Preview directly...");
+            previewService = videoPreview;
+        }
+        else if (converter != null)
+        {
+            logger.info("Captured pixel format is not supported. Converting it in the JVM...");
+            ConvertService convertService = WeldContext.getInstance().getAny(ConvertService.class);
+            videoPreview.setSourceAlphaOpaque(true);
+            convertService.start(converter, videoPreview);
+            previewService = convertService;
+        }
+        else
+        {
+            logger.info("Captured pixel format is not supported! Creating encode process...");
+            EncodeService encodeService = WeldContext.getInstance().getAny(EncodeService.class);
+            encodeService.start(settings, videoPreview);
+            previewService = encodeService;
+        }
+        captureService.addClient(previewService, DeliveryPolicy.LATEST_ONLY, 1);
+        qualityController.start(captureService, previewService, videoPreview, settings, this::continueRecording);
+        startSignalDetector();
+        startPreRecord();
+    }
+
+    /**
+     * Continues the recording with another encoder, with another preset, without losing frames
+     *
+     * @param preset the preset of the new encoder
+     * @return false if there is no segmented recording to continue, or the new encoder could not be started
+     */
+    private synchronized boolean continueRecording (String preset)
+    {
+        if (singleProcess || recordService == null || recordingPaused)
+        {
+            return false;
+        }
+        RecordService next;
+        try
+        {
+            next = recordService.continueWith(preset);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not continue the recording with another encoder!", e);
+            return false;
+        }
+        // the new encoder is added first, so the frames at the switch may be in both, but none is lost
+        captureService.addClient(next, DeliveryPolicy.DROP_NEWEST,
+                RecordService.queueCapacity(settings, captureService.getPixelFormat()));
+        if (isPausedWithoutSignal())
+        {
+            captureService.pauseClient(next);
+        }
+        RecordService finishing = recordService;
+        recordService = next;
+        captureService.drainClient(finishing).whenComplete((result, e) -> finishing.finish());
+        return true;
+    }
+
+    /**
+     * Continues the recording in a new segment when the capture process is restarted, so the frames the capture
+     * missed are a gap between segments. Invoked by the capture thread.
+     */
+    private synchronized void captureRestarted ()
+    {
+        logger.info("The capture process was restarted.");
+        if (recordService != null && !continueRecording(recordService.getPreset()))
+        {
+            logger.warn("Could not continue the recording in a new segment! Recording on in the same one...");
+        }
+    }
+
+    /**
+     * Records the file with the prepared encoder of the pool, or with a new one if none is ready
+     *
+     * @param videoFilePath the file
+     * @return the encoder
+     * @throws IOException if a new encoder could not be started
+     */
+    private RecordService startRecordService (Path videoFilePath) throws IOException
+    {
+        RecordService prepared = encoderPool.take();
+        if (prepared != null)
+        {
+            try
+            {
+                prepared.start(videoFilePath, client);
+                return prepared;
+            }
+            catch (IOException e)
+            {
+                logger.warn("Could not record with the prepared encoder! Starting a new one...", e);
+                prepared.discard();
+            }
+        }
+        RecordService started = WeldContext.getInstance().getAny(RecordService.class);
+        started.start(settings, videoFilePath, client);
+        return started;
+    }
+
+    /**
+     * Starts checking the frames for a picture, if the preferences enable it
+     */
+    private void startSignalDetector ()
+    {
+        signalLost = false;
+        if (!videoPreferences.isDetectSignalLoss())
+        {
+            return;
+        }
+        SignalDetector signalDetector = WeldContext.getInstance().getAny(SignalDetector.class);
+        try
+        {
+            signalDetector.start(captureService.getPixelFormat(), settings.getWidth(), settings.getHeight(),
+                    this::signalChanged);
+        }
+        catch (InvalidPixelFormatException e)
+        {
+            logger.warn("Could not detect the signal loss of pixel format " + e.getPixelFormat() + "!", e);
+            return;
+        }
+        // it only needs the latest frame, and must never hold the capture back
+        captureService.addClient(signalDetector, DeliveryPolicy.LATEST_ONLY, 1);
+    }
+
+    /**
+     * Tells the client that the signal was lost or restored and, if the preferences ask for it, pauses or resumes the
+     * recording. Invoked by the signal detector delivery thread.
+     *
+     * @param signalPresent false if the signal was lost, true if it was restored
+     */
+    private synchronized void signalChanged (boolean signalPresent)
+    {
+        signalLost = !signalPresent;
+        if (signalPresent)
+        {
+            client.signalRestored();
+        }
+        else
+        {
+            client.signalLost();
+        }
+        if (!videoPreferences.isPauseRecordingWithoutSignal() || recordService == null || recordingPaused)
+        {
+            return;
+        }
+        if (signalPresent)
+        {
+            logger.info("The signal was restored. Resuming the recording...");
+            captureService.resumeClient(recordService);
+        }
+        else
+        {
+            logger.info("The signal was lost. Pausing the recording until it is restored...");
+            captureService.pauseClient(recordService);
+        }
+    }
+
+    /**
+     * @return if the recording must be paused because the frames have no picture
+     */
+    private boolean isPausedWithoutSignal ()
+    {
+        return signalLost && videoPreferences.isPauseRecordingWithoutSignal();
+    }
+
+    /**
+     * Starts keeping the video before the next recording, if the preferences enable it. Only segmented recordings can
+     * start with it, as a segment. The capture goes on without it if the encoder can not be started.
+     */
+    private void startPreRecord ()
+    {
+        int seconds = videoPreferences.getPreRecordSeconds();
+        if (seconds <= 0)
+        {
+            return;
+        }
+        if (settings.getRecordingMode() != RecordingMode.SEGMENTED)
+        {
+            logger.warn("Only segmented recordings can start with the pre-record! Recording without it...");
+            return;
+        }
+        PreRecordService starting = WeldContext.getInstance().getAny(PreRecordService.class);
+        try
+        {
+            starting.start(settings, captureService.getPixelFormat(), seconds,
+                    videoPreferences.getPreRecordMegabytes());
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not start the pre-record! Recording without it...", e);
+            return;
+        }
+        preRecordService = starting;
+        // the encoder must never hold the capture back, it drops frames instead
+        captureService.addClient(preRecordService, DeliveryPolicy.DROP_NEWEST, 2);
+        if (isCalibrating())
+        {
+            captureService.pauseClient(preRecordService);
+        }
+    }
+
+    /**
+     * Writes the video kept before the recording to the segment folder of the recording
+     *
+     * @param segmentFolder the folder the recording segments are recorded to, null if it is not segmented
+     * @return a future completed with the pre-record segment, or null if nothing is kept
+     */
+    private CompletableFuture<Path> flushPreRecord (Path segmentFolder)
+    {
+        if (preRecordService == null || segmentFolder == null)
+        {
+            return null;
+        }
+        PreRecordService flushing = preRecordService;
+        preRecordService = null;
+        Path segment = segmentFolder.resolve(SegmentService.PRE_RECORD_FILE_NAME);
+        // the frames already queued are encoded before the encoder input is closed
+        return captureService.drainClient(flushing).thenCompose(result -> flushing.flush(segment));
+    }
+
+    /**
+     * Lets the current process finish its file and exit, so the device is released, and starts another one
+     *
+     * @param videoFilePath the file the new process records, or null to only preview
+     * @throws IOException if the new process could not be started
+     */
+    private void restartCapture (Path videoFilePath) throws IOException
+    {
+        try
+        {
+            captureService.quit().get(QUIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the capture process to quit!");
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            logger.warn("The capture process did not quit in time! Stopping it...", e);
+            captureService.stop();
+        }
+        startCapture(videoFilePath);
+        if (isCalibrating())
+        {
+            pauseForCalibration(true);
+        }
+    }
+
+    /**
+     * Creates a full resolution image of a captured frame
+     *
+     * @param frame the frame, in the captured pixel format
+     * @return the image, or null if the pixel format can only be converted by an encode process
+     */
+    private WritableImage toImage (ByteBuffer frame)
+    {
+        int width = settings.getWidth();
+        int height = settings.getHeight();
+        String pixelFormat = captureService.getPixelFormat();
+        ByteBuffer pixels;
+        if (SUPPORTED_PIXEL_FORMAT.equals(pixelFormat))
+        {
+            // the fourth byte of bgr0 is padding, which must be opaque in a bgra image
+            pixels = frame;
+            for (int i = pixels.position() + 3; i < pixels.limit(); i += 4)
+            {
+                pixels.put(i, (byte) 0xFF);
+            }
+        }
+        else
+        {
+            PixelConverter converter = PixelConverter.forPixelFormat(pixelFormat, width, height);
+            if (converter == null)
+            {
+                return null;
+            }
+            pixels = ByteBuffer.allocate(converter.getTargetLength());
+            converter.convert(frame, pixels);
+        }
+        WritableImage photo = new WritableImage(width, height);
+        photo.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getByteBgraInstance(), pixels,
+                PixelLayouts.forName("bgra").getStride(0, width));
+        return photo;
+    }
+
     private MediaFrameworkSettings getCurrentSettings ()
     {
         return WeldContext.getInstance().getWithQualifiers(MediaFrameworkSettings.class, new
                 AnnotationLiteral<FromXmlPreferences>() {});
     }
+
+    /**
+     * Finishes the file of the single process pipeline after its process quit, and notifies the client. The application
+     * waits for it before it exits.
+     *
+     * @param segmentService null if the recording is not segmented, so the process already finished the file
+     */
+    private void finishRecording (SegmentService segmentService, MediaFacadeClient client)
+    {
+        if (segmentService != null && !segmentService.finish())
+        {
+            client.recordingException();
+        }
+        client.recordingFinished();
+    }
 }
@@ -0,0 +1,113 @@
+package br.com.jmedia.ffmpeg.control;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.util.Callback;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Access to the JavaFX 13 PixelBuffer, through reflection so the module still runs on older runtimes. A PixelBuffer
+ * lets an image be backed by a direct buffer that the renderer uploads to the texture, instead of copying the pixels
+ * into the image first.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+final class PixelBufferSupport
+{
+    private static final Constructor<?> PIXEL_BUFFER_CONSTRUCTOR;
+    private static final Constructor<?> IMAGE_CONSTRUCTOR;
+    private static final Method         UPDATE_BUFFER;
+
+    /**
+     * Marks the whole image as dirty
+     */
+    private static final Callback<Object, Object> WHOLE_IMAGE = pixelBuffer -> null;
+
+    static
+    {
+        Constructor<?> pixelBufferConstructor = null;
+        Constructor<?> imageConstructor = null;
+        Method updateBuffer = null;
+        try
+        {
+            Class<?> pixelBufferClass = Class.forName("javafx.scene.image.PixelBuffer");
+            pixelBufferConstructor = pixelBufferClass.getConstructor(int.class, int.class, Buffer.class,
+                    PixelFormat.class);
+            imageConstructor = WritableImage.class.getConstructor(pixelBufferClass);
+            updateBuffer = pixelBufferClass.getMethod("updateBuffer", Callback.class);
+        }
+        catch (ClassNotFoundException | NoSuchMethodException e)
+        {
+            // older runtime, previews copy the pixels
+        }
+        PIXEL_BUFFER_CONSTRUCTOR = pixelBufferConstructor;
+        IMAGE_CONSTRUCTOR = imageConstructor;
+        UPDATE_BUFFER = updateBuffer;
+    }
+
+    private PixelBufferSupport ()
+    {
+    }
+
+    static boolean isAvailable ()
+    {
+        return UPDATE_BUFFER != null;
+    }
+
+    /**
+     * Creates an image backed by a direct buffer of premultiplied BGRA pixels
+     *
+     * @return the image and its PixelBuffer
+     */
+    static BackedImage createImage (int width, int height, ByteBuffer buffer)
+    {
+        try
+        {
+            Object pixelBuffer = PIXEL_BUFFER_CONSTRUCTOR.newInstance(width, height, buffer,
+                    PixelFormat.getByteBgraPreInstance());
+            return new BackedImage(pixelBuffer, (WritableImage) IMAGE_CONSTRUCTOR.newInstance(pixelBuffer));
+        }
+        catch (InstantiationException | IllegalAccessException | InvocationTargetException e)
+        {
+            throw new IllegalStateException("Could not create a PixelBuffer!", e);
+        }
+    }
+
+    static class BackedImage
+    {
+        private final Object        pixelBuffer;
+        private final WritableImage image;
+
+        private BackedImage (Object pixelBuffer, WritableImage image)
+        {
+            this.pixelBuffer = pixelBuffer;
+            this.image = image;
+        }
+
+        WritableImage getImage ()
+        {
+            return image;
+        }
+
+        /**
+         * Tells the renderer the buffer changed, so the texture is uploaded from it. Must be invoked in the FX
+         * application thread.
+         */
+        void bufferUpdated ()
+        {
+            try
+            {
+                UPDATE_BUFFER.invoke(pixelBuffer, WHOLE_IMAGE);
+            }
+            catch (IllegalAccessException | InvocationTargetException e)
+            {
+                throw new IllegalStateException("Could not update a PixelBuffer!", e);
+            }
+        }
+    }
+}
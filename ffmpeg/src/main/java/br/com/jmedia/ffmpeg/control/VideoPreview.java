@@ -1,44 +1,200 @@
 package br.com.jmedia.ffmpeg.control;
 
 import br.com.jwheel.javafx.utils.ImageUtils;
+import br.com.jmedia.ffmpeg.model.PixelLayout;
+import br.com.jmedia.ffmpeg.model.PixelLayouts;
+import br.com.jmedia.ffmpeg.service.CaptureMetrics;
 import br.com.jmedia.ffmpeg.service.PreviewService;
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.geometry.Bounds;
 import javafx.scene.image.ImageView;
 import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Shows the frames in an ImageView through three buffers. The thread delivering the frames fills the back buffer and
+ * swaps it with the middle one, and an AnimationTimer swaps the middle buffer with the front one and uploads it to the
+ * image once per pulse, in the FX application thread. The image is never written while a frame is being copied, and
+ * frames newer than the display refresh replace the stale ones before they are uploaded.
+ * <p>
+ * On JavaFX 13 or newer each buffer backs its own image through a PixelBuffer, and each pulse only shows the image of
+ * the front buffer, so the pixels go from the buffer to the texture without being copied into an image first. The
+ * renderer may still be uploading the texture of the replaced front buffer while the next pulse runs, so a fourth
+ * buffer takes its turn: the replaced one is kept out of the rotation until another pulse replaces its successor.
+ * Older runtimes copy the front buffer into a single image.
+ * <p>
+ * If the view has a fit size smaller than the frames, they are downscaled by the biggest integer factor that keeps
+ * them at least as big as they are shown, so a small view of a big capture copies and uploads a fraction of the
+ * pixels. The buffers are replaced whenever resizing the view changes the factor. Under load, the frames may be
+ * downscaled further than the view needs by an {@link #setExtraDownscaleFactor(int) extra factor}.
+ * <p>
+ * The frames are taken for bgr0, whose fourth byte is padding, so it is made opaque in the buffers before they are
+ * shown as BGRA, unless the source {@link #setSourceAlphaOpaque(boolean) already makes it opaque}.
+ *
  * @author Lima Filho, A. L. - amsterdam@luvva.com.br
  */
 public class VideoPreview implements PreviewService
 {
-    private final PixelWriter   pixelWriter;
-    private final int           width;
-    private final int           height;
-    private final byte[]        byteBuffer;
-    private final WritableImage image;
+    private final ImageView      view;
+    private final int            width;
+    private final int            height;
+    private final boolean        zeroCopy;
+    private final CaptureMetrics metrics;
 
-    private final PixelFormat<ByteBuffer> pixelFormat   = PixelFormat.getByteBgraInstance();
-    private final int                     bytesPerPixel = 4;
+    private final PixelFormat<ByteBuffer> pixelFormat = PixelFormat.getByteBgraInstance();
+    private final PixelLayout             pixelLayout = PixelLayouts.forName("bgra");
+    private final int                     bufferLength;
 
-    public VideoPreview (ImageView view, int width, int height)
+    private final AnimationTimer         presenter;
+    private final ChangeListener<Bounds> viewSizeListener = (observable, oldValue, newValue) -> viewResized();
+
+    private final AtomicLong presentedFrames = new AtomicLong();
+    private final AtomicLong skippedFrames   = new AtomicLong();
+    /**
+     * The longest a frame waited to be uploaded since it was last read, in nanoseconds
+     */
+    private final AtomicLong maxLag          = new AtomicLong();
+
+    /**
+     * Multiplies the factor the view size needs. Read by the FX application thread.
+     */
+    private volatile int     extraDownscaleFactor = 1;
+    /**
+     * If the fourth byte of the frames is an opaque alpha, not bgr0 padding
+     */
+    private volatile boolean sourceAlphaOpaque    = false;
+
+    /**
+     * The buffers the frames are delivered to, replaced by the FX application thread
+     */
+    private volatile Surface surface;
+
+    /**
+     * The image being shown
+     */
+    private volatile WritableImage image;
+
+    public VideoPreview (ImageView view, int width, int height, CaptureMetrics metrics)
     {
+        this(view, width, height, metrics, PixelBufferSupport.isAvailable());
+    }
+
+    /**
+     * @param zeroCopy if the buffers must back the images through PixelBuffers. Ignored if the runtime does not have
+     *                 them.
+     */
+    public VideoPreview (ImageView view, int width, int height, CaptureMetrics metrics, boolean zeroCopy)
+    {
+        this.view = view;
         this.width = width;
         this.height = height;
-        image = new WritableImage(width, height);
-        Platform.runLater(() -> view.setImage(image));
-        this.pixelWriter = image.getPixelWriter();
-        byteBuffer = new byte[getBufferLength()];
+        this.metrics = metrics;
+        this.zeroCopy = zeroCopy && PixelBufferSupport.isAvailable();
+        bufferLength = pixelLayout.bytesPerFrame(width, height);
+        surface = new Surface(1);
+        image = surface.image;
+        presenter = new AnimationTimer()
+        {
+            @Override
+            public void handle (long now)
+            {
+                present();
+            }
+        };
+        Platform.runLater(() ->
+        {
+            view.layoutBoundsProperty().addListener(viewSizeListener);
+            viewResized();
+            view.setImage(image);
+            presenter.start();
+        });
     }
 
+    /**
+     * @return the length of the frames this preview receives, which are not downscaled yet
+     */
     public int getBufferLength ()
     {
-        return width * height * bytesPerPixel;
+        return bufferLength;
+    }
+
+    /**
+     * @return if the images are backed by the frame buffers, without copying the pixels
+     */
+    public boolean isZeroCopy ()
+    {
+        return zeroCopy;
+    }
+
+    /**
+     * @return the factor the frames are currently downscaled by, 1 if they are shown at full resolution
+     */
+    public int getDownscaleFactor ()
+    {
+        return surface.factor;
+    }
+
+    /**
+     * Downscales the frames further than the view size needs, so the preview costs less. Applied in the FX
+     * application thread.
+     *
+     * @param extraDownscaleFactor the factor the view size needs is multiplied by, 1 to show the frames as the view
+     *                             needs them
+     */
+    public void setExtraDownscaleFactor (int extraDownscaleFactor)
+    {
+        this.extraDownscaleFactor = Math.max(extraDownscaleFactor, 1);
+        Platform.runLater(this::viewResized);
+    }
+
+    /**
+     * Tells if the frames are bgra with an opaque alpha, like the ones converted in the JVM, so their fourth byte does
+     * not have to be made opaque like the padding of bgr0
+     *
+     * @param sourceAlphaOpaque true if the alpha of the frames is opaque, false if they are bgr0
+     */
+    public void setSourceAlphaOpaque (boolean sourceAlphaOpaque)
+    {
+        this.sourceAlphaOpaque = sourceAlphaOpaque;
+    }
+
+    /**
+     * The longest time a frame waited between being received and being uploaded to the image, since the last time it
+     * was read. It grows when the FX application thread can not keep up.
+     *
+     * @return the time in nanoseconds, zero if no frame was uploaded since the last read
+     */
+    public long getAndResetMaxLag ()
+    {
+        return maxLag.getAndSet(0);
+    }
+
+    /**
+     * @return the number of frames uploaded to the image
+     */
+    public long getPresentedFrames ()
+    {
+        return presentedFrames.get();
+    }
+
+    /**
+     * @return the number of frames replaced by a newer one before they could be uploaded
+     */
+    public long getSkippedFrames ()
+    {
+        return skippedFrames.get();
     }
 
+    /**
+     * @return a copy of the image being shown, which is downscaled if the view is smaller than the frames
+     */
     @Override
     public WritableImage snapshot ()
     {
@@ -46,19 +202,223 @@ public class VideoPreview implements PreviewService
     }
 
     @Override
-    public void receive (int bytes, int currentIndex)
+    public void receive (ByteBuffer frame)
     {
-        byteBuffer[currentIndex] = (byte) bytes;
+        Surface current = surface;
+        FrameBuffer back = current.back;
+        ByteBuffer buffer = back.buffer;
+        buffer.clear();
+        if (current.factor == 1)
+        {
+            ByteBuffer bytes = frame.duplicate();
+            bytes.limit(bytes.position() + Math.min(bytes.remaining(), buffer.remaining()));
+            buffer.put(bytes);
+        }
+        else if (frame.remaining() >= bufferLength)
+        {
+            BoxDownscaler.downscale(frame, width, height, current.factor, buffer, current.sums);
+        }
+        else
+        {
+            // a truncated frame can not be downscaled, keep showing the previous one
+            return;
+        }
+        if (!sourceAlphaOpaque)
+        {
+            // the padding of bgr0 may be anything, and would make the pixels transparent or invalid premultiplied BGRA
+            for (int i = 3; i < current.bufferLength; i += 4)
+            {
+                buffer.put(i, (byte) 0xFF);
+            }
+        }
+        back.receiveTime = System.nanoTime();
+        back.fresh = true;
+        current.back = current.middle.getAndSet(back);
+        if (current.back.fresh)
+        {
+            skippedFrames.incrementAndGet();
+        }
     }
 
     @Override
-    public void frameReceived ()
+    public void captureStopped ()
     {
-        pixelWriter.setPixels(0, 0, width, height, pixelFormat, byteBuffer, 0, width * bytesPerPixel);
+        Platform.runLater(() ->
+        {
+            presenter.stop();
+            view.layoutBoundsProperty().removeListener(viewSizeListener);
+            // the last frame may have arrived after the last pulse
+            present();
+        });
     }
 
-    @Override
-    public void captureStopped ()
+    /**
+     * Replaces the surface if the view size changed the downscale factor. Invoked in the FX application thread.
+     */
+    private void viewResized ()
+    {
+        int factor = downscaleFactor();
+        if (factor != surface.factor)
+        {
+            // a frame being delivered to the old surface is lost, the next one goes to the new surface
+            surface = new Surface(factor);
+        }
+    }
+
+    /**
+     * @return the biggest factor that keeps the frames at least as big as the view shows them, times the extra factor
+     */
+    private int downscaleFactor ()
+    {
+        double fitWidth = view.getFitWidth();
+        double fitHeight = view.getFitHeight();
+        double scaleX = fitWidth > 0 ? fitWidth / width : 1;
+        double scaleY = fitHeight > 0 ? fitHeight / height : 1;
+        if (view.isPreserveRatio())
+        {
+            // the image is shown at the smaller scale, or at the only one that was set
+            scaleX = Math.min(scaleX, scaleY);
+            scaleY = scaleX;
+        }
+        int factor = (int) (1 / Math.max(scaleX, scaleY));
+        factor = Math.max(factor, 1) * extraDownscaleFactor;
+        return Math.max(1, Math.min(BoxDownscaler.MAX_FACTOR, Math.min(factor, Math.min(width, height))));
+    }
+
+    /**
+     * Uploads the newest frame, if it was not uploaded yet. Invoked in the FX application thread.
+     */
+    private void present ()
     {
+        Surface current = surface;
+        if (!current.middle.get().fresh)
+        {
+            return;
+        }
+        FrameBuffer replaced = current.front;
+        if (zeroCopy)
+        {
+            // the buffer replaced by the previous pulse was uploaded by now, unlike the one replaced here
+            current.front = current.middle.getAndSet(current.retired);
+            current.retired = replaced;
+        }
+        else
+        {
+            current.front = current.middle.getAndSet(replaced);
+        }
+        FrameBuffer front = current.front;
+        if (front.fresh)
+        {
+            front.fresh = false;
+            long start = System.nanoTime();
+            if (zeroCopy)
+            {
+                front.backedImage.bufferUpdated();
+                image = front.backedImage.getImage();
+            }
+            else
+            {
+                ByteBuffer buffer = front.buffer;
+                buffer.clear();
+                current.pixelWriter.setPixels(0, 0, current.width, current.height, pixelFormat, buffer,
+                        current.stride);
+                image = current.image;
+            }
+            if (view.getImage() != image)
+            {
+                view.setImage(image);
+            }
+            long end = System.nanoTime();
+            metrics.presentationCompleted(end - start);
+            presentedFrames.incrementAndGet();
+            long lag = end - front.receiveTime;
+            maxLag.accumulateAndGet(lag, Math::max);
+        }
+    }
+
+    /**
+     * The buffers and image of one downscale factor
+     */
+    private class Surface
+    {
+        private final int           factor;
+        private final int           width;
+        private final int           height;
+        private final int           stride;
+        private final int           bufferLength;
+        private final WritableImage image;
+        private final PixelWriter   pixelWriter;
+
+        /**
+         * The per component sums of a downscaled row, owned by the thread delivering the frames
+         */
+        private final int[] sums;
+
+        /**
+         * The buffer waiting to be uploaded, swapped by both threads
+         */
+        private final AtomicReference<FrameBuffer> middle;
+
+        /**
+         * Owned by the thread delivering the frames
+         */
+        private FrameBuffer back;
+        /**
+         * Owned by the FX application thread
+         */
+        private FrameBuffer front;
+        /**
+         * The front buffer the renderer may still upload, owned by the FX application thread. Null if the preview is
+         * not zero copy.
+         */
+        private FrameBuffer retired;
+
+        private Surface (int factor)
+        {
+            this.factor = factor;
+            width = VideoPreview.this.width / factor;
+            height = VideoPreview.this.height / factor;
+            stride = pixelLayout.getStride(0, width);
+            bufferLength = pixelLayout.bytesPerFrame(width, height);
+            sums = factor == 1 ? null : new int[stride];
+            back = new FrameBuffer(this);
+            middle = new AtomicReference<>(new FrameBuffer(this));
+            front = new FrameBuffer(this);
+            if (zeroCopy)
+            {
+                retired = new FrameBuffer(this);
+                image = front.backedImage.getImage();
+                pixelWriter = null;
+            }
+            else
+            {
+                image = new WritableImage(width, height);
+                pixelWriter = image.getPixelWriter();
+            }
+        }
+    }
+
+    private class FrameBuffer
+    {
+        private final ByteBuffer                     buffer;
+        /**
+         * The image backed by the buffer, null if the preview is not zero copy
+         */
+        private final PixelBufferSupport.BackedImage backedImage;
+
+        /**
+         * If the buffer has a frame that was not uploaded yet
+         */
+        private volatile boolean fresh       = false;
+        /**
+         * When the frame was received, written before the buffer is swapped
+         */
+        private volatile long    receiveTime = 0;
+
+        private FrameBuffer (Surface surface)
+        {
+            buffer = ByteBuffer.allocateDirect(surface.bufferLength);
+            backedImage = zeroCopy ? PixelBufferSupport.createImage(surface.width, surface.height, buffer) : null;
+        }
     }
 }
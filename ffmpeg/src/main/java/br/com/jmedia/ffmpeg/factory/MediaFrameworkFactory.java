@@ -5,6 +5,7 @@ import br.com.jwheel.utils.SystemUtils;
 import br.com.jwheel.weld.WeldContext;
 import br.com.jmedia.ffmpeg.service.AvFoundation;
 import br.com.jmedia.ffmpeg.service.MediaFramework;
+import br.com.jmedia.ffmpeg.service.V4l2;
 
 import javax.enterprise.inject.Produces;
 
@@ -20,6 +21,10 @@ final class MediaFrameworkFactory
         {
             return WeldContext.getInstance().getAny(AvFoundation.class);
         }
+        else if (SystemUtils.isLinux())
+        {
+            return WeldContext.getInstance().getAny(V4l2.class);
+        }
         else
         {
             return WeldContext.getInstance().getAny(DirectShow.class);
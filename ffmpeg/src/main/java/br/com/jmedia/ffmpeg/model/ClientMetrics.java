@@ -0,0 +1,94 @@
+package br.com.jmedia.ffmpeg.model;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of how a capture client is keeping up with the capture
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class ClientMetrics
+{
+    private final String  client;
+    private final String  policy;
+    private final boolean paused;
+    private final int     queuedFrames;
+    private final long    deliveredFrames;
+    private final long    droppedFrames;
+    private final double  meanProcessingTime;
+    private final long    maxProcessingTime;
+    private final long    processingTimePercentile99;
+
+    @ConstructorProperties({"client", "policy", "paused", "queuedFrames", "deliveredFrames", "droppedFrames",
+            "meanProcessingTime", "maxProcessingTime", "processingTimePercentile99"})
+    public ClientMetrics (String client, String policy, boolean paused, int queuedFrames, long deliveredFrames,
+            long droppedFrames, double meanProcessingTime, long maxProcessingTime, long processingTimePercentile99)
+    {
+        this.client = client;
+        this.policy = policy;
+        this.paused = paused;
+        this.queuedFrames = queuedFrames;
+        this.deliveredFrames = deliveredFrames;
+        this.droppedFrames = droppedFrames;
+        this.meanProcessingTime = meanProcessingTime;
+        this.maxProcessingTime = maxProcessingTime;
+        this.processingTimePercentile99 = processingTimePercentile99;
+    }
+
+    /**
+     * @return the simple name of the client class
+     */
+    public String getClient ()
+    {
+        return client;
+    }
+
+    public String getPolicy ()
+    {
+        return policy;
+    }
+
+    public boolean isPaused ()
+    {
+        return paused;
+    }
+
+    public int getQueuedFrames ()
+    {
+        return queuedFrames;
+    }
+
+    public long getDeliveredFrames ()
+    {
+        return deliveredFrames;
+    }
+
+    public long getDroppedFrames ()
+    {
+        return droppedFrames;
+    }
+
+    /**
+     * @return the mean time the client took to receive a frame, in microseconds
+     */
+    public double getMeanProcessingTime ()
+    {
+        return meanProcessingTime;
+    }
+
+    /**
+     * @return the longest time the client took to receive a frame, in microseconds
+     */
+    public long getMaxProcessingTime ()
+    {
+        return maxProcessingTime;
+    }
+
+    /**
+     * @return the 99th percentile of the time the client took to receive a frame, in microseconds
+     */
+    public long getProcessingTimePercentile99 ()
+    {
+        return processingTimePercentile99;
+    }
+}
@@ -0,0 +1,29 @@
+package br.com.jmedia.ffmpeg.model;
+
+/**
+ * What a delivery lane does with a new frame when its queue is full, that is, when its client is slower than the
+ * capture.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public enum DeliveryPolicy
+{
+    /**
+     * The capture waits until the client makes room in the queue. No frame is lost, but a slow client slows down the
+     * capture of every other client. Should be used with a large queue.
+     */
+    BLOCK,
+    /**
+     * The oldest frame in the queue is dropped to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * The new frame is dropped. The frames already in the queue are kept.
+     */
+    DROP_NEWEST,
+    /**
+     * The client only receives the newest frame. Any frame waiting in the queue is dropped. The queue capacity is
+     * always one.
+     */
+    LATEST_ONLY,
+}
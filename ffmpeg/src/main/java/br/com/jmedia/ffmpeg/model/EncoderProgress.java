@@ -0,0 +1,71 @@
+package br.com.jmedia.ffmpeg.model;
+
+/**
+ * A snapshot of the progress an ffmpeg process reports on its stderr while it runs
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class EncoderProgress
+{
+    private final long   frames;
+    private final double fps;
+    private final double speed;
+    private final long   droppedFrames;
+    private final long   duplicatedFrames;
+
+    public EncoderProgress (long frames, double fps, double speed, long droppedFrames, long duplicatedFrames)
+    {
+        this.frames = frames;
+        this.fps = fps;
+        this.speed = speed;
+        this.droppedFrames = droppedFrames;
+        this.duplicatedFrames = duplicatedFrames;
+    }
+
+    /**
+     * @return the frames written so far
+     */
+    public long getFrames ()
+    {
+        return frames;
+    }
+
+    /**
+     * @return the frames written per second, averaged by ffmpeg
+     */
+    public double getFps ()
+    {
+        return fps;
+    }
+
+    /**
+     * @return how much faster than realtime the process is, below 1 if it falls behind its input
+     */
+    public double getSpeed ()
+    {
+        return speed;
+    }
+
+    /**
+     * @return the frames ffmpeg dropped to keep the output frame rate
+     */
+    public long getDroppedFrames ()
+    {
+        return droppedFrames;
+    }
+
+    /**
+     * @return the frames ffmpeg duplicated to keep the output frame rate
+     */
+    public long getDuplicatedFrames ()
+    {
+        return duplicatedFrames;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "frame=" + frames + " fps=" + fps + " speed=" + speed + "x drop=" + droppedFrames + " dup=" +
+                duplicatedFrames;
+    }
+}
@@ -0,0 +1,163 @@
+package br.com.jmedia.ffmpeg.model;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted frame whose bytes live in a preallocated heap buffer owned by a {@link FramePool}, so the output
+ * of a process is read straight into its array. The frame goes back to its pool when the last reference is released.
+ * <p>
+ * A client that receives a frame only holds it while the receiving method is running. If it needs the frame after
+ * that, it must {@link #retain()} it and {@link #release()} it when it is done.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class Frame
+{
+    /**
+     * The presentation time of frames whose transport does not carry timestamps
+     */
+    public static final long NO_PRESENTATION_TIME = Long.MIN_VALUE;
+
+    private final FramePool     pool;
+    private final ByteBuffer    buffer;
+    private final ByteBuffer    readOnlyBuffer;
+    private final AtomicInteger references = new AtomicInteger();
+
+    private long   sequenceNumber;
+    private long   presentationTime = NO_PRESENTATION_TIME;
+    private long   arrivalTime;
+    private int    width;
+    private int    height;
+    private String pixelFormat;
+
+    Frame (FramePool pool, int length)
+    {
+        this.pool = pool;
+        buffer = ByteBuffer.allocate(length);
+        readOnlyBuffer = buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * A read only view of the frame bytes, from position zero to the frame length. Each invocation returns a new view,
+     * so clients in different threads do not share the position of the buffer.
+     *
+     * @return the read only view
+     */
+    public ByteBuffer view ()
+    {
+        return readOnlyBuffer.duplicate();
+    }
+
+    /**
+     * The buffer the producer of the frame writes to. Clients must use {@link #view()} instead.
+     *
+     * @return the writable buffer, cleared
+     */
+    public ByteBuffer writableBuffer ()
+    {
+        buffer.clear();
+        return buffer;
+    }
+
+    public int length ()
+    {
+        return buffer.capacity();
+    }
+
+    /**
+     * Reads a byte of the frame without creating a view, for clients that only sample a few bytes of each frame
+     *
+     * @param index the position of the byte in the frame
+     * @return the byte, unsigned
+     */
+    public int unsignedByte (int index)
+    {
+        return readOnlyBuffer.get(index) & 0xFF;
+    }
+
+    /**
+     * Sets what the producer knows about the frame it has just written. Must be invoked before the frame is
+     * delivered to any client.
+     *
+     * @param sequenceNumber   the position of the frame in the stream, starting at zero
+     * @param presentationTime the presentation time in microseconds, or {@link #NO_PRESENTATION_TIME}
+     * @param width            the frame width
+     * @param height           the frame height
+     * @param pixelFormat      the ffmpeg name of the frame pixel format
+     */
+    public void describe (long sequenceNumber, long presentationTime, int width, int height, String pixelFormat)
+    {
+        this.sequenceNumber = sequenceNumber;
+        this.presentationTime = presentationTime;
+        this.width = width;
+        this.height = height;
+        this.pixelFormat = pixelFormat;
+        arrivalTime = System.nanoTime();
+    }
+
+    public long getSequenceNumber ()
+    {
+        return sequenceNumber;
+    }
+
+    /**
+     * The presentation time given by ffmpeg, in microseconds. When the capture uses wall clock timestamps, it is the
+     * time since the epoch at which ffmpeg received the frame from the device.
+     *
+     * @return the presentation time, or {@link #NO_PRESENTATION_TIME} if the transport does not carry it
+     */
+    public long getPresentationTime ()
+    {
+        return presentationTime;
+    }
+
+    /**
+     * The {@link System#nanoTime()} at which the frame was completely read from the process
+     *
+     * @return the arrival time
+     */
+    public long getArrivalTime ()
+    {
+        return arrivalTime;
+    }
+
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    public String getPixelFormat ()
+    {
+        return pixelFormat;
+    }
+
+    public Frame retain ()
+    {
+        references.incrementAndGet();
+        return this;
+    }
+
+    public void release ()
+    {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0)
+        {
+            pool.recycle(this);
+        }
+        else if (remaining < 0)
+        {
+            throw new IllegalStateException("Frame released more times than it was retained!");
+        }
+    }
+
+    void acquired ()
+    {
+        references.set(1);
+    }
+}
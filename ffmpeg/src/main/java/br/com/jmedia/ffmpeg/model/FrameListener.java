@@ -5,5 +5,11 @@ package br.com.jmedia.ffmpeg.model;
  */
 public interface FrameListener
 {
-    boolean frameReceived ();
+    /**
+     * Invoked by the capture thread when a frame has been read, before it is delivered to the clients
+     *
+     * @param frame the frame read
+     * @return false if the capture must stop
+     */
+    boolean frameReceived (Frame frame);
 }
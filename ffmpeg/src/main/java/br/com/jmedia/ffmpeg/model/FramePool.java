@@ -0,0 +1,72 @@
+package br.com.jmedia.ffmpeg.model;
+
+import java.util.ArrayDeque;
+
+/**
+ * A fixed ring of preallocated heap frames. Once the frames are allocated, acquiring and releasing them allocates
+ * nothing.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class FramePool
+{
+    private final int               frameLength;
+    private final ArrayDeque<Frame> freeFrames = new ArrayDeque<>();
+
+    private int frameCount = 0;
+
+    public FramePool (int frameLength, int frameCount)
+    {
+        this.frameLength = frameLength;
+        ensureCapacity(frameCount);
+    }
+
+    public int getFrameLength ()
+    {
+        return frameLength;
+    }
+
+    public synchronized int getFrameCount ()
+    {
+        return frameCount;
+    }
+
+    /**
+     * Allocates new frames until the pool has at least frameCount frames. The pool never shrinks.
+     *
+     * @param frameCount the minimum number of frames of the pool
+     */
+    public synchronized void ensureCapacity (int frameCount)
+    {
+        while (this.frameCount < frameCount)
+        {
+            freeFrames.push(new Frame(this, frameLength));
+            this.frameCount++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Takes a free frame from the pool, waiting until one is released if necessary. The frame is returned with one
+     * reference, that belongs to the caller.
+     *
+     * @return the frame
+     * @throws InterruptedException if interrupted while waiting for a free frame
+     */
+    public synchronized Frame acquire () throws InterruptedException
+    {
+        while (freeFrames.isEmpty())
+        {
+            wait();
+        }
+        Frame frame = freeFrames.pop();
+        frame.acquired();
+        return frame;
+    }
+
+    synchronized void recycle (Frame frame)
+    {
+        freeFrames.push(frame);
+        notifyAll();
+    }
+}
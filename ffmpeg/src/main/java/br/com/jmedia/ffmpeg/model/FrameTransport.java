@@ -0,0 +1,19 @@
+package br.com.jmedia.ffmpeg.model;
+
+/**
+ * How the capture process writes the frames to its output pipe.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public enum FrameTransport
+{
+    /**
+     * Headerless rawvideo. Frames are only delimited by their expected size and carry no timestamp.
+     */
+    RAW,
+    /**
+     * Rawvideo frames in a NUT stream. Each frame carries its size and a wall clock presentation time, so the
+     * capture can measure its latency, detect lost frames and never loses sync with the stream.
+     */
+    NUT,
+}
@@ -0,0 +1,239 @@
+package br.com.jmedia.ffmpeg.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Keeps the last seconds of an H.264 Annex B stream, as whole groups of pictures, so what it keeps can always be
+ * decoded from its first byte. The stream must have an access unit delimiter before each frame and the sequence
+ * parameter set repeated before each key frame, which libx264 writes with {@code aud=1:repeat-headers=1}.
+ * <p>
+ * The oldest groups are dropped when the newer ones already cover the duration, or when the bytes kept would exceed
+ * the memory cap. A group bigger than the cap on its own is dropped too, and the stream is ignored until the next key
+ * frame.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class GopRing
+{
+    private static final int SEQUENCE_PARAMETER_SET  = 7;
+    private static final int ACCESS_UNIT_DELIMITER   = 9;
+    private static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+
+    private final int        maxFrames;
+    private final long       maxBytes;
+    private final Deque<Gop> gops = new ArrayDeque<>();
+
+    /**
+     * The bytes and frames of the complete groups
+     */
+    private long bytes;
+    private long frames;
+
+    /**
+     * The group being received, from its first access unit delimiter
+     */
+    private byte[]  current         = new byte[INITIAL_BUFFER_CAPACITY];
+    private int     currentLength   = 0;
+    private int     currentFrames   = 0;
+    /**
+     * Where the last access unit of the current group starts, or -1
+     */
+    private int     lastAccessUnit  = -1;
+    /**
+     * Where the next start code search begins
+     */
+    private int     scanned         = 0;
+    private int     previousNal     = -1;
+    /**
+     * If the stream is ignored until the next key frame
+     */
+    private boolean waitingKeyFrame = true;
+
+    /**
+     * @param maxFrames the frames the ring must cover, the duration times the frame rate
+     * @param maxBytes  the memory cap
+     */
+    public GopRing (int maxFrames, long maxBytes)
+    {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Appends bytes of the stream, in the order they were written by the encoder
+     */
+    public synchronized void append (byte[] data, int offset, int length)
+    {
+        ensureCapacity(currentLength + length);
+        System.arraycopy(data, offset, current, currentLength, length);
+        currentLength += length;
+        // the nal unit type is the byte after the 00 00 01 start code, so a start code is only handled with it
+        for (int i = Math.max(scanned, 0); i + 3 < currentLength; i++)
+        {
+            if (current[i] == 0 && current[i + 1] == 0 && current[i + 2] == 1)
+            {
+                int start = i > 0 && current[i - 1] == 0 ? i - 1 : i;
+                i -= nalUnitFound(current[i + 3] & 0x1F, start);
+                i += 3;
+            }
+        }
+        scanned = Math.max(0, currentLength - 3);
+        if (waitingKeyFrame)
+        {
+            // keep only what may be the delimiter of the next key frame
+            discard(lastAccessUnit >= 0 ? lastAccessUnit : scanned);
+        }
+        else if (currentLength > maxBytes)
+        {
+            discardCurrent();
+        }
+        trim();
+    }
+
+    /**
+     * Takes everything the ring keeps, up to the last complete frame, and empties it. The stream is then ignored
+     * until the next key frame, so the ring never keeps a group whose key frame was taken.
+     * <p>
+     * While the stream goes on, the last frame received may still be missing bytes, so it is complete only once the
+     * next delimiter arrives. Once the stream ended, the last frame is complete too.
+     *
+     * @param ended if the encoder output ended, so every byte of the stream was appended
+     * @return the stream bytes, empty if the ring keeps nothing
+     */
+    public synchronized byte[] drain (boolean ended)
+    {
+        int currentEnd;
+        if (waitingKeyFrame || lastAccessUnit < 0)
+        {
+            currentEnd = 0;
+        }
+        else
+        {
+            currentEnd = ended ? currentLength : lastAccessUnit;
+        }
+        byte[] stream = new byte[(int) (bytes + currentEnd)];
+        int position = 0;
+        for (Gop gop : gops)
+        {
+            System.arraycopy(gop.stream, 0, stream, position, gop.stream.length);
+            position += gop.stream.length;
+        }
+        System.arraycopy(current, 0, stream, position, currentEnd);
+        gops.clear();
+        bytes = 0;
+        frames = 0;
+        discardCurrent();
+        return stream;
+    }
+
+    /**
+     * @return the bytes kept in complete groups
+     */
+    public synchronized long getBytes ()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return the frames kept in complete groups
+     */
+    public synchronized long getFrames ()
+    {
+        return frames;
+    }
+
+    /**
+     * @return how much the search index must go back, because the bytes before the start were removed
+     */
+    private int nalUnitFound (int type, int start)
+    {
+        int previous = previousNal;
+        previousNal = type;
+        if (type == ACCESS_UNIT_DELIMITER)
+        {
+            lastAccessUnit = start;
+            currentFrames++;
+            return 0;
+        }
+        if (type != SEQUENCE_PARAMETER_SET || previous != ACCESS_UNIT_DELIMITER || lastAccessUnit < 0)
+        {
+            return 0;
+        }
+        // a key frame starts a new group at its delimiter
+        int keyFrame = lastAccessUnit;
+        if (!waitingKeyFrame && keyFrame > 0)
+        {
+            byte[] stream = new byte[keyFrame];
+            System.arraycopy(current, 0, stream, 0, keyFrame);
+            gops.addLast(new Gop(stream, currentFrames - 1));
+            bytes += stream.length;
+            frames += currentFrames - 1;
+        }
+        waitingKeyFrame = false;
+        discard(keyFrame);
+        currentFrames = 1;
+        return keyFrame;
+    }
+
+    /**
+     * Drops the oldest groups while the newer ones cover the duration or the bytes exceed the cap
+     */
+    private void trim ()
+    {
+        while (!gops.isEmpty() && (bytes + currentLength > maxBytes
+                || frames - gops.peekFirst().frames + currentFrames >= maxFrames))
+        {
+            Gop oldest = gops.removeFirst();
+            bytes -= oldest.stream.length;
+            frames -= oldest.frames;
+        }
+    }
+
+    /**
+     * Drops the current group, which is bigger than the cap or was taken, and waits for the next key frame
+     */
+    private void discardCurrent ()
+    {
+        waitingKeyFrame = true;
+        discard(lastAccessUnit >= 0 ? lastAccessUnit : Math.max(0, currentLength - 3));
+        currentFrames = 0;
+    }
+
+    /**
+     * Removes the first bytes of the current group
+     */
+    private void discard (int length)
+    {
+        if (length <= 0)
+        {
+            return;
+        }
+        System.arraycopy(current, length, current, 0, currentLength - length);
+        currentLength -= length;
+        scanned = Math.max(0, scanned - length);
+        lastAccessUnit = lastAccessUnit >= length ? lastAccessUnit - length : -1;
+    }
+
+    private void ensureCapacity (int capacity)
+    {
+        if (capacity > current.length)
+        {
+            byte[] bigger = new byte[Math.max(capacity, current.length * 2)];
+            System.arraycopy(current, 0, bigger, 0, currentLength);
+            current = bigger;
+        }
+    }
+
+    private static class Gop
+    {
+        private final byte[] stream;
+        private final int    frames;
+
+        private Gop (byte[] stream, int frames)
+        {
+            this.stream = stream;
+            this.frames = frames;
+        }
+    }
+}
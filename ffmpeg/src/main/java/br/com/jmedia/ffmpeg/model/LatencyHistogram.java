@@ -0,0 +1,130 @@
+package br.com.jmedia.ffmpeg.model;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations with power of two buckets, in microseconds. Bucket i counts the durations from
+ * 2^i to 2^(i+1) microseconds, so percentiles are an upper bound at most twice the real value, which is enough to
+ * tell a healthy pipeline from a degraded one.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class LatencyHistogram
+{
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      count   = new AtomicLong();
+    private final AtomicLong      total   = new AtomicLong();
+    private final AtomicLong      max     = new AtomicLong();
+
+    /**
+     * Records a duration
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record (long nanos)
+    {
+        long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+        int bucket = micros == 0 ? 0 : Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount ()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return the mean duration in microseconds, or zero if nothing was recorded
+     */
+    public double getMean ()
+    {
+        long count = this.count.get();
+        return count == 0 ? 0 : (double) total.get() / count;
+    }
+
+    /**
+     * @return the longest duration in microseconds
+     */
+    public long getMax ()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return the median duration in microseconds
+     */
+    public long getMedian ()
+    {
+        return percentile(0.5);
+    }
+
+    /**
+     * @return the 99th percentile duration in microseconds
+     */
+    public long getPercentile99 ()
+    {
+        return percentile(0.99);
+    }
+
+    /**
+     * @return the count of each bucket, bucket i counting the durations from 2^i to 2^(i+1) microseconds
+     */
+    public long[] getBuckets ()
+    {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * The upper bound of the bucket holding the given fraction of the durations
+     *
+     * @param fraction the percentile, from 0 to 1
+     * @return the duration in microseconds, or zero if nothing was recorded
+     */
+    public long percentile (double fraction)
+    {
+        long[] counts = getBuckets();
+        long recorded = 0;
+        for (long bucketCount : counts)
+        {
+            recorded += bucketCount;
+        }
+        if (recorded == 0)
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil(recorded * fraction);
+        long accumulated = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            accumulated += counts[i];
+            if (accumulated >= rank)
+            {
+                return Math.min((1L << (i + 1)) - 1, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset ()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
@@ -7,6 +7,8 @@ import br.com.jmedia.core.model.InvalidPixelFormatException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -16,40 +18,178 @@ public class MediaFrameworkSettings
 {
     private final String executableFolder;
 
-    private String crf;
-    private String frameRate;
-    private int    height;
-    private String pinNumber;
+    /**
+     * How much faster than realtime the encoder was with the crf, preset and threads chosen by the encoder
+     * calibration, zero if it was not calibrated
+     */
+    private double         calibratedSpeed;
+    /**
+     * If the encoder calibration ran to its end on this machine, even if it could not choose the encoder settings
+     */
+    private boolean        calibrationAttempted;
+    private String         crf;
+    private String         frameRate;
+    /**
+     * How the capture process writes the frames. Read when the commands are created, so changing it requires
+     * creating them again.
+     */
+    private FrameTransport frameTransport;
+    private int            height;
+    /**
+     * The format the device is asked for, when the device only provides the pixel format after decoding it, like
+     * mjpeg. Null if it is the pixel format.
+     */
+    private String         inputFormat;
+    private String         pinNumber;
+    /**
+     * Read when the commands are created, so changing it requires creating them again.
+     */
+    private PipelineMode   pipelineMode;
     /**
      * The pixel format being provided by the device
      */
-    private String pixelFormat;
-    private String preset;
-    private String videoDevice;
-    private int    width;
+    private String         pixelFormat;
+    private String         preset;
+    private RecordingMode  recordingMode;
+    /**
+     * The length of the recording segments, in seconds
+     */
+    private int            segmentDuration;
+    /**
+     * Where the pre-spawned encoders record until a recording is bound to them, null to not pre-spawn them. The
+     * segments are kept there until they are concatenated, so it must be a persistent folder, in the file system of
+     * the recordings, so the recorded file is renamed rather than copied when it is finished.
+     */
+    private String         stagingFolder;
+    /**
+     * How many frame intervals the capture may wait for a frame before the device is considered stalled
+     */
+    private int            stallFrameIntervals;
+    /**
+     * The encoder threads, zero to let the encoder choose
+     */
+    private String         threads;
+    private String         videoDevice;
+    private int            width;
 
     private List<String> captureCommand;
     private List<String> encodeCommand;
     private List<String> recordCommand;
+    private List<String> pipelineCommand;
+    private List<String> pipelineRecordCommand;
+    private List<String> concatCommand;
+    private List<String> preRecordCommand;
+    private List<String> preRecordRemuxCommand;
 
     //<editor-fold desc="Parameters IDs">
 
     public static final String CRF            = "{crf}";
     public static final String FILE_TO_RECORD = "{fileToRecord}";
     public static final String FRAME_RATE     = "{frameRate}";
+    public static final String INPUT_FORMAT   = "{inputFormat}";
     public static final String PIN_NUMBER     = "{pinNumber}";
     public static final String PIXEL_FORMAT   = "{pixelFormat}";
     public static final String PRESET         = "{preset}";
+    /**
+     * Replaced by the output options and file of the recording mode, which may be more than one argument
+     */
+    public static final String RECORD_OUTPUT  = "{recordOutput}";
+    public static final String SEGMENT_LIST   = "{segmentList}";
+    public static final String THREADS        = "{threads}";
     public static final String VIDEO_DEVICE   = "{videoDevice}";
     public static final String VIDEO_SIZE     = "{videoSize}";
 
     //</editor-fold>
 
+    /**
+     * The segment length used by settings persisted before it existed
+     */
+    public static final int DEFAULT_SEGMENT_DURATION      = 10;
+    /**
+     * The stall frame intervals used by settings persisted before they existed
+     */
+    public static final int DEFAULT_STALL_FRAME_INTERVALS = 5;
+
+    /**
+     * The libx264 presets, from the fastest to the one that compresses best
+     */
+    //noinspection SpellCheckingInspection
+    public static final List<String> PRESETS = Collections.unmodifiableList(Arrays.asList("ultrafast", "superfast",
+            "veryfast", "faster", "fast", "medium", "slow", "slower", "veryslow"));
+
     public MediaFrameworkSettings (String executableFolder)
     {
         this.executableFolder = executableFolder;
     }
 
+    /**
+     * Copies the settings, so they can be changed while the services started with the original ones still read them.
+     * The commands are shared, since they are never changed, only replaced.
+     *
+     * @param settings the settings copied
+     */
+    public MediaFrameworkSettings (MediaFrameworkSettings settings)
+    {
+        executableFolder = settings.executableFolder;
+        calibratedSpeed = settings.calibratedSpeed;
+        calibrationAttempted = settings.calibrationAttempted;
+        crf = settings.crf;
+        frameRate = settings.frameRate;
+        frameTransport = settings.frameTransport;
+        height = settings.height;
+        inputFormat = settings.inputFormat;
+        pinNumber = settings.pinNumber;
+        pipelineMode = settings.pipelineMode;
+        pixelFormat = settings.pixelFormat;
+        preset = settings.preset;
+        recordingMode = settings.recordingMode;
+        segmentDuration = settings.segmentDuration;
+        stagingFolder = settings.stagingFolder;
+        stallFrameIntervals = settings.stallFrameIntervals;
+        threads = settings.threads;
+        videoDevice = settings.videoDevice;
+        width = settings.width;
+        captureCommand = settings.captureCommand;
+        encodeCommand = settings.encodeCommand;
+        recordCommand = settings.recordCommand;
+        pipelineCommand = settings.pipelineCommand;
+        pipelineRecordCommand = settings.pipelineRecordCommand;
+        concatCommand = settings.concatCommand;
+        preRecordCommand = settings.preRecordCommand;
+        preRecordRemuxCommand = settings.preRecordRemuxCommand;
+    }
+
+    /**
+     * @return if the encoder calibration chose the crf, preset and threads for this machine
+     */
+    public boolean isEncoderCalibrated ()
+    {
+        return calibratedSpeed > 0;
+    }
+
+    /**
+     * @return if the encoder calibration ran to its end on this machine, so it is not needed again even if it failed
+     */
+    public boolean isCalibrationAttempted ()
+    {
+        return calibrationAttempted;
+    }
+
+    public void setCalibrationAttempted (boolean calibrationAttempted)
+    {
+        this.calibrationAttempted = calibrationAttempted;
+    }
+
+    public double getCalibratedSpeed ()
+    {
+        return calibratedSpeed;
+    }
+
+    public void setCalibratedSpeed (double calibratedSpeed)
+    {
+        this.calibratedSpeed = calibratedSpeed;
+    }
+
     public String getCrf ()
     {
         return crf;
@@ -70,6 +210,48 @@ public class MediaFrameworkSettings
         this.frameRate = frameRate;
     }
 
+    /**
+     * The frame rate as a number. ffmpeg accepts frame rates as fractions, like 30000/1001.
+     *
+     * @return the frames per second, or zero if the frame rate is not set or not valid
+     */
+    public double frameRateValue ()
+    {
+        if (frameRate == null)
+        {
+            return 0;
+        }
+        try
+        {
+            String[] fraction = frameRate.trim().split("/");
+            double rate = Double.parseDouble(fraction[0]);
+            if (fraction.length > 1)
+            {
+                rate /= Double.parseDouble(fraction[1]);
+            }
+            return rate > 0 && !Double.isInfinite(rate) ? rate : 0;
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * The frame transport of the capture process. Settings persisted before it existed use {@link FrameTransport#RAW}.
+     *
+     * @return the frame transport, never null
+     */
+    public FrameTransport getFrameTransport ()
+    {
+        return frameTransport == null ? FrameTransport.RAW : frameTransport;
+    }
+
+    public void setFrameTransport (FrameTransport frameTransport)
+    {
+        this.frameTransport = frameTransport;
+    }
+
     public int getHeight ()
     {
         return height;
@@ -80,6 +262,21 @@ public class MediaFrameworkSettings
         this.height = height;
     }
 
+    /**
+     * The format the device is asked for
+     *
+     * @return the input format, or the pixel format if the device provides it directly
+     */
+    public String getInputFormat ()
+    {
+        return inputFormat == null ? pixelFormat : inputFormat;
+    }
+
+    public void setInputFormat (String inputFormat)
+    {
+        this.inputFormat = inputFormat;
+    }
+
     public String getPinNumber ()
     {
         return pinNumber;
@@ -90,6 +287,22 @@ public class MediaFrameworkSettings
         this.pinNumber = pinNumber;
     }
 
+    /**
+     * The pipeline mode of the preview and the recording. Settings persisted before it existed use
+     * {@link PipelineMode#SEPARATE_PROCESSES}.
+     *
+     * @return the pipeline mode, never null
+     */
+    public PipelineMode getPipelineMode ()
+    {
+        return pipelineMode == null ? PipelineMode.SEPARATE_PROCESSES : pipelineMode;
+    }
+
+    public void setPipelineMode (PipelineMode pipelineMode)
+    {
+        this.pipelineMode = pipelineMode;
+    }
+
     public String getPixelFormat ()
     {
         return pixelFormat;
@@ -110,6 +323,74 @@ public class MediaFrameworkSettings
         this.preset = preset;
     }
 
+    /**
+     * The recording mode. Read when a recording starts, by record commands with the {@link #RECORD_OUTPUT} output.
+     * Settings persisted before it existed use {@link RecordingMode#SINGLE_FILE}.
+     *
+     * @return the recording mode, never null
+     */
+    public RecordingMode getRecordingMode ()
+    {
+        return recordingMode == null ? RecordingMode.SINGLE_FILE : recordingMode;
+    }
+
+    public void setRecordingMode (RecordingMode recordingMode)
+    {
+        this.recordingMode = recordingMode;
+    }
+
+    /**
+     * @return the length of the recording segments in seconds, {@value #DEFAULT_SEGMENT_DURATION} if it was not set
+     */
+    public int getSegmentDuration ()
+    {
+        return segmentDuration > 0 ? segmentDuration : DEFAULT_SEGMENT_DURATION;
+    }
+
+    public void setSegmentDuration (int segmentDuration)
+    {
+        this.segmentDuration = segmentDuration;
+    }
+
+    public String getStagingFolder ()
+    {
+        return stagingFolder;
+    }
+
+    public void setStagingFolder (String stagingFolder)
+    {
+        this.stagingFolder = stagingFolder;
+    }
+
+    /**
+     * @return the frame intervals the capture may wait for a frame, {@value #DEFAULT_STALL_FRAME_INTERVALS} if it was
+     * not set
+     */
+    public int getStallFrameIntervals ()
+    {
+        return stallFrameIntervals > 0 ? stallFrameIntervals : DEFAULT_STALL_FRAME_INTERVALS;
+    }
+
+    public void setStallFrameIntervals (int stallFrameIntervals)
+    {
+        this.stallFrameIntervals = stallFrameIntervals;
+    }
+
+    /**
+     * The encoder threads. Settings persisted before it existed let the encoder choose.
+     *
+     * @return the threads, never null
+     */
+    public String getThreads ()
+    {
+        return threads == null ? "0" : threads;
+    }
+
+    public void setThreads (String threads)
+    {
+        this.threads = threads;
+    }
+
     public String getVideoDevice ()
     {
         return videoDevice;
@@ -155,11 +436,159 @@ public class MediaFrameworkSettings
         return interpretCommandsList(recordCommand, videoFilePath);
     }
 
+    /**
+     * The record command of an encoder that continues a {@link RecordingMode#SEGMENTED} recording with another preset
+     *
+     * @param videoFilePath the file the recording encoder was started with
+     * @param preset        the preset of the continuation
+     * @param firstSegment  the number of the first segment of the continuation, after the ones already recorded
+     * @return the command
+     */
+    public List<String> getRecordCommand (Path videoFilePath, String preset, int firstSegment)
+    {
+        List<String> command = new ArrayList<>();
+        for (String argument : recordCommand)
+        {
+            if (RECORD_OUTPUT.equals(argument) && getRecordingMode() == RecordingMode.SEGMENTED)
+            {
+                command.add("-segment_start_number");
+                command.add(String.valueOf(firstSegment));
+            }
+            command.add(argument.replace(PRESET, preset));
+        }
+        return interpretCommandsList(command, videoFilePath);
+    }
+
     public void setRecordCommand (List<String> videoRecordCommand)
     {
         this.recordCommand = videoRecordCommand;
     }
 
+    /**
+     * The command of the {@link PipelineMode#SINGLE_PROCESS} pipeline, which writes the preview frames to its output
+     * pipe and, if a file is given, records it too
+     *
+     * @param videoFilePath the file to record, or null to only preview
+     * @return the command, or null if the commands were created without it
+     */
+    public List<String> getPipelineCommand (Path videoFilePath)
+    {
+        List<String> command = videoFilePath == null ? pipelineCommand : pipelineRecordCommand;
+        return command == null ? null : interpretCommandsList(command, videoFilePath);
+    }
+
+    public void setPipelineCommand (List<String> pipelineCommand)
+    {
+        this.pipelineCommand = pipelineCommand;
+    }
+
+    public void setPipelineRecordCommand (List<String> pipelineRecordCommand)
+    {
+        this.pipelineRecordCommand = pipelineRecordCommand;
+    }
+
+    /**
+     * The command that concatenates the segments of a {@link RecordingMode#SEGMENTED} recording into its file
+     *
+     * @param videoFilePath the recorded file
+     * @return the command
+     */
+    public List<String> getConcatCommand (Path videoFilePath)
+    {
+        return getConcatCommand(segmentList(videoFilePath), videoFilePath);
+    }
+
+    /**
+     * The concat command of segments that were not recorded next to the file, by a pre-spawned encoder
+     *
+     * @param segmentList   the list of the segments
+     * @param videoFilePath the file the segments are concatenated into
+     * @return the command
+     */
+    public List<String> getConcatCommand (Path segmentList, Path videoFilePath)
+    {
+        if (concatCommand == null)
+        {
+            return interpretCommandsList(null, videoFilePath);
+        }
+        List<String> command = new ArrayList<>();
+        for (String argument : concatCommand)
+        {
+            command.add(argument.replace(SEGMENT_LIST, segmentList.toString()));
+        }
+        return interpretCommandsList(command, videoFilePath);
+    }
+
+    public void setConcatCommand (List<String> concatCommand)
+    {
+        this.concatCommand = concatCommand;
+    }
+
+    /**
+     * The command of the pre-record encoder, which encodes the captured frames to an H.264 stream on its output pipe
+     *
+     * @param pixelFormat the pixel format of the captured frames, which is not the one of the settings if the frames
+     *                    come from the single process pipeline
+     * @return the command, or null if the commands were created without it
+     */
+    public List<String> getPreRecordCommand (String pixelFormat)
+    {
+        if (preRecordCommand == null)
+        {
+            return null;
+        }
+        List<String> command = new ArrayList<>();
+        for (String argument : preRecordCommand)
+        {
+            command.add(argument.replace(PIXEL_FORMAT, pixelFormat));
+        }
+        return interpretCommandsList(command, null);
+    }
+
+    public void setPreRecordCommand (List<String> preRecordCommand)
+    {
+        this.preRecordCommand = preRecordCommand;
+    }
+
+    /**
+     * The command that writes the H.264 stream of the pre-record encoder to an mp4 file, without encoding it again
+     *
+     * @param videoFilePath the mp4 file
+     * @return the command
+     */
+    public List<String> getPreRecordRemuxCommand (Path videoFilePath)
+    {
+        return interpretCommandsList(preRecordRemuxCommand, videoFilePath);
+    }
+
+    public void setPreRecordRemuxCommand (List<String> preRecordRemuxCommand)
+    {
+        this.preRecordRemuxCommand = preRecordRemuxCommand;
+    }
+
+    /**
+     * @param videoFilePath the recorded file
+     * @return the folder of the segments of a {@link RecordingMode#SEGMENTED} recording, next to the file
+     */
+    public static Path segmentFolder (Path videoFilePath)
+    {
+        String fileName = videoFilePath.getFileName().toString();
+        int extension = fileName.lastIndexOf('.');
+        return videoFilePath.resolveSibling((extension > 0 ? fileName.substring(0, extension) : fileName) +
+                "-segments");
+    }
+
+    /**
+     * @param videoFilePath the recorded file
+     * @return the list of the finished segments of a {@link RecordingMode#SEGMENTED} recording, in the ffconcat
+     * format, which ffmpeg updates whenever a segment is finished
+     */
+    public static Path segmentList (Path videoFilePath)
+    {
+        //noinspection SpellCheckingInspection
+        return segmentFolder(videoFilePath).resolve("segments.ffconcat");
+    }
+
     public List<String> initialCommandsList ()
     {
         List<String> response = new ArrayList<>();
@@ -180,27 +609,29 @@ public class MediaFrameworkSettings
         return response;
     }
 
-    public int bytesPerFrame () throws InvalidPixelFormatException
+    /**
+     * The layout of the frames written by the capture process
+     *
+     * @return the layout of the pixel format
+     * @throws InvalidPixelFormatException if the pixel format is not set or is not registered in {@link PixelLayouts}
+     */
+    public PixelLayout pixelLayout () throws InvalidPixelFormatException
     {
-        int bytesPerPixel;
         if (getPixelFormat() == null)
         {
             throw new InvalidPixelFormatException();
         }
-        switch (getPixelFormat())
+        PixelLayout layout = PixelLayouts.forName(getPixelFormat());
+        if (layout == null)
         {
-            //noinspection SpellCheckingInspection
-            case "yuyv422":
-                // TODO: 06/04/17 set the correct value
-                bytesPerPixel = 4;
-                break;
-            case "bgr0":
-                bytesPerPixel = 4;
-                break;
-            default:
-                throw new InvalidPixelFormatException(getPixelFormat());
+            throw new InvalidPixelFormatException(getPixelFormat());
         }
-        return getWidth() * getHeight() * bytesPerPixel;
+        return layout;
+    }
+
+    public int bytesPerFrame () throws InvalidPixelFormatException
+    {
+        return pixelLayout().bytesPerFrame(getWidth(), getHeight());
     }
 
     private List<String> interpretCommandsList (List<String> commandsList, Path videoFilePath)
@@ -210,12 +641,20 @@ public class MediaFrameworkSettings
         {
             for (String command : commandsList)
             {
+                if (RECORD_OUTPUT.equals(command))
+                {
+                    response.addAll(recordOutput(videoFilePath));
+                    continue;
+                }
                 command = replace(command, CRF, crf);
                 command = replace(command, FILE_TO_RECORD, videoFilePath);
                 command = replace(command, FRAME_RATE, frameRate);
+                command = replace(command, INPUT_FORMAT, getInputFormat());
                 command = replace(command, PIN_NUMBER, pinNumber);
                 command = replace(command, PIXEL_FORMAT, pixelFormat);
                 command = replace(command, PRESET, preset);
+                command = replace(command, SEGMENT_LIST, videoFilePath == null ? null : segmentList(videoFilePath));
+                command = replace(command, THREADS, getThreads());
                 command = replace(command, VIDEO_DEVICE, videoDevice);
                 command = replace(command, VIDEO_SIZE, width + "x" + height);
                 response.add(command);
@@ -224,6 +663,46 @@ public class MediaFrameworkSettings
         return response;
     }
 
+    /**
+     * The output options and file of a recording, according to the recording mode
+     */
+    private List<String> recordOutput (Path videoFilePath)
+    {
+        List<String> output = new ArrayList<>();
+        if (getRecordingMode() == RecordingMode.SEGMENTED)
+        {
+            int duration = getSegmentDuration();
+            // each segment must start with a key frame, so they are forced at the segment boundaries
+            output.add("-force_key_frames");
+            output.add("expr:gte(t,n_forced*" + duration + ")");
+            output.add("-f");
+            output.add("segment");
+            output.add("-segment_time");
+            output.add(String.valueOf(duration));
+            output.add("-segment_format");
+            output.add("mp4");
+            // fragmented, so the segment being written stays playable up to its last fragment of about a second
+            //noinspection SpellCheckingInspection
+            output.add("-segment_format_options");
+            //noinspection SpellCheckingInspection
+            output.add("movflags=+frag_keyframe+empty_moov+default_base_moof:frag_duration=1000000");
+            output.add("-reset_timestamps");
+            output.add("1");
+            output.add("-segment_list");
+            output.add(segmentList(videoFilePath).toString());
+            //noinspection SpellCheckingInspection
+            output.add("-segment_list_type");
+            //noinspection SpellCheckingInspection
+            output.add("ffconcat");
+            output.add(segmentFolder(videoFilePath).resolve("segment-%05d.mp4").toString());
+        }
+        else
+        {
+            output.add(videoFilePath.toString());
+        }
+        return output;
+    }
+
     private String replace (String command, String id, Object value)
     {
         if (value == null)
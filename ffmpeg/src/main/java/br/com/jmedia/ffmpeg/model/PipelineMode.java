@@ -0,0 +1,20 @@
+package br.com.jmedia.ffmpeg.model;
+
+/**
+ * How many ffmpeg processes the preview and the recording use.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public enum PipelineMode
+{
+    /**
+     * A capture process writes the frames to the JVM, which sends them to an encode process if their pixel format
+     * can not be previewed and to a record process while recording.
+     */
+    SEPARATE_PROCESSES,
+    /**
+     * A single process writes preview frames to the JVM and, while recording, also encodes the file. The captured
+     * frames do not go through the JVM to be recorded, but starting and stopping a recording restarts the process.
+     */
+    SINGLE_PROCESS,
+}
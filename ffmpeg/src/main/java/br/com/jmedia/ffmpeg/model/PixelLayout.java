@@ -0,0 +1,142 @@
+package br.com.jmedia.ffmpeg.model;
+
+/**
+ * How the pixels of a raw video pixel format are laid out in the frames ffmpeg writes to a pipe: the planes, in
+ * order, each one with its bytes per pixel and its chroma subsampling. ffmpeg writes the planes one after the other,
+ * without any padding, so the stride of a plane is the width of the plane times its bytes per pixel.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class PixelLayout
+{
+    private final String  name;
+    private final Plane[] planes;
+
+    /**
+     * @param name   the ffmpeg name of the pixel format
+     * @param planes the planes, in the order ffmpeg writes them
+     */
+    public PixelLayout (String name, Plane... planes)
+    {
+        if (planes.length == 0)
+        {
+            throw new IllegalArgumentException("A pixel layout needs at least one plane!");
+        }
+        this.name = name;
+        this.planes = planes.clone();
+    }
+
+    public String getName ()
+    {
+        return name;
+    }
+
+    public int getPlaneCount ()
+    {
+        return planes.length;
+    }
+
+    public Plane getPlane (int plane)
+    {
+        return planes[plane];
+    }
+
+    /**
+     * @return the number of bytes of a row of the plane
+     */
+    public int getStride (int plane, int width)
+    {
+        return planes[plane].width(width) * planes[plane].bytesPerPixel;
+    }
+
+    /**
+     * @return the number of rows of the plane
+     */
+    public int getPlaneHeight (int plane, int height)
+    {
+        return planes[plane].height(height);
+    }
+
+    public int getPlaneLength (int plane, int width, int height)
+    {
+        return getStride(plane, width) * getPlaneHeight(plane, height);
+    }
+
+    /**
+     * @return the position of the first byte of the plane in the frame
+     */
+    public int getPlaneOffset (int plane, int width, int height)
+    {
+        int offset = 0;
+        for (int i = 0; i < plane; i++)
+        {
+            offset += getPlaneLength(i, width, height);
+        }
+        return offset;
+    }
+
+    public int bytesPerFrame (int width, int height)
+    {
+        return getPlaneOffset(planes.length, width, height);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return name;
+    }
+
+    /**
+     * A plane of a pixel layout. Subsampling is a right shift of the frame dimensions, rounded up like ffmpeg does:
+     * a 4:2:0 chroma plane has both shifts set to 1.
+     */
+    public static class Plane
+    {
+        private final int bytesPerPixel;
+        private final int horizontalShift;
+        private final int verticalShift;
+
+        public Plane (int bytesPerPixel)
+        {
+            this(bytesPerPixel, 0, 0);
+        }
+
+        /**
+         * @param bytesPerPixel   the bytes of a pixel of the plane. A packed 4:2:2 pixel is 2 bytes and an interleaved
+         *                        chroma plane pixel has both chroma samples.
+         * @param horizontalShift the horizontal subsampling of the plane
+         * @param verticalShift   the vertical subsampling of the plane
+         */
+        public Plane (int bytesPerPixel, int horizontalShift, int verticalShift)
+        {
+            this.bytesPerPixel = bytesPerPixel;
+            this.horizontalShift = horizontalShift;
+            this.verticalShift = verticalShift;
+        }
+
+        public int getBytesPerPixel ()
+        {
+            return bytesPerPixel;
+        }
+
+        public int getHorizontalShift ()
+        {
+            return horizontalShift;
+        }
+
+        public int getVerticalShift ()
+        {
+            return verticalShift;
+        }
+
+        private int width (int frameWidth)
+        {
+            return -((-frameWidth) >> horizontalShift);
+        }
+
+        private int height (int frameHeight)
+        {
+            return -((-frameHeight) >> verticalShift);
+        }
+    }
+}
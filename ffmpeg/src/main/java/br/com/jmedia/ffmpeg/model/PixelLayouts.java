@@ -0,0 +1,88 @@
+package br.com.jmedia.ffmpeg.model;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registry of the pixel layouts, by their ffmpeg names. It knows the formats ffmpeg emits for the supported
+ * devices, and more can be registered before a capture starts.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public final class PixelLayouts
+{
+    private static final Map<String, PixelLayout> LAYOUTS = new ConcurrentHashMap<>();
+
+    static
+    {
+        PixelLayout.Plane luma = new PixelLayout.Plane(1);
+        PixelLayout.Plane chroma420 = new PixelLayout.Plane(1, 1, 1);
+        PixelLayout.Plane chroma422 = new PixelLayout.Plane(1, 1, 0);
+        PixelLayout.Plane interleavedChroma420 = new PixelLayout.Plane(2, 1, 1);
+        //noinspection SpellCheckingInspection
+        for (String packed422 : new String[]{"yuyv422", "uyvy422", "yvyu422"})
+        {
+            register(new PixelLayout(packed422, new PixelLayout.Plane(2)));
+        }
+        //noinspection SpellCheckingInspection
+        for (String planar420 : new String[]{"yuv420p", "yuvj420p"})
+        {
+            register(new PixelLayout(planar420, luma, chroma420, chroma420));
+        }
+        //noinspection SpellCheckingInspection
+        for (String planar422 : new String[]{"yuv422p", "yuvj422p"})
+        {
+            register(new PixelLayout(planar422, luma, chroma422, chroma422));
+        }
+        //noinspection SpellCheckingInspection
+        for (String planar444 : new String[]{"yuv444p", "yuvj444p"})
+        {
+            register(new PixelLayout(planar444, luma, luma, luma));
+        }
+        for (String semiPlanar420 : new String[]{"nv12", "nv21"})
+        {
+            register(new PixelLayout(semiPlanar420, luma, interleavedChroma420));
+        }
+        register(new PixelLayout("p010le", new PixelLayout.Plane(2), new PixelLayout.Plane(4, 1, 1)));
+        register(new PixelLayout("gray", luma));
+        for (String rgb24 : new String[]{"rgb24", "bgr24"})
+        {
+            register(new PixelLayout(rgb24, new PixelLayout.Plane(3)));
+        }
+        for (String rgb32 : new String[]{"bgr0", "bgra", "rgb0", "rgba", "0rgb", "argb", "0bgr", "abgr"})
+        {
+            register(new PixelLayout(rgb32, new PixelLayout.Plane(4)));
+        }
+    }
+
+    private PixelLayouts ()
+    {
+    }
+
+    /**
+     * Registers a layout, replacing the one with the same name if there is one
+     *
+     * @param layout the layout
+     */
+    public static void register (PixelLayout layout)
+    {
+        LAYOUTS.put(layout.getName(), layout);
+    }
+
+    /**
+     * @param pixelFormat the ffmpeg name of the pixel format
+     * @return the layout, or null if the pixel format is not registered or is null
+     */
+    public static PixelLayout forName (String pixelFormat)
+    {
+        return pixelFormat == null ? null : LAYOUTS.get(pixelFormat);
+    }
+
+    public static Set<String> names ()
+    {
+        return Collections.unmodifiableSet(new TreeSet<>(LAYOUTS.keySet()));
+    }
+}
@@ -0,0 +1,49 @@
+package br.com.jmedia.ffmpeg.model;
+
+/**
+ * How much the capture pipeline gave up to keep up with the capture under load, from nothing to the most. Each level
+ * keeps what the previous ones gave up.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public enum QualityLevel
+{
+    /**
+     * Every frame is previewed and recorded as the settings say.
+     */
+    FULL,
+    /**
+     * The preview receives half of the frames.
+     */
+    REDUCED_PREVIEW_RATE,
+    /**
+     * The preview frames are downscaled twice as much as the view needs.
+     */
+    REDUCED_PREVIEW_SIZE,
+    /**
+     * A segmented recording continues with the preset after the one of the settings.
+     */
+    FASTER_PRESET,
+    /**
+     * A segmented recording continues with the fastest preset.
+     */
+    FASTEST_PRESET;
+
+    /**
+     * @param settingsPreset the preset of the settings
+     * @return the preset the recording must be encoded with at this level
+     */
+    public String preset (String settingsPreset)
+    {
+        int index = MediaFrameworkSettings.PRESETS.indexOf(settingsPreset);
+        switch (this)
+        {
+            case FASTEST_PRESET:
+                return MediaFrameworkSettings.PRESETS.get(0);
+            case FASTER_PRESET:
+                return index > 0 ? MediaFrameworkSettings.PRESETS.get(index - 1) : settingsPreset;
+            default:
+                return settingsPreset;
+        }
+    }
+}
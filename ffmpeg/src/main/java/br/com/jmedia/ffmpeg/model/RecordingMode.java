@@ -0,0 +1,21 @@
+package br.com.jmedia.ffmpeg.model;
+
+/**
+ * How a recording is written to the disk.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public enum RecordingMode
+{
+    /**
+     * A single mp4 file, whose index is only written when the recording stops. If the encoder or the JVM dies, the
+     * file can not be played.
+     */
+    SINGLE_FILE,
+    /**
+     * Fixed length fragmented mp4 segments, in a folder next to the file, concatenated into the file without
+     * encoding again when the recording stops. If the encoder or the JVM dies, every segment stays playable up to
+     * its last fragment.
+     */
+    SEGMENTED,
+}
@@ -102,6 +102,12 @@ public class AvFoundation extends MediaFramework
         return MediaFrameworkSettings.VIDEO_DEVICE + ":none";
     }
 
+    @Override
+    String inputFormatCommand ()
+    {
+        return "-pixel_format";
+    }
+
     @Override
     String crossbarVideoInputPinNumberCommand ()
     {
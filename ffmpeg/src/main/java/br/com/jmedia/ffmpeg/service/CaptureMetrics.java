@@ -0,0 +1,276 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.ClientMetrics;
+import br.com.jmedia.ffmpeg.model.EncoderProgress;
+import br.com.jmedia.ffmpeg.model.LatencyHistogram;
+import br.com.jmedia.ffmpeg.model.QualityLevel;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of the capture pipeline: the frames read from the capture process, how the clients keep up with them,
+ * how long the preview takes to convert and show them, how long a recording takes to start, how fast its encoder
+ * goes and how much quality was given up under load. The counters of the current capture are read from its
+ * {@link CaptureService}, so they cost nothing to the capture thread.
+ * <p>
+ * Registered as an MBean named {@value #OBJECT_NAME} when the first capture starts.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+@Singleton
+public class CaptureMetrics implements CaptureMetricsMXBean
+{
+    private @Inject Logger logger;
+
+    public static final String OBJECT_NAME = "br.com.jmedia:type=CaptureMetrics";
+
+    private final LatencyHistogram readTime         = new LatencyHistogram();
+    private final LatencyHistogram conversionTime   = new LatencyHistogram();
+    private final LatencyHistogram presentationTime = new LatencyHistogram();
+    private final LatencyHistogram recordStartTime  = new LatencyHistogram();
+    private final AtomicLong       readStalls       = new AtomicLong();
+    private final AtomicLong       qualityChanges   = new AtomicLong();
+    private final AtomicLong       recordingDrops   = new AtomicLong();
+
+    private volatile QualityLevel    qualityLevel = QualityLevel.FULL;
+    /**
+     * The last progress reported by the recording encoder, null if none was reported in this capture
+     */
+    private volatile EncoderProgress encoderProgress;
+
+    private volatile CaptureService captureService;
+
+    private boolean registered = false;
+
+    /**
+     * Makes the metrics read the counters of a new capture and resets the histograms
+     *
+     * @param captureService the capture
+     */
+    void captureStarted (CaptureService captureService)
+    {
+        this.captureService = captureService;
+        qualityLevel = QualityLevel.FULL;
+        encoderProgress = null;
+        reset();
+        register();
+    }
+
+    void captureStopped (CaptureService captureService)
+    {
+        if (this.captureService == captureService)
+        {
+            this.captureService = null;
+        }
+    }
+
+    void readCompleted (long nanos, boolean stalled)
+    {
+        readTime.record(nanos);
+        if (stalled)
+        {
+            readStalls.incrementAndGet();
+        }
+    }
+
+    public void conversionCompleted (long nanos)
+    {
+        conversionTime.record(nanos);
+    }
+
+    public void presentationCompleted (long nanos)
+    {
+        presentationTime.record(nanos);
+    }
+
+    void recordStartCompleted (long nanos)
+    {
+        recordStartTime.record(nanos);
+    }
+
+    void recordingFramesDropped (int frames)
+    {
+        recordingDrops.addAndGet(frames);
+    }
+
+    void encoderProgress (EncoderProgress encoderProgress)
+    {
+        this.encoderProgress = encoderProgress;
+    }
+
+    void qualityChanged (QualityLevel qualityLevel)
+    {
+        this.qualityLevel = qualityLevel;
+        qualityChanges.incrementAndGet();
+    }
+
+    @Override
+    public boolean isCapturing ()
+    {
+        return captureService != null;
+    }
+
+    @Override
+    public long getCapturedFrames ()
+    {
+        CaptureService captureService = this.captureService;
+        return captureService == null ? 0 : captureService.getCapturedFrames();
+    }
+
+    @Override
+    public long getLostFrames ()
+    {
+        CaptureService captureService = this.captureService;
+        return captureService == null ? 0 : captureService.getLostFrames();
+    }
+
+    @Override
+    public long getSkippedFrames ()
+    {
+        CaptureService captureService = this.captureService;
+        return captureService == null ? 0 : captureService.getSkippedFrames();
+    }
+
+    @Override
+    public long getCaptureStalls ()
+    {
+        CaptureService captureService = this.captureService;
+        return captureService == null ? 0 : captureService.getStalls();
+    }
+
+    @Override
+    public long getReadStalls ()
+    {
+        return readStalls.get();
+    }
+
+    @Override
+    public long getCaptureLatency ()
+    {
+        CaptureService captureService = this.captureService;
+        return captureService == null ? -1 : captureService.getCaptureLatency();
+    }
+
+    @Override
+    public LatencyHistogram getReadTime ()
+    {
+        return readTime;
+    }
+
+    @Override
+    public LatencyHistogram getConversionTime ()
+    {
+        return conversionTime;
+    }
+
+    @Override
+    public LatencyHistogram getPresentationTime ()
+    {
+        return presentationTime;
+    }
+
+    @Override
+    public LatencyHistogram getRecordStartTime ()
+    {
+        return recordStartTime;
+    }
+
+    @Override
+    public double getEncoderFps ()
+    {
+        EncoderProgress encoderProgress = this.encoderProgress;
+        return encoderProgress == null ? 0 : encoderProgress.getFps();
+    }
+
+    @Override
+    public double getEncoderSpeed ()
+    {
+        EncoderProgress encoderProgress = this.encoderProgress;
+        return encoderProgress == null ? 0 : encoderProgress.getSpeed();
+    }
+
+    @Override
+    public long getEncoderDroppedFrames ()
+    {
+        EncoderProgress encoderProgress = this.encoderProgress;
+        return encoderProgress == null ? 0 : encoderProgress.getDroppedFrames();
+    }
+
+    @Override
+    public long getEncoderDuplicatedFrames ()
+    {
+        EncoderProgress encoderProgress = this.encoderProgress;
+        return encoderProgress == null ? 0 : encoderProgress.getDuplicatedFrames();
+    }
+
+    @Override
+    public long getRecordingDroppedFrames ()
+    {
+        return recordingDrops.get();
+    }
+
+    @Override
+    public String getQualityLevel ()
+    {
+        return qualityLevel.name();
+    }
+
+    @Override
+    public long getQualityChanges ()
+    {
+        return qualityChanges.get();
+    }
+
+    @Override
+    public List<ClientMetrics> getClients ()
+    {
+        List<ClientMetrics> clients = new ArrayList<>();
+        CaptureService captureService = this.captureService;
+        if (captureService != null)
+        {
+            for (DeliveryLane lane : captureService.getLanes())
+            {
+                LatencyHistogram processingTime = lane.getProcessingTime();
+                clients.add(new ClientMetrics(lane.getClient().getClass().getSimpleName(), lane.getPolicy().name(),
+                        lane.isPaused(), lane.getQueuedFrames(), lane.getDeliveredFrames(), lane.getDroppedFrames(),
+                        processingTime.getMean(), processingTime.getMax(), processingTime.getPercentile99()));
+            }
+        }
+        return clients;
+    }
+
+    @Override
+    public void reset ()
+    {
+        readTime.reset();
+        conversionTime.reset();
+        presentationTime.reset();
+        recordStartTime.reset();
+        readStalls.set(0);
+        recordingDrops.set(0);
+    }
+
+    private synchronized void register ()
+    {
+        if (!registered)
+        {
+            registered = true;
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            }
+            catch (JMException e)
+            {
+                logger.warn("Could not register the capture metrics MBean!", e);
+            }
+        }
+    }
+}
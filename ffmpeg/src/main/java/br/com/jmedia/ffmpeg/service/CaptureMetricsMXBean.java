@@ -0,0 +1,98 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.ClientMetrics;
+import br.com.jmedia.ffmpeg.model.LatencyHistogram;
+
+import java.util.List;
+
+/**
+ * The capture pipeline metrics exposed over JMX. Durations are in microseconds.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public interface CaptureMetricsMXBean
+{
+    boolean isCapturing ();
+
+    long getCapturedFrames ();
+
+    long getLostFrames ();
+
+    long getSkippedFrames ();
+
+    /**
+     * @return the number of times the capture process stopped writing frames and was destroyed
+     */
+    long getCaptureStalls ();
+
+    /**
+     * @return the number of pipe reads that took more than twice the frame interval
+     */
+    long getReadStalls ();
+
+    long getCaptureLatency ();
+
+    /**
+     * @return how long the capture waited for each frame on the process output pipe
+     */
+    LatencyHistogram getReadTime ();
+
+    /**
+     * @return how long the encode process took to convert each frame to the preview pixel format
+     */
+    LatencyHistogram getConversionTime ();
+
+    /**
+     * @return how long the preview took to write each frame to its image
+     */
+    LatencyHistogram getPresentationTime ();
+
+    /**
+     * @return how long each recording took from being started to its first frame reaching the encoder
+     */
+    LatencyHistogram getRecordStartTime ();
+
+    /**
+     * @return the frames per second the recording encoder reports, zero if it reported none
+     */
+    double getEncoderFps ();
+
+    /**
+     * @return how much faster than realtime the recording encoder reports it goes, below 1 if it falls behind
+     */
+    double getEncoderSpeed ();
+
+    /**
+     * @return the frames the recording encoder dropped to keep its frame rate
+     */
+    long getEncoderDroppedFrames ();
+
+    /**
+     * @return the frames the recording encoder duplicated to keep its frame rate
+     */
+    long getEncoderDuplicatedFrames ();
+
+    /**
+     * @return the frames the recordings did not get because their encoder fell behind the capture, which were
+     * replaced by the frame before them
+     */
+    long getRecordingDroppedFrames ();
+
+    /**
+     * @return the name of the current {@link br.com.jmedia.ffmpeg.model.QualityLevel}
+     */
+    String getQualityLevel ();
+
+    /**
+     * @return how many times the quality level changed
+     */
+    long getQualityChanges ();
+
+    List<ClientMetrics> getClients ();
+
+    /**
+     * Resets the histograms and the read stalls and recording dropped frames counters. The frame counters belong to
+     * the capture and are reset when a capture starts.
+     */
+    void reset ();
+}
@@ -2,91 +2,612 @@ package br.com.jmedia.ffmpeg.service;
 
 import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
 import br.com.jmedia.core.control.MediaFacadeClient;
+import br.com.jmedia.ffmpeg.model.DeliveryPolicy;
+import br.com.jmedia.ffmpeg.model.Frame;
 import br.com.jmedia.ffmpeg.model.FrameListener;
-import br.com.jmedia.ffmpeg.model.NullFrameListener;
+import br.com.jmedia.ffmpeg.model.FramePool;
+import br.com.jmedia.ffmpeg.model.PixelLayout;
+import br.com.jmedia.ffmpeg.model.PixelLayouts;
 import br.com.jmedia.core.model.InvalidPixelFormatException;
 import org.slf4j.Logger;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
+ * Reads the frames of a capture process and delivers them to its clients.
+ * <p>
+ * The capture may be {@link #setRestartPolicy(int, Runnable) supervised}: when its process exits without being
+ * stopped, another one is started with the same command after a growing delay, and the clients go on receiving its
+ * frames as if nothing happened. The failure is only reported to the facade client when the restarts in a row run
+ * out.
+ * <p>
+ * A {@link FrameWatchdog} destroys a process that stops writing frames without exiting, for a few frame intervals,
+ * so a stalled device is restarted, or reported as a lost connection, like a process that exited. A process that
+ * {@link #setWritesFile(boolean) writes a file} is given longer, and is asked to quit before it is destroyed, so the
+ * file is finished.
+ *
  * @author Lima Filho, A. L. - amsterdam@luvva.com.br
  */
-public class CaptureService implements ProcessClient
+public class CaptureService
 {
-    private @Inject Logger         logger;
-    private @Inject ProcessUtils   processUtils;
-    private @Inject MediaFramework mediaFramework;
+    private @Inject Logger            logger;
+    private @Inject ProcessUtils      processUtils;
+    private @Inject ProcessSupervisor supervisor;
+    private @Inject MediaFramework    mediaFramework;
+    private @Inject CaptureMetrics    metrics;
 
-    private final List<CaptureServiceClient> clients       = new ArrayList<>();
-    private       FrameListener              frameListener = new NullFrameListener();
+    /**
+     * The frames the capture thread needs for itself. The pool grows with the frames each delivery lane may hold.
+     */
+    private static final int FRAME_POOL_SIZE = 2;
+
+    /**
+     * The delay before the first restart of a supervised capture, doubled by each restart in a row
+     */
+    private static final long INITIAL_RESTART_DELAY = 500;
+    private static final long MAX_RESTART_DELAY     = 8000;
+    /**
+     * A process that ran this long before exiting was not failing in a row, so the restarts are counted again
+     */
+    private static final long STABLE_PROCESS_TIME   = TimeUnit.SECONDS.toNanos(60);
+    /**
+     * The shortest wait for a frame taken for a stall of a process that writes a file, in milliseconds, so a device
+     * that hiccups does not end the recording
+     */
+    private static final long WRITING_STALL_TIMEOUT = 2000;
+    /**
+     * How long a stalled process that writes a file has to quit before it is destroyed, in milliseconds
+     */
+    private static final long STALL_QUIT_TIMEOUT    = 3000;
+
+    /**
+     * Written only by the capture thread. Copy on write, so other threads can read the counters of the lanes.
+     */
+    private final List<DeliveryLane>       lanes    = new CopyOnWriteArrayList<>();
+    /**
+     * Commands from any thread, applied by the capture thread at the next frame boundary, in the order they were
+     * issued.
+     */
+    private final Queue<CaptureCommand<?>> commands = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean captureStopped   = false;
+    /**
+     * If the capture was stopped or asked to quit, so its process exiting is not a failure
+     */
+    private volatile boolean stopRequested    = false;
+    private volatile long    capturedFrames   = 0;
+    private volatile long    lostFrames       = 0;
+    private volatile long    captureLatency   = -1;
+    private volatile long    presentationTime = Frame.NO_PRESENTATION_TIME;
+
+    private volatile CaptureProcess captureProcess;
+    private volatile FrameWatchdog  watchdog;
 
     private ProcessUtils.ProcessManager processManager;
+    private List<String>                command;
+    private FrameReader                 frameReader;
+    private FramePool                   framePool;
+    private double                      frameInterval;
     private MediaFrameworkSettings      settings;
+    private String                      pixelFormat;
     private MediaFacadeClient           mediaFacadeClient;
+    private int                         maxRestarts = 0;
+    private Runnable                    restartListener;
+    private boolean                     writesFile  = false;
+    /**
+     * Read and written by the capture thread only
+     */
+    private int                         restarts    = 0;
+    private long                        processStartTime;
 
     public void start (MediaFrameworkSettings settings, MediaFacadeClient facadeClient) throws IOException
+    {
+        start(settings, settings.getCaptureCommand(), settings.getPixelFormat(), facadeClient);
+    }
+
+    /**
+     * Starts a capture process other than the one of the settings, like the one of the single process pipeline
+     *
+     * @param settings     the settings of the device
+     * @param command      the command of the process, which writes the frames to its output pipe
+     * @param pixelFormat  the pixel format of the frames written to the pipe
+     * @param facadeClient the client notified of the errors
+     * @throws IOException if the process could not be started
+     */
+    public void start (MediaFrameworkSettings settings, List<String> command, String pixelFormat,
+            MediaFacadeClient facadeClient) throws IOException
     {
         this.mediaFacadeClient = facadeClient;
         this.settings = settings;
-        processManager = processUtils.createManager(settings.getCaptureCommand(), this);
+        this.pixelFormat = pixelFormat;
+        this.command = command;
+        startProcess();
+        metrics.captureStarted(this);
         new CaptureServiceThread().start();
     }
 
-    public void stop ()
+    /**
+     * Makes the capture restart its process when it exits without being stopped. Must be set before the capture is
+     * started.
+     *
+     * @param maxRestarts     how many restarts in a row are tried before the device connection is reported lost,
+     *                        zero to report the failure right away
+     * @param restartListener notified, in the capture thread, after the process is restarted, null if none. It must
+     *                        not wait for the capture.
+     */
+    public void setRestartPolicy (int maxRestarts, Runnable restartListener)
+    {
+        this.maxRestarts = maxRestarts;
+        this.restartListener = restartListener;
+    }
+
+    /**
+     * Makes the capture take its process for one that writes a file besides the frames, like the single process
+     * pipeline while it records. A stall must then last longer, and the process is asked to quit before it is
+     * destroyed, so it finishes the file. Must be set before the capture is started.
+     *
+     * @param writesFile if the process writes a file
+     */
+    public void setWritesFile (boolean writesFile)
+    {
+        this.writesFile = writesFile;
+    }
+
+    /**
+     * Stops the capture at the next frame. Every client is notified that the capture stopped.
+     *
+     * @return a future completed when the command is applied
+     */
+    public CompletableFuture<Void> stop ()
+    {
+        stopRequested = true;
+        return submit(new StopCommand());
+    }
+
+    /**
+     * Asks the capture process to quit, as if q was typed in its console, so it finishes the files it is writing
+     * before it exits. The frames it writes until then are still delivered, and the clients are notified that the
+     * capture stopped when its output ends.
+     *
+     * @return a future completed when the process exits
+     */
+    public CompletableFuture<Void> quit ()
+    {
+        stopRequested = true;
+        CaptureProcess captureProcess = this.captureProcess;
+        askToQuit(captureProcess);
+        return captureProcess.exited;
+    }
+
+    /**
+     * Adds a client that receives every frame, making the capture wait if the client can not keep up with it.
+     *
+     * @param client the client
+     * @return a future completed when the client is added
+     */
+    public CompletableFuture<Void> addClient (CaptureServiceClient client)
+    {
+        return addClient(client, DeliveryPolicy.BLOCK, 1);
+    }
+
+    /**
+     * Adds a client that receives the frames in its own thread, through a queue. It will receive the next frame.
+     *
+     * @param client   the client
+     * @param policy   what to do with the new frames when the queue is full
+     * @param capacity the number of frames the queue holds
+     * @return a future completed when the client is added
+     */
+    public CompletableFuture<Void> addClient (CaptureServiceClient client, DeliveryPolicy policy, int capacity)
+    {
+        return submit(new AddClientCommand(new DeliveryLane(processName(), client, policy, capacity,
+                this::laneFailed)));
+    }
+
+    /**
+     * Removes a client. The client is not notified that the capture stopped.
+     *
+     * @param client the client
+     * @return a future completed when the client is removed
+     */
+    public CompletableFuture<Void> removeClient (CaptureServiceClient client)
+    {
+        return submit(new RemoveClientCommand(client)).thenApply(lane -> null);
+    }
+
+    /**
+     * Removes a client after it receives the frames already queued for it. The client is not notified that the
+     * capture stopped.
+     *
+     * @param client the client
+     * @return a future completed when the client received its last frame
+     */
+    public CompletableFuture<Void> drainClient (CaptureServiceClient client)
+    {
+        return submit(new RemoveClientCommand(client)).thenCompose(lane -> lane == null ?
+                CompletableFuture.completedFuture(null) : lane.getFinished());
+    }
+
+    /**
+     * Stops delivering frames to a client, without removing it.
+     *
+     * @param client the client
+     * @return a future completed when the client is paused
+     */
+    public CompletableFuture<Void> pauseClient (CaptureServiceClient client)
+    {
+        return submit(new PauseClientCommand(client, true));
+    }
+
+    /**
+     * Resumes delivering frames to a client that was paused.
+     *
+     * @param client the client
+     * @return a future completed when the client is resumed
+     */
+    public CompletableFuture<Void> resumeClient (CaptureServiceClient client)
+    {
+        return submit(new PauseClientCommand(client, false));
+    }
+
+    /**
+     * Delivers only one of each few frames to a client, so a client that can not keep up does less work instead of
+     * falling behind. The skipped frames are not counted as dropped.
+     *
+     * @param client       the client
+     * @param frameDivisor the client receives one of each this many frames, 1 to receive them all
+     * @return a future completed when the divisor is applied
+     */
+    public CompletableFuture<Void> setFrameDivisor (CaptureServiceClient client, int frameDivisor)
+    {
+        return submit(new FrameDivisorCommand(client, frameDivisor));
+    }
+
+    /**
+     * @param client the client
+     * @return the lane delivering the frames to the client, or null if it is not a client
+     */
+    public DeliveryLane getLane (CaptureServiceClient client)
+    {
+        return findLane(client);
+    }
+
+    /**
+     * Copies the next captured frame.
+     *
+     * @return a future completed with a copy of the next frame
+     */
+    public CompletableFuture<ByteBuffer> snapshot ()
+    {
+        return submit(new SnapshotCommand());
+    }
+
+    /**
+     * @return the pixel format of the captured frames
+     */
+    public String getPixelFormat ()
+    {
+        return pixelFormat;
+    }
+
+    /**
+     * The delivery lanes of the current clients, with their delivered and dropped frames counters
+     *
+     * @return an unmodifiable view of the lanes
+     */
+    public List<DeliveryLane> getLanes ()
+    {
+        return Collections.unmodifiableList(lanes);
+    }
+
+    /**
+     * The number of frames the client did not receive because it could not keep up with the capture
+     *
+     * @param client the client
+     * @return the number of dropped frames, or zero if the client has not been added
+     */
+    public long getDroppedFrames (CaptureServiceClient client)
+    {
+        DeliveryLane lane = findLane(client);
+        return lane == null ? 0 : lane.getDroppedFrames();
+    }
+
+    /**
+     * The number of frames read from the capture process
+     *
+     * @return the number of captured frames
+     */
+    public long getCapturedFrames ()
+    {
+        return capturedFrames;
+    }
+
+    /**
+     * The number of frames the device or ffmpeg dropped before they reached the capture, inferred from the gaps
+     * between the presentation times of consecutive frames. Always zero if the frame transport has no timestamps.
+     *
+     * @return the number of lost frames
+     */
+    public long getLostFrames ()
+    {
+        return lostFrames;
+    }
+
+    /**
+     * The number of frames that did not fit the capture frames, for example because the device changed its
+     * resolution. Always zero if the frame transport does not describe the frames.
+     *
+     * @return the number of skipped frames
+     */
+    public long getSkippedFrames ()
     {
-        frameListener = new StopProcessFrameListener();
+        FrameReader frameReader = this.frameReader;
+        return frameReader == null ? 0 : frameReader.getSkippedFrames();
     }
 
-    public void addClient (CaptureServiceClient client)
+    /**
+     * The number of times the capture process stopped writing frames without exiting
+     *
+     * @return the number of stalls
+     */
+    public long getStalls ()
     {
-        frameListener = new AddClientFrameListener(client);
+        FrameWatchdog watchdog = this.watchdog;
+        return watchdog == null ? 0 : watchdog.getStalls();
     }
 
-    public void removeClient (CaptureServiceClient client)
+    /**
+     * The time between ffmpeg receiving the last frame from the device and the capture reading it from the pipe
+     *
+     * @return the latency in microseconds, or -1 if the frame transport has no timestamps
+     */
+    public long getCaptureLatency ()
     {
-        frameListener = new RemoveClientFrameListener(client);
+        return captureLatency;
     }
 
-    @Override
     public String processName ()
     {
         return "Video capture process";
     }
 
-    @Override
-    public void processExited (int exitCode)
+    private <T> CompletableFuture<T> submit (CaptureCommand<T> command)
+    {
+        commands.add(command);
+        if (captureStopped)
+        {
+            // the capture thread will not drain the queue anymore
+            cancelPendingCommands();
+        }
+        return command.future;
+    }
+
+    /**
+     * Applies every pending command. Invoked by the capture thread only.
+     *
+     * @return false if the capture must stop
+     */
+    private boolean applyCommands (Frame frame)
+    {
+        boolean keepCapturing = true;
+        CaptureCommand<?> command;
+        while (keepCapturing && (command = commands.poll()) != null)
+        {
+            keepCapturing = command.frameReceived(frame);
+        }
+        return keepCapturing;
+    }
+
+    private void cancelPendingCommands ()
+    {
+        CaptureCommand<?> command;
+        while ((command = commands.poll()) != null)
+        {
+            command.future.cancel(false);
+        }
+    }
+
+    private void startProcess () throws IOException
+    {
+        CaptureProcess starting = new CaptureProcess();
+        starting.processManager = processUtils.createManager(command, starting);
+        processManager = starting.processManager;
+        captureProcess = starting;
+        processStartTime = System.nanoTime();
+    }
+
+    /**
+     * @return if a process exiting now would be restarted, instead of reported as a failure
+     */
+    private boolean isSupervised ()
+    {
+        return maxRestarts > 0 && !stopRequested;
+    }
+
+    /**
+     * Restarts the process that exited without being stopped, if the capture is supervised, waiting longer with each
+     * restart in a row. Invoked by the capture thread only.
+     *
+     * @return true if a new process was started, false if the capture must stop
+     * @throws InterruptedException if interrupted while waiting to restart
+     */
+    private boolean restart () throws InterruptedException
+    {
+        if (!isSupervised())
+        {
+            if (captureProcess.stalled && !stopRequested)
+            {
+                mediaFacadeClient.deviceConnectionLost();
+            }
+            return false;
+        }
+        if (System.nanoTime() - processStartTime > STABLE_PROCESS_TIME)
+        {
+            restarts = 0;
+        }
+        while (restarts < maxRestarts)
+        {
+            long delay = Math.min(INITIAL_RESTART_DELAY << restarts, MAX_RESTART_DELAY);
+            restarts++;
+            logger.warn(processName() + " exited unexpectedly! Restarting it in " + delay + " ms, attempt " +
+                    restarts + " of " + maxRestarts + "...");
+            Thread.sleep(delay);
+            if (stopRequested)
+            {
+                return false;
+            }
+            try
+            {
+                startProcess();
+                watchdog.processStarted();
+                // the gap is not lost frames
+                presentationTime = Frame.NO_PRESENTATION_TIME;
+                if (restartListener != null)
+                {
+                    restartListener.run();
+                }
+                return true;
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not restart " + processName() + "!", e);
+            }
+        }
+        logger.error(processName() + " failed " + restarts + " times in a row! Giving up...");
+        mediaFacadeClient.deviceConnectionLost();
+        return false;
+    }
+
+    /**
+     * Destroys the process that stopped writing frames, so its output ends and the capture thread restarts it or
+     * reports the lost connection. A process that writes a file is asked to quit first, and destroyed only if it does
+     * not exit in time. Invoked by the watchdog check.
+     */
+    private void captureStalled ()
     {
-        // 141 means the process used input or output stream, but it was closed. It is a normal way to stop a process.
-        if (exitCode == 0 || exitCode == 141)
+        CaptureProcess stalledProcess = captureProcess;
+        if (stopRequested)
+        {
+            return;
+        }
+        stalledProcess.stalled = true;
+        if (writesFile)
         {
-            logger.info(processName() + " exited successfully. Exit code = " + exitCode);
-            String stdErrOutput = processManager.getStdErrOutput();
-            if (stdErrOutput != null)
+            logger.error(processName() + " stopped writing frames! Asking it to quit, so it finishes its file...");
+            askToQuit(stalledProcess);
+            try
             {
-                logger.debug("Process stdErr output: " + stdErrOutput);
+                stalledProcess.exited.get(STALL_QUIT_TIMEOUT, TimeUnit.MILLISECONDS);
+                return;
+            }
+            catch (TimeoutException e)
+            {
+                logger.error(processName() + " did not quit in " + STALL_QUIT_TIMEOUT + " ms! Destroying it...");
+            }
+            catch (InterruptedException | ExecutionException e)
+            {
+                logger.error(processName() + " did not quit! Destroying it...", e);
             }
         }
         else
         {
-            logger.error(processName() + " did not exit normally! Exit code = " + exitCode);
-            String stdErrOutput = processManager.getStdErrOutput();
-            if (stdErrOutput != null)
+            logger.error(processName() + " wrote no frame for " + settings.getStallFrameIntervals() +
+                    " frame intervals! Destroying it...");
+        }
+        stalledProcess.processManager.destroyForcibly();
+    }
+
+    /**
+     * Asks the process to quit, as if q was typed in its console
+     */
+    private void askToQuit (CaptureProcess captureProcess)
+    {
+        try
+        {
+            OutputStream processInput = captureProcess.processManager.getProcessInput();
+            processInput.write('q');
+            processInput.flush();
+        }
+        catch (IOException e)
+        {
+            // the process already exited or is exiting
+            logger.debug(processName() + ": Could not ask the process to quit.", e);
+        }
+    }
+
+    private FrameReader createFrameReader ()
+    {
+        switch (settings.getFrameTransport())
+        {
+            case NUT:
+                return new NutFrameReader(processManager.getProcessOutputChannel(), pixelFormat);
+            default:
+                return new RawFrameReader(processManager, settings.getWidth(), settings.getHeight(), pixelFormat);
+        }
+    }
+
+    /**
+     * Updates the frame counters and the latency with a frame just read. Invoked by the capture thread only.
+     */
+    private void frameRead (Frame frame)
+    {
+        capturedFrames++;
+        long previousPresentationTime = presentationTime;
+        presentationTime = frame.getPresentationTime();
+        if (presentationTime == Frame.NO_PRESENTATION_TIME)
+        {
+            return;
+        }
+        // the capture uses wall clock timestamps, so they can be compared to the current time
+        captureLatency = System.currentTimeMillis() * 1000 - presentationTime;
+        if (previousPresentationTime != Frame.NO_PRESENTATION_TIME && frameInterval > 0)
+        {
+            long gap = presentationTime - previousPresentationTime;
+            if (gap > frameInterval * 1.5)
+            {
+                lostFrames += Math.round(gap / frameInterval) - 1;
+            }
+        }
+    }
+
+    /**
+     * @return the expected time between frames in microseconds, or zero if the frame rate is not known
+     */
+    private double expectedFrameInterval ()
+    {
+        double rate = settings.frameRateValue();
+        return rate > 0 ? 1_000_000 / rate : 0;
+    }
+
+    private DeliveryLane findLane (CaptureServiceClient client)
+    {
+        for (DeliveryLane lane : lanes)
+        {
+            if (lane.getClient() == client)
             {
-                logger.error("Process stdErr output: " + stdErrOutput);
-                mediaFramework.parsePreviewError(stdErrOutput, mediaFacadeClient);
+                return lane;
             }
         }
+        return null;
     }
 
-    @Override
-    public void handleWaitForException (Exception e)
+    private void laneFailed (DeliveryLane lane, Exception e)
     {
-        logger.error(processName() + " waitFor Exception!", e);
+        logger.error("Error delivering frames to " + lane.getClient().getClass().getSimpleName() + "!", e);
+        stop();
+        mediaFacadeClient.previewingException();
     }
 
     private class CaptureServiceThread extends Thread
@@ -99,26 +620,46 @@ public class CaptureService implements ProcessClient
         @Override
         public void run ()
         {
-            try (InputStream is = processManager.getProcessOutput())
+            try
             {
-                int bytesPerFrame = settings.bytesPerFrame();
-                whileLoop:
+                PixelLayout pixelLayout = PixelLayouts.forName(pixelFormat);
+                if (pixelLayout == null)
+                {
+                    throw new InvalidPixelFormatException(String.valueOf(pixelFormat));
+                }
+                framePool = new FramePool(pixelLayout.bytesPerFrame(settings.getWidth(), settings.getHeight()),
+                        FRAME_POOL_SIZE);
+                frameInterval = expectedFrameInterval();
+                watchdog = new FrameWatchdog(supervisor, processName(), frameInterval,
+                        settings.getStallFrameIntervals(), writesFile ? WRITING_STALL_TIMEOUT : 0,
+                        CaptureService.this::captureStalled);
+                if (frameInterval > 0)
+                {
+                    watchdog.start();
+                }
+                else
+                {
+                    logger.warn("The frame rate is not known! Capture stalls will not be detected...");
+                }
                 while (true)
                 {
-                    for (int index = 0; index < bytesPerFrame; index++)
+                    try
                     {
-                        int byteReceived = is.read();
-                        if (byteReceived == -1)
+                        if (captureFrames())
                         {
-                            break whileLoop;
+                            break;
                         }
-                        for (CaptureServiceClient client : clients)
+                    }
+                    catch (IOException e)
+                    {
+                        // the output of a stalled process may fail when it is destroyed
+                        if (!isSupervised() && !captureProcess.stalled)
                         {
-                            client.receive(byteReceived, index);
+                            throw e;
                         }
+                        logger.error("Error in " + processName(), e);
                     }
-                    clients.forEach(CaptureServiceClient::frameReceived);
-                    if (!frameListener.frameReceived())
+                    if (!restart())
                     {
                         break;
                     }
@@ -134,50 +675,284 @@ public class CaptureService implements ProcessClient
                 logger.error("Error in " + processName(), e);
                 mediaFacadeClient.previewingException();
             }
-            clients.forEach(CaptureServiceClient::captureStopped);
+            if (watchdog != null)
+            {
+                watchdog.stop();
+            }
+            captureStopped = true;
+            metrics.captureStopped(CaptureService.this);
+            lanes.forEach(lane -> lane.close(true));
+            cancelPendingCommands();
+        }
+
+        /**
+         * Reads the frames of the current process and delivers them, until its output ends or the capture is stopped
+         *
+         * @return true if the capture was stopped, false if the output ended
+         */
+        private boolean captureFrames () throws Exception
+        {
+            try
+            {
+                frameReader = createFrameReader();
+                while (true)
+                {
+                    Frame frame = framePool.acquire();
+                    try
+                    {
+                        long readStart = System.nanoTime();
+                        watchdog.waitStarted(readStart);
+                        boolean frameRead = frameReader.read(frame);
+                        watchdog.waitFinished(frameRead);
+                        if (!frameRead)
+                        {
+                            return false;
+                        }
+                        long readTime = System.nanoTime() - readStart;
+                        // a stall is a read longer than twice the frame interval, which is in microseconds. The first
+                        // read also waits for the process to open the device, so it is not a stall.
+                        metrics.readCompleted(readTime, capturedFrames > 0 && frameInterval > 0
+                                && readTime > frameInterval * 2 * 1000);
+                        frameRead(frame);
+                        if (!applyCommands(frame))
+                        {
+                            return true;
+                        }
+                        for (DeliveryLane lane : lanes)
+                        {
+                            lane.offer(frame);
+                        }
+                    }
+                    finally
+                    {
+                        frame.release();
+                    }
+                }
+            }
+            finally
+            {
+                processManager.closeProcessOutput();
+            }
+        }
+    }
+
+    /**
+     * The client of one capture process. A supervised capture may have several processes, one after another.
+     */
+    private class CaptureProcess implements ProcessClient
+    {
+        /**
+         * Completed when the process exits
+         */
+        private final CompletableFuture<Void> exited = new CompletableFuture<>();
+
+        private ProcessUtils.ProcessManager processManager;
+        /**
+         * If the process was destroyed because it stopped writing frames
+         */
+        private volatile boolean            stalled = false;
+
+        @Override
+        public String processName ()
+        {
+            return CaptureService.this.processName();
+        }
+
+        @Override
+        public void processExited (int exitCode)
+        {
+            exited.complete(null);
+            // 141 means the process used input or output stream, but it was closed. It is a normal way to stop a
+            // process.
+            if (exitCode == 0 || exitCode == 141)
+            {
+                logger.info(processName() + " exited successfully. Exit code = " + exitCode);
+                String stdErrOutput = processManager.getStdErrOutput();
+                if (stdErrOutput != null)
+                {
+                    logger.debug("Process stdErr output: " + stdErrOutput);
+                }
+            }
+            else
+            {
+                logger.error(processName() + " did not exit normally! Exit code = " + exitCode);
+                String stdErrOutput = processManager.getStdErrOutput();
+                if (stdErrOutput != null)
+                {
+                    logger.error("Process stdErr output: " + stdErrOutput);
+                    // a supervised capture restarts the process, and reports the failure only if it can not. A stalled
+                    // process was destroyed, so its exit code says nothing about the failure.
+                    if (!isSupervised() && !stalled)
+                    {
+                        mediaFramework.parsePreviewError(stdErrOutput, mediaFacadeClient);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void handleWaitForException (Exception e)
+        {
+            exited.complete(null);
+            logger.error(processName() + " waitFor Exception!", e);
+        }
+    }
+
+    /**
+     * A command applied by the capture thread at a frame boundary, before the frame is delivered to the clients.
+     */
+    private abstract class CaptureCommand<T> implements FrameListener
+    {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        @Override
+        public boolean frameReceived (Frame frame)
+        {
+            try
+            {
+                boolean keepCapturing = apply(frame);
+                future.complete(result(frame));
+                return keepCapturing;
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Error applying " + getClass().getSimpleName() + "!", e);
+                future.completeExceptionally(e);
+                return true;
+            }
+        }
+
+        abstract boolean apply (Frame frame);
+
+        T result (Frame frame)
+        {
+            return null;
+        }
+    }
+
+    private class AddClientCommand extends CaptureCommand<Void>
+    {
+        private final DeliveryLane lane;
+
+        private AddClientCommand (DeliveryLane lane)
+        {
+            this.lane = lane;
+        }
+
+        @Override
+        boolean apply (Frame frame)
+        {
+            int poolSize = FRAME_POOL_SIZE + lane.maxHeldFrames();
+            for (DeliveryLane current : lanes)
+            {
+                poolSize += current.maxHeldFrames();
+            }
+            framePool.ensureCapacity(poolSize);
+            lanes.add(lane);
+            lane.start();
+            return true;
+        }
+    }
+
+    private class RemoveClientCommand extends CaptureCommand<DeliveryLane>
+    {
+        private final CaptureServiceClient client;
+
+        private DeliveryLane lane;
+
+        private RemoveClientCommand (CaptureServiceClient client)
+        {
+            this.client = client;
+        }
+
+        @Override
+        boolean apply (Frame frame)
+        {
+            lane = findLane(client);
+            if (lane != null)
+            {
+                lanes.remove(lane);
+                lane.close(false);
+            }
+            return true;
+        }
+
+        @Override
+        DeliveryLane result (Frame frame)
+        {
+            return lane;
         }
     }
 
-    private class AddClientFrameListener implements FrameListener
+    private class PauseClientCommand extends CaptureCommand<Void>
     {
         private final CaptureServiceClient client;
+        private final boolean              paused;
 
-        private AddClientFrameListener (CaptureServiceClient client)
+        private PauseClientCommand (CaptureServiceClient client, boolean paused)
         {
             this.client = client;
+            this.paused = paused;
         }
 
         @Override
-        public boolean frameReceived ()
+        boolean apply (Frame frame)
         {
-            clients.add(client);
-            frameListener = new NullFrameListener();
+            DeliveryLane lane = findLane(client);
+            if (lane != null)
+            {
+                lane.setPaused(paused);
+            }
             return true;
         }
     }
 
-    private class RemoveClientFrameListener implements FrameListener
+    private class FrameDivisorCommand extends CaptureCommand<Void>
     {
         private final CaptureServiceClient client;
+        private final int                  frameDivisor;
 
-        private RemoveClientFrameListener (CaptureServiceClient client)
+        private FrameDivisorCommand (CaptureServiceClient client, int frameDivisor)
         {
             this.client = client;
+            this.frameDivisor = frameDivisor;
+        }
+
+        @Override
+        boolean apply (Frame frame)
+        {
+            DeliveryLane lane = findLane(client);
+            if (lane != null)
+            {
+                lane.setFrameDivisor(frameDivisor);
+            }
+            return true;
         }
+    }
 
+    private class SnapshotCommand extends CaptureCommand<ByteBuffer>
+    {
         @Override
-        public boolean frameReceived ()
+        boolean apply (Frame frame)
         {
-            clients.remove(client);
-            frameListener = new NullFrameListener();
             return true;
         }
+
+        @Override
+        ByteBuffer result (Frame frame)
+        {
+            ByteBuffer view = frame.view();
+            ByteBuffer copy = ByteBuffer.allocate(view.remaining());
+            copy.put(view);
+            copy.flip();
+            return copy;
+        }
     }
 
-    private class StopProcessFrameListener implements FrameListener
+    private class StopCommand extends CaptureCommand<Void>
     {
         @Override
-        public boolean frameReceived ()
+        boolean apply (Frame frame)
         {
             return false;
         }
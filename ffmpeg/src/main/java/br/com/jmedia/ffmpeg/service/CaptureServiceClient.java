@@ -1,15 +1,88 @@
 package br.com.jmedia.ffmpeg.service;
 
+import br.com.jmedia.ffmpeg.model.Frame;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Lima Filho, A. L. - amsterdam@luvva.com.br
  */
 public interface CaptureServiceClient
 {
-    void receive (int bytes, int index) throws IOException;
+    /**
+     * Receives a pooled frame. The frame is shared with the other clients, so its bytes must not be modified. The
+     * client must {@link Frame#retain()} the frame if it needs it after this method returns.
+     * <p>
+     * The default implementation delegates to {@link #receive(ByteBuffer)} with a read only view of the frame.
+     *
+     * @param frame the frame
+     * @throws IOException if the client could not handle the frame
+     */
+    default void receive (Frame frame) throws IOException
+    {
+        receive(frame.view());
+    }
+
+    /**
+     * Receives a whole frame. The frame bytes are the ones between the buffer position and its limit. The buffer is
+     * reused for another frame, so it must not be kept after this method returns.
+     * <p>
+     * The default implementation adapts the frame to the per byte methods, so old clients keep working.
+     *
+     * @param frame the frame bytes
+     * @throws IOException if the client could not handle the frame
+     */
+    default void receive (ByteBuffer frame) throws IOException
+    {
+        int offset = frame.position();
+        int length = frame.remaining();
+        for (int index = 0; index < length; index++)
+        {
+            receive(frame.get(offset + index) & 0xFF, index);
+        }
+        frameReceived();
+    }
+
+    /**
+     * Receives a single byte of the frame being captured.
+     *
+     * @param bytes the byte received
+     * @param index the index of the byte in the frame
+     * @throws IOException if the client could not handle the byte
+     * @deprecated receiving byte by byte is too expensive, override {@link #receive(ByteBuffer)} instead
+     */
+    @Deprecated
+    default void receive (int bytes, int index) throws IOException
+    {
+    }
 
-    void frameReceived ();
+    /**
+     * Invoked by the default {@link #receive(ByteBuffer)} implementation when all the bytes of a frame were received
+     */
+    default void frameReceived ()
+    {
+    }
+
+    /**
+     * Invoked in the delivery thread when the lane dropped frames because the client was behind, right before the
+     * first frame captured after them that the client receives, or before the client is stopped or removed if no
+     * frame comes after them. Only a lane that drops the oldest frames may report a drop one frame late.
+     *
+     * @param frames the number of frames dropped since the last frame received
+     */
+    default void framesDropped (int frames)
+    {
+    }
 
     void captureStopped ();
+
+    /**
+     * Invoked instead of {@link #captureStopped()} when the client is removed from a capture that goes on, after it
+     * received its last frame. The client may release what it holds for the capture, but it must not stop the
+     * clients it feeds, since the capture did not stop.
+     */
+    default void removedFromCapture ()
+    {
+    }
 }
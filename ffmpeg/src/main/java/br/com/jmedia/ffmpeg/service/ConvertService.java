@@ -0,0 +1,185 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.control.VideoPreview;
+import javafx.scene.image.WritableImage;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Converts the captured frames to the preview pixel format in the JVM, instead of sending them to an encode process
+ * and reading them back. Big frames are split in row stripes converted in parallel, one of them by the thread
+ * delivering the frame.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class ConvertService implements PreviewService
+{
+    private @Inject Logger         logger;
+    private @Inject CaptureMetrics metrics;
+
+    /**
+     * Stripes with less rows than this cost more to hand over to another thread than to convert
+     */
+    private static final int MIN_ROWS_PER_STRIPE = 64;
+
+    private PixelConverter  converter;
+    private VideoPreview    videoPreview;
+    private ByteBuffer      target;
+    private Stripe[]        stripes;
+    private ExecutorService stripeExecutor;
+
+    public void start (PixelConverter converter, VideoPreview videoPreview)
+    {
+        this.converter = converter;
+        this.videoPreview = videoPreview;
+        target = ByteBuffer.allocateDirect(converter.getTargetLength()).order(ByteOrder.LITTLE_ENDIAN);
+        int alignment = converter.getRowAlignment();
+        int stripeCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                converter.getHeight() / MIN_ROWS_PER_STRIPE));
+        int rowsPerStripe = (converter.getHeight() + stripeCount - 1) / stripeCount;
+        rowsPerStripe = (rowsPerStripe + alignment - 1) / alignment * alignment;
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+        {
+            stripes[i] = new Stripe(Math.min(i * rowsPerStripe, converter.getHeight()),
+                    Math.min((i + 1) * rowsPerStripe, converter.getHeight()));
+        }
+        if (stripeCount > 1)
+        {
+            stripeExecutor = Executors.newFixedThreadPool(stripeCount - 1, runnable ->
+            {
+                Thread thread = new Thread(runnable, "Pixel converter stripe thread");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        logger.info("Converting " + converter.getClass().getSimpleName() + " frames in " + stripeCount + " stripes");
+    }
+
+    @Override
+    public WritableImage snapshot ()
+    {
+        return videoPreview.snapshot();
+    }
+
+    @Override
+    public void receive (ByteBuffer frame) throws IOException
+    {
+        if (frame.remaining() < converter.getSourceLength())
+        {
+            throw new IOException("Frame with " + frame.remaining() + " bytes, but " + converter.getSourceLength() +
+                    " bytes were expected!");
+        }
+        long start = System.nanoTime();
+        convert(frame);
+        metrics.conversionCompleted(System.nanoTime() - start);
+        target.clear();
+        videoPreview.receive(target);
+    }
+
+    @Override
+    public void captureStopped ()
+    {
+        shutdownStripes();
+        videoPreview.captureStopped();
+    }
+
+    @Override
+    public void removedFromCapture ()
+    {
+        shutdownStripes();
+    }
+
+    private void shutdownStripes ()
+    {
+        if (stripeExecutor != null)
+        {
+            stripeExecutor.shutdown();
+        }
+    }
+
+    private void convert (ByteBuffer frame) throws IOException
+    {
+        if (stripes.length == 1)
+        {
+            converter.convertRows(frame, target, 0, converter.getHeight());
+            return;
+        }
+        CountDownLatch latch = new CountDownLatch(stripes.length - 1);
+        for (int i = 1; i < stripes.length; i++)
+        {
+            stripes[i].prepare(frame, latch);
+            stripeExecutor.execute(stripes[i]);
+        }
+        converter.convertRows(frame, target, stripes[0].firstRow, stripes[0].endRow);
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting a frame!", e);
+        }
+        for (int i = 1; i < stripes.length; i++)
+        {
+            RuntimeException failure = stripes[i].failure;
+            if (failure != null)
+            {
+                stripes[i].failure = null;
+                throw new IOException("Could not convert a frame stripe!", failure);
+            }
+        }
+    }
+
+    /**
+     * A range of rows converted by a stripe thread. Reused for every frame, the executor hand over making the frame
+     * visible to the stripe thread and the latch making the failure visible back.
+     */
+    private class Stripe implements Runnable
+    {
+        private final int firstRow;
+        private final int endRow;
+
+        private ByteBuffer       frame;
+        private CountDownLatch   latch;
+        private RuntimeException failure;
+
+        private Stripe (int firstRow, int endRow)
+        {
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        private void prepare (ByteBuffer frame, CountDownLatch latch)
+        {
+            this.frame = frame;
+            this.latch = latch;
+        }
+
+        @Override
+        public void run ()
+        {
+            try
+            {
+                converter.convertRows(frame, target, firstRow, endRow);
+            }
+            catch (RuntimeException e)
+            {
+                failure = e;
+            }
+            finally
+            {
+                frame = null;
+                latch.countDown();
+            }
+        }
+    }
+}
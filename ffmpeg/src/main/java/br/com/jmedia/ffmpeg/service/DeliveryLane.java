@@ -0,0 +1,301 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.DeliveryPolicy;
+import br.com.jmedia.ffmpeg.model.Frame;
+import br.com.jmedia.ffmpeg.model.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Delivers the captured frames to a single client in its own thread, through a bounded queue. The capture thread only
+ * enqueues frames, so a slow client can only slow down the capture if its policy is {@link DeliveryPolicy#BLOCK}.
+ * The client is {@link CaptureServiceClient#framesDropped(int) told} where the frames it did not receive were dropped.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class DeliveryLane
+{
+    private final CaptureServiceClient                client;
+    private final DeliveryPolicy                      policy;
+    private final BlockingQueue<Frame>                queue;
+    private final BiConsumer<DeliveryLane, Exception> failureListener;
+    private final Thread                              thread;
+
+    private final AtomicLong       deliveredFrames = new AtomicLong();
+    private final AtomicLong       droppedFrames   = new AtomicLong();
+    private final LatencyHistogram processingTime  = new LatencyHistogram();
+
+    /**
+     * Completed when the lane thread delivered its last frame
+     */
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+    /**
+     * The sequence numbers of the dropped frames not reported to the client yet. The frames are dropped in the order
+     * they were captured, so they are increasing.
+     */
+    private final ArrayDeque<Long> unreportedDrops = new ArrayDeque<>();
+    /**
+     * The sequence number of the last frame delivered, written by the lane thread only
+     */
+    private       long             lastDelivered   = -1;
+
+    private volatile boolean closed               = false;
+    private volatile boolean notifyCaptureStopped = false;
+    private volatile boolean paused               = false;
+    /**
+     * Only one of each this many frames is offered to the queue
+     */
+    private volatile int     frameDivisor         = 1;
+
+    /**
+     * Written by the capture thread only
+     */
+    private long offeredFrames = 0;
+
+    /**
+     * @param failureListener notified, in the lane thread, if the client throws an Exception. The lane is closed
+     *                        and the client is notified that the capture stopped right after that.
+     */
+    DeliveryLane (String processName, CaptureServiceClient client, DeliveryPolicy policy, int capacity,
+            BiConsumer<DeliveryLane, Exception> failureListener)
+    {
+        this.client = client;
+        this.policy = policy;
+        this.failureListener = failureListener;
+        queue = new ArrayBlockingQueue<>(policy == DeliveryPolicy.LATEST_ONLY ? 1 : Math.max(capacity, 1));
+        thread = new Thread(this::deliver, processName + " delivery lane to " + client.getClass().getSimpleName());
+    }
+
+    public CaptureServiceClient getClient ()
+    {
+        return client;
+    }
+
+    public DeliveryPolicy getPolicy ()
+    {
+        return policy;
+    }
+
+    public int getCapacity ()
+    {
+        return queue.remainingCapacity() + queue.size();
+    }
+
+    public int getQueuedFrames ()
+    {
+        return queue.size();
+    }
+
+    public boolean isPaused ()
+    {
+        return paused;
+    }
+
+    public int getFrameDivisor ()
+    {
+        return frameDivisor;
+    }
+
+    public long getDeliveredFrames ()
+    {
+        return deliveredFrames.get();
+    }
+
+    public long getDroppedFrames ()
+    {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return how long the client took to receive each frame
+     */
+    public LatencyHistogram getProcessingTime ()
+    {
+        return processingTime;
+    }
+
+    /**
+     * @return a future completed when the client received its last frame, after the lane is closed
+     */
+    public CompletableFuture<Void> getFinished ()
+    {
+        return finished;
+    }
+
+    /**
+     * The maximum number of pooled frames this lane may hold at the same time: the queued ones, the one being
+     * received and one the client may have retained.
+     *
+     * @return the number of frames
+     */
+    int maxHeldFrames ()
+    {
+        return getCapacity() + 2;
+    }
+
+    void start ()
+    {
+        thread.start();
+    }
+
+    /**
+     * Enqueues the frame according to the lane policy. Must be invoked by the capture thread only.
+     *
+     * @param frame the frame
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    void offer (Frame frame) throws InterruptedException
+    {
+        if (closed || paused || offeredFrames++ % frameDivisor != 0)
+        {
+            return;
+        }
+        frame.retain();
+        switch (policy)
+        {
+            case BLOCK:
+                queue.put(frame);
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(frame))
+                {
+                    drop(frame);
+                }
+                break;
+            case DROP_OLDEST:
+            case LATEST_ONLY:
+                while (!queue.offer(frame))
+                {
+                    Frame oldest = queue.poll();
+                    if (oldest != null)
+                    {
+                        drop(oldest);
+                    }
+                }
+                break;
+        }
+        if (closed)
+        {
+            // the lane failed after the check above, so its thread may have released the queue before the frame was
+            // enqueued, and nobody else would release it
+            releaseQueuedFrames();
+        }
+    }
+
+    void setPaused (boolean paused)
+    {
+        this.paused = paused;
+    }
+
+    void setFrameDivisor (int frameDivisor)
+    {
+        this.frameDivisor = Math.max(frameDivisor, 1);
+    }
+
+    /**
+     * Stops the lane after the frames already queued are delivered.
+     *
+     * @param notifyCaptureStopped if the client must be notified that the capture stopped, otherwise it is notified
+     *                             that it was removed from the capture
+     */
+    void close (boolean notifyCaptureStopped)
+    {
+        this.notifyCaptureStopped = notifyCaptureStopped;
+        closed = true;
+    }
+
+    private void drop (Frame frame)
+    {
+        synchronized (unreportedDrops)
+        {
+            unreportedDrops.addLast(frame.getSequenceNumber());
+        }
+        frame.release();
+        droppedFrames.incrementAndGet();
+    }
+
+    /**
+     * Tells the client about the frames dropped before a frame
+     *
+     * @param sequenceNumber the sequence number of the frame about to be delivered, or {@link Long#MAX_VALUE} to
+     *                       report every drop left when the lane is closed
+     */
+    private void reportDrops (long sequenceNumber)
+    {
+        int drops = 0;
+        synchronized (unreportedDrops)
+        {
+            // the sequence numbers start again when the capture process is restarted, so every drop is before it
+            boolean restarted = sequenceNumber <= lastDelivered;
+            while (!unreportedDrops.isEmpty() && (restarted || unreportedDrops.peekFirst() < sequenceNumber))
+            {
+                unreportedDrops.removeFirst();
+                drops++;
+            }
+        }
+        lastDelivered = sequenceNumber;
+        if (drops > 0)
+        {
+            client.framesDropped(drops);
+        }
+    }
+
+    private void deliver ()
+    {
+        try
+        {
+            while (!closed || !queue.isEmpty())
+            {
+                Frame frame = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (frame != null)
+                {
+                    try
+                    {
+                        reportDrops(frame.getSequenceNumber());
+                        long start = System.nanoTime();
+                        client.receive(frame);
+                        processingTime.record(System.nanoTime() - start);
+                        deliveredFrames.incrementAndGet();
+                    }
+                    finally
+                    {
+                        frame.release();
+                    }
+                }
+            }
+            reportDrops(Long.MAX_VALUE);
+        }
+        catch (Exception e)
+        {
+            closed = true;
+            notifyCaptureStopped = true;
+            releaseQueuedFrames();
+            failureListener.accept(this, e);
+        }
+        if (notifyCaptureStopped)
+        {
+            client.captureStopped();
+        }
+        else
+        {
+            client.removedFromCapture();
+        }
+        finished.complete(null);
+    }
+
+    private void releaseQueuedFrames ()
+    {
+        Frame frame;
+        while ((frame = queue.poll()) != null)
+        {
+            frame.release();
+        }
+    }
+}
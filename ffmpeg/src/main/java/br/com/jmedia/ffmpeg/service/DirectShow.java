@@ -107,6 +107,12 @@ public class DirectShow extends MediaFramework
         return "video=\"" + MediaFrameworkSettings.VIDEO_DEVICE + "\"";
     }
 
+    @Override
+    String inputFormatCommand ()
+    {
+        return "-pixel_format";
+    }
+
     @Override
     String crossbarVideoInputPinNumberCommand ()
     {
@@ -1,28 +1,42 @@
 package br.com.jmedia.ffmpeg.service;
 
 import br.com.jmedia.ffmpeg.control.VideoPreview;
+import br.com.jmedia.ffmpeg.model.Frame;
+import br.com.jmedia.ffmpeg.model.FramePool;
 import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
 import javafx.scene.image.WritableImage;
 import org.slf4j.Logger;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author Lima Filho, A. L. - amsterdam@luvva.com.br
  */
 public class EncodeService implements ProcessClient, PreviewService
 {
-    private @Inject Logger         logger;
-    private @Inject ProcessUtils   processUtils;
-    private @Inject MediaFramework mediaFramework;
+    private @Inject Logger            logger;
+    private @Inject ProcessUtils      processUtils;
+    private @Inject ProcessSupervisor supervisor;
+    private @Inject MediaFramework    mediaFramework;
+    private @Inject CaptureMetrics    metrics;
+
+    private static final int FRAME_POOL_SIZE = 2;
 
     private ProcessUtils.ProcessManager processManager;
     private VideoPreview                videoPreview;
     private OutputStream                outputStream;
 
+    /**
+     * When each frame written to the process was written, so the conversion time can be measured when the converted
+     * frame is read. The process converts the frames one by one, in order.
+     */
+    private final Queue<Long> writeTimes = new ConcurrentLinkedQueue<>();
+
     private boolean exited = false;
 
     public void start (MediaFrameworkSettings settings, VideoPreview videoPreview) throws IOException
@@ -30,7 +44,7 @@ public class EncodeService implements ProcessClient, PreviewService
         this.videoPreview = videoPreview;
         processManager = processUtils.createManager(settings.getEncodeCommand(), this);
         outputStream = processManager.getProcessInput();
-        new OutputToPreviewThread().start();
+        supervisor.execute(processName() + " output to preview reader", new OutputToPreviewTask());
     }
 
     @Override
@@ -78,11 +92,12 @@ public class EncodeService implements ProcessClient, PreviewService
     }
 
     @Override
-    public void receive (int bytes, int index) throws IOException
+    public void receive (ByteBuffer frame) throws IOException
     {
         try
         {
-            outputStream.write(bytes);
+            writeTimes.add(System.nanoTime());
+            processManager.writeFrame(frame);
         }
         catch (IOException e)
         {
@@ -92,11 +107,6 @@ public class EncodeService implements ProcessClient, PreviewService
         }
     }
 
-    @Override
-    public void frameReceived ()
-    {
-    }
-
     @Override
     public void captureStopped ()
     {
@@ -118,32 +128,34 @@ public class EncodeService implements ProcessClient, PreviewService
         }
     }
 
-    private class OutputToPreviewThread extends Thread
+    private class OutputToPreviewTask implements Runnable
     {
-        private OutputToPreviewThread ()
-        {
-            super(processName() + " output to preview thread");
-        }
-
         @Override
         public void run ()
         {
-            try (InputStream is = processManager.getProcessOutput())
+            try
             {
-                int bytesPerFrame = videoPreview.getBufferLength();
-                whileLoop:
+                FramePool framePool = new FramePool(videoPreview.getBufferLength(), FRAME_POOL_SIZE);
                 while (true)
                 {
-                    for (int index = 0; index < bytesPerFrame; index++)
+                    Frame frame = framePool.acquire();
+                    try
                     {
-                        int byteReceived = is.read();
-                        if (byteReceived == -1)
+                        if (!processManager.readFrame(frame.writableBuffer()))
+                        {
+                            break;
+                        }
+                        Long writeTime = writeTimes.poll();
+                        if (writeTime != null)
                         {
-                            break whileLoop;
+                            metrics.conversionCompleted(System.nanoTime() - writeTime);
                         }
-                        videoPreview.receive(byteReceived, index);
+                        videoPreview.receive(frame);
+                    }
+                    finally
+                    {
+                        frame.release();
                     }
-                    videoPreview.frameReceived();
                 }
             }
             catch (Exception e)
@@ -151,6 +163,10 @@ public class EncodeService implements ProcessClient, PreviewService
                 logger.error("Error in " + processName(), e);
                 closeOutputStream();
             }
+            finally
+            {
+                processManager.closeProcessOutput();
+            }
         }
     }
 }
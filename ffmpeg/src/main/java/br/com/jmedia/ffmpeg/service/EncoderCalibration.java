@@ -0,0 +1,374 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.control.FfmpegFacade;
+import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the crf, preset and threads of the recordings for this machine. A synthetic clip with the size, frame rate
+ * and pixel format of the capture is encoded with several encoder settings, and the best quality ones that encode it
+ * at least {@value #REALTIME_MARGIN} times faster than realtime are stored in the settings. The margin leaves room for
+ * the capture and the preview, so a weak machine never drops recorded frames and a strong one records smaller files.
+ * <p>
+ * The clip is generated once, to a raw video file, and looped by each encoding, so only the encoder is measured, not
+ * the generation of the pattern.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class EncoderCalibration
+{
+    private @Inject Logger            logger;
+    private @Inject ProcessUtils      processUtils;
+    private @Inject ProcessSupervisor supervisor;
+
+    /**
+     * How much faster than realtime the chosen settings must encode
+     */
+    public static final double REALTIME_MARGIN = 1.3;
+
+    /**
+     * The length of the encodings, in seconds
+     */
+    private static final int CLIP_SECONDS = 4;
+    /**
+     * The frames of the generated clip, looped by each encoding. More frames than the encoder references, so it can
+     * not encode the loop cheaper than the capture, and few enough to keep a raw full HD clip small.
+     */
+    private static final int CLIP_FRAMES  = 12;
+
+    /**
+     * The crf and preset candidates, from the best quality for the file size to the fastest. Slower presets compress
+     * better at the same crf, and once the fastest preset is not fast enough a higher crf gives up some quality.
+     */
+    //noinspection SpellCheckingInspection
+    private static final String[][] CANDIDATES = {
+            {"18", "medium"},
+            {"18", "fast"},
+            {"18", "faster"},
+            {"18", "veryfast"},
+            {"18", "superfast"},
+            {"18", "ultrafast"},
+            {"21", "ultrafast"},
+            {"24", "ultrafast"}};
+
+    private static final Pattern SPEED_PATTERN = Pattern.compile("speed=\\s*([0-9.]+)x");
+
+    /**
+     * The task of the calibration running and its result, null if none is
+     */
+    private Future<?>                  calibrationTask;
+    private CompletableFuture<Boolean> calibration;
+
+    /**
+     * Calibrates the encoder in the background. The settings are changed when it finishes, so they should be a
+     * copy no service reads, and must be persisted by the caller.
+     *
+     * @param settings the settings with the capture size and frame rate
+     * @return a future completed with true if the encoder settings were changed, or cancelled if the calibration was
+     * {@link #cancel() cancelled}
+     */
+    public synchronized CompletableFuture<Boolean> start (MediaFrameworkSettings settings)
+    {
+        CompletableFuture<Boolean> calibrated = new CompletableFuture<>();
+        calibration = calibrated;
+        calibrationTask = supervisor.execute("Encoder calibration task", () -> run(settings, calibrated));
+        return calibrated;
+    }
+
+    /**
+     * Stops the running calibration, killing its encoder, without changing the settings
+     */
+    public synchronized void cancel ()
+    {
+        if (calibrationTask != null)
+        {
+            // interrupts the task, which kills its encoder, and cancels the result here in case it did not start yet
+            calibrationTask.cancel(true);
+            calibration.cancel(false);
+        }
+    }
+
+    private void run (MediaFrameworkSettings settings, CompletableFuture<Boolean> calibrated)
+    {
+        try
+        {
+            calibrated.complete(calibrate(settings));
+        }
+        catch (InterruptedException e)
+        {
+            logger.warn("Encoder calibration cancelled! The encoder settings were not changed.");
+            calibrated.cancel(false);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Encoder calibration failed!", e);
+            calibrated.complete(false);
+        }
+        finally
+        {
+            finished(calibrated);
+        }
+    }
+
+    private synchronized void finished (CompletableFuture<Boolean> calibrated)
+    {
+        if (calibration == calibrated)
+        {
+            calibrationTask = null;
+            calibration = null;
+        }
+    }
+
+    /**
+     * Encodes the clip with the candidates and stores the chosen one in the settings. The candidates are assumed to
+     * get faster in order, so they are binary searched and only a few are encoded.
+     *
+     * @param settings the settings with the capture size and frame rate
+     * @return false if no candidate could be encoded, and the settings were not changed
+     * @throws InterruptedException if interrupted while encoding
+     */
+    public boolean calibrate (MediaFrameworkSettings settings) throws InterruptedException
+    {
+        Path clip;
+        try
+        {
+            clip = createClip(settings);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not create the calibration clip! The encoder settings were not changed.", e);
+            return false;
+        }
+        try
+        {
+            return calibrate(settings, clip);
+        }
+        finally
+        {
+            try
+            {
+                Files.deleteIfExists(clip);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Could not delete the calibration clip " + clip, e);
+            }
+        }
+    }
+
+    private boolean calibrate (MediaFrameworkSettings settings, Path clip) throws InterruptedException
+    {
+        int fastest = CANDIDATES.length - 1;
+        Result chosen = measure(settings, clip, fastest);
+        if (chosen.speed <= 0)
+        {
+            logger.error("Could not encode the calibration clip! The encoder settings were not changed.");
+            return false;
+        }
+        if (chosen.speed < REALTIME_MARGIN)
+        {
+            logger.warn("The fastest encoder settings are only " + chosen.speed + " times faster than realtime! " +
+                    "Recordings may drop frames.");
+        }
+        else
+        {
+            // the fastest candidate passes, so the search is for the first one that passes before it
+            int low = 0;
+            int high = fastest;
+            while (low < high)
+            {
+                int middle = (low + high) / 2;
+                Result result = measure(settings, clip, middle);
+                if (result.speed >= REALTIME_MARGIN)
+                {
+                    chosen = result;
+                    high = middle;
+                }
+                else
+                {
+                    low = middle + 1;
+                }
+            }
+        }
+        settings.setCrf(chosen.crf);
+        settings.setPreset(chosen.preset);
+        settings.setThreads(chosen.threads);
+        settings.setCalibratedSpeed(chosen.speed);
+        logger.info("Encoder calibrated: crf " + chosen.crf + ", preset " + chosen.preset + ", threads " +
+                chosen.threads + ", " + chosen.speed + " times faster than realtime");
+        return true;
+    }
+
+    /**
+     * Encodes the clip with a candidate and each thread count
+     *
+     * @return the fastest thread count, with speed zero if the clip could not be encoded
+     */
+    private Result measure (MediaFrameworkSettings settings, Path clip, int candidate) throws InterruptedException
+    {
+        String crf = CANDIDATES[candidate][0];
+        String preset = CANDIDATES[candidate][1];
+        Result fastest = new Result(crf, preset, "0", 0);
+        for (String threads : threadCounts())
+        {
+            double speed = encodeSpeed(settings, clip, crf, preset, threads);
+            logger.debug("Calibration: crf " + crf + ", preset " + preset + ", threads " + threads + ": " + speed +
+                    "x");
+            if (speed > fastest.speed)
+            {
+                fastest = new Result(crf, preset, threads, speed);
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * @return the thread counts tried with each candidate: chosen by the encoder, and one per processor
+     */
+    private List<String> threadCounts ()
+    {
+        List<String> threadCounts = new ArrayList<>();
+        threadCounts.add("0");
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (processors > 1)
+        {
+            threadCounts.add(String.valueOf(processors));
+        }
+        return threadCounts;
+    }
+
+    /**
+     * Generates the clip: a moving pattern, in the captured pixel format, so the encoder works as hard as with the
+     * capture
+     *
+     * @return a temporary raw video file, which must be deleted
+     */
+    private Path createClip (MediaFrameworkSettings settings) throws IOException, InterruptedException
+    {
+        Path clip = Files.createTempFile("encoder-calibration", ".raw");
+        List<String> command = settings.initialCommandsList();
+        command.add("-f");
+        //noinspection SpellCheckingInspection
+        command.add("lavfi");
+        command.add("-i");
+        command.add("testsrc2=size=" + settings.getWidth() + "x" + settings.getHeight() + ":rate=" +
+                settings.getFrameRate());
+        command.add("-frames:v");
+        command.add(String.valueOf(CLIP_FRAMES));
+        //noinspection SpellCheckingInspection
+        command.add("-pix_fmt");
+        command.add(clipPixelFormat(settings));
+        command.add("-f");
+        //noinspection SpellCheckingInspection
+        command.add("rawvideo");
+        command.add("-y");
+        command.add(clip.toString());
+        String output;
+        try
+        {
+            output = processUtils.getStdOutAndStdErrOutput(command);
+        }
+        catch (IOException | InterruptedException e)
+        {
+            Files.deleteIfExists(clip);
+            throw e;
+        }
+        if (Files.size(clip) == 0)
+        {
+            Files.deleteIfExists(clip);
+            throw new IOException("The calibration clip is empty! ffmpeg output: " + output);
+        }
+        return clip;
+    }
+
+    /**
+     * @return the captured pixel format, or the preview one if the settings do not have it
+     */
+    private String clipPixelFormat (MediaFrameworkSettings settings)
+    {
+        return settings.getPixelFormat() != null ? settings.getPixelFormat() : FfmpegFacade.SUPPORTED_PIXEL_FORMAT;
+    }
+
+    /**
+     * @return how much faster than realtime the clip was encoded, zero if it could not be encoded
+     */
+    private double encodeSpeed (MediaFrameworkSettings settings, Path clip, String crf, String preset,
+            String threads) throws InterruptedException
+    {
+        List<String> command = settings.initialCommandsList();
+        // read as fast as the encoder takes it, looped for the length of the encoding
+        command.add("-f");
+        //noinspection SpellCheckingInspection
+        command.add("rawvideo");
+        command.add("-pixel_format");
+        command.add(clipPixelFormat(settings));
+        command.add("-video_size");
+        command.add(settings.getWidth() + "x" + settings.getHeight());
+        command.add("-framerate");
+        command.add(settings.getFrameRate());
+        command.add("-stream_loop");
+        command.add("-1");
+        command.add("-i");
+        command.add(clip.toString());
+        command.add("-t");
+        command.add(String.valueOf(CLIP_SECONDS));
+        command.add("-codec:v");
+        //noinspection SpellCheckingInspection
+        command.add("libx264");
+        //noinspection SpellCheckingInspection
+        command.add("-pix_fmt");
+        command.add(MediaFramework.RECORDED_PIXEL_FORMAT);
+        command.add("-crf");
+        command.add(crf);
+        command.add("-preset");
+        command.add(preset);
+        command.add("-threads");
+        command.add(threads);
+        command.add("-f");
+        command.add("null");
+        command.add("-");
+        try
+        {
+            // ffmpeg reports the speed of the whole encoding in its last progress line
+            Matcher matcher = SPEED_PATTERN.matcher(processUtils.getStdOutAndStdErrOutput(command));
+            double speed = 0;
+            while (matcher.find())
+            {
+                speed = Double.parseDouble(matcher.group(1));
+            }
+            return speed;
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            logger.warn("Could not encode the calibration clip with preset " + preset + "!", e);
+            return 0;
+        }
+    }
+
+    private static class Result
+    {
+        private final String crf;
+        private final String preset;
+        private final String threads;
+        private final double speed;
+
+        private Result (String crf, String preset, String threads, double speed)
+        {
+            this.crf = crf;
+            this.preset = preset;
+            this.threads = threads;
+            this.speed = speed;
+        }
+    }
+}
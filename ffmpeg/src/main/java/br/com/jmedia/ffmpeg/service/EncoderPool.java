@@ -0,0 +1,134 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
+import br.com.jwheel.utils.StringUtils;
+import br.com.jwheel.weld.WeldContext;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import java.io.IOException;
+
+/**
+ * Keeps an encoder process {@link RecordService#prepare(MediaFrameworkSettings) prepared} while the capture is
+ * previewing, so a recording starts without waiting for ffmpeg and libx264 to start. A taken encoder is replaced in
+ * the background, so the next recording finds one too.
+ * <p>
+ * The prepared encoders record to the staging folder of the settings until a recording is bound to them, so the pool
+ * stays closed if the settings have none. A temporary folder is often in memory or in another file system, so the
+ * recording would be lost in a crash and copied when it is finished.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class EncoderPool
+{
+    private @Inject Logger            logger;
+    private @Inject ProcessSupervisor supervisor;
+
+    /**
+     * The settings the encoders are prepared with, null if the pool is closed
+     */
+    private MediaFrameworkSettings settings;
+    private RecordService          ready;
+    private boolean                replenishing = false;
+    /**
+     * Incremented whenever the pool is opened or closed, so an encoder prepared for a previous capture is discarded
+     */
+    private int                    generation   = 0;
+
+    /**
+     * Starts keeping an encoder prepared, if the settings have a staging folder
+     *
+     * @param settings the settings that created the record command
+     */
+    public synchronized void open (MediaFrameworkSettings settings)
+    {
+        close();
+        if (StringUtils.isNullOrEmpty(settings.getStagingFolder()))
+        {
+            logger.info("No staging folder in the settings. Recordings will start their own encoder...");
+            return;
+        }
+        this.settings = settings;
+        replenish();
+    }
+
+    /**
+     * Takes the prepared encoder and prepares another one in the background
+     *
+     * @return the encoder, or null if none is ready, in which case the recording must start its own
+     */
+    public synchronized RecordService take ()
+    {
+        RecordService taken = ready;
+        ready = null;
+        if (taken != null && !taken.isReady())
+        {
+            logger.warn("The prepared encoder is not running! Discarding it...");
+            taken.discard();
+            taken = null;
+        }
+        replenish();
+        return taken;
+    }
+
+    /**
+     * Stops keeping an encoder prepared and discards the one that is ready
+     */
+    public synchronized void close ()
+    {
+        generation++;
+        settings = null;
+        if (ready != null)
+        {
+            ready.discard();
+            ready = null;
+        }
+    }
+
+    private void replenish ()
+    {
+        if (settings != null && ready == null && !replenishing)
+        {
+            replenishing = true;
+            MediaFrameworkSettings preparedSettings = settings;
+            int preparedGeneration = generation;
+            supervisor.execute("Encoder pool replenish task", () -> prepare(preparedSettings, preparedGeneration));
+        }
+    }
+
+    private synchronized void prepared (RecordService recordService, int preparedGeneration)
+    {
+        replenishing = false;
+        if (preparedGeneration != generation)
+        {
+            // the pool was closed or opened again while the encoder started
+            recordService.discard();
+            replenish();
+            return;
+        }
+        ready = recordService;
+    }
+
+    private synchronized void preparationFailed ()
+    {
+        // not replenished again, so a broken command does not start processes in a loop
+        replenishing = false;
+    }
+
+    private void prepare (MediaFrameworkSettings settings, int generation)
+    {
+        RecordService recordService = WeldContext.getInstance().getAny(RecordService.class);
+        try
+        {
+            long start = System.nanoTime();
+            recordService.prepare(settings);
+            logger.info("Encoder prepared in " + (System.nanoTime() - start) / 1000000 + " ms");
+            prepared(recordService, generation);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not prepare an encoder! Recordings will start their own...", e);
+            preparationFailed();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.Frame;
+
+import java.io.IOException;
+
+/**
+ * Reads the frames written by a process to its output pipe.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+interface FrameReader
+{
+    /**
+     * Fills the frame with the next frame of the process output and describes it.
+     *
+     * @param frame the pooled frame to be filled
+     * @return false if the process output ended
+     * @throws IOException if the process output could not be read or is not valid
+     */
+    boolean read (Frame frame) throws IOException;
+
+    /**
+     * The number of frames in the process output that were skipped because their size did not match the frames being
+     * captured, for example because the device changed its resolution.
+     *
+     * @return the number of skipped frames
+     */
+    default long getSkippedFrames ()
+    {
+        return 0;
+    }
+}
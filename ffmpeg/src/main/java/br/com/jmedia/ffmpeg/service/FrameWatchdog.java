@@ -0,0 +1,131 @@
+package br.com.jmedia.ffmpeg.service;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds out when a capture process stops writing frames without exiting, like when a capture card stops delivering
+ * them, so the capture does not wait for the next frame forever. The capture thread marks when it starts and finishes
+ * waiting for each frame, and a periodic check of the {@link ProcessSupervisor} looks a few times per frame interval
+ * at how long the current wait is. A wait longer than the stall timeout is a stall, reported once per wait.
+ * <p>
+ * Only the wait for the process output is timed, so a client that holds the capture back is not taken for a stall.
+ * The first frame of each process also waits for the device to open, so it has a longer timeout.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+class FrameWatchdog
+{
+    /**
+     * How long the first frame of a process may take
+     */
+    private static final long FIRST_FRAME_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    /**
+     * The shortest time between checks, in milliseconds
+     */
+    private static final long MIN_CHECK_INTERVAL  = 10;
+    private static final long NOT_WAITING         = -1;
+
+    private final ProcessSupervisor supervisor;
+    private final String            name;
+    private final long              stallTimeout;
+    private final Runnable          stallListener;
+
+    private ScheduledFuture<?> checks;
+
+    /**
+     * When the capture thread started waiting for the current frame, or {@link #NOT_WAITING}
+     */
+    private volatile long    waitStart  = NOT_WAITING;
+    private volatile boolean firstFrame = true;
+    private volatile long    stalls     = 0;
+
+    /**
+     * @param supervisor    the supervisor that runs the checks
+     * @param name          the name of the capture, given to the check
+     * @param frameInterval the expected time between frames, in microseconds
+     * @param intervals     how many frame intervals the capture may wait for a frame
+     * @param minTimeout    the shortest the capture may wait for a frame, whatever the intervals, in milliseconds
+     * @param stallListener notified, in the thread of the check, when the capture stalls
+     */
+    FrameWatchdog (ProcessSupervisor supervisor, String name, double frameInterval, int intervals, long minTimeout,
+                   Runnable stallListener)
+    {
+        this.supervisor = supervisor;
+        this.name = name;
+        this.stallTimeout = Math.max((long) (frameInterval * 1000 * intervals),
+                TimeUnit.MILLISECONDS.toNanos(minTimeout));
+        this.stallListener = stallListener;
+    }
+
+    void start ()
+    {
+        long checkInterval = Math.max(MIN_CHECK_INTERVAL, TimeUnit.NANOSECONDS.toMillis(stallTimeout) / 4);
+        checks = supervisor.schedule(name + " watchdog", this::check, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    void stop ()
+    {
+        if (checks != null)
+        {
+            checks.cancel(false);
+        }
+    }
+
+    /**
+     * Makes the next frame the first one of a new process. Invoked by the capture thread only.
+     */
+    void processStarted ()
+    {
+        firstFrame = true;
+    }
+
+    /**
+     * Invoked by the capture thread only
+     *
+     * @param now the {@link System#nanoTime()} the wait started
+     */
+    void waitStarted (long now)
+    {
+        waitStart = now;
+    }
+
+    /**
+     * Invoked by the capture thread only
+     *
+     * @param frameRead if a frame was read, false if the output ended
+     */
+    void waitFinished (boolean frameRead)
+    {
+        waitStart = NOT_WAITING;
+        if (frameRead)
+        {
+            firstFrame = false;
+        }
+    }
+
+    /**
+     * @return how many times the capture stalled
+     */
+    long getStalls ()
+    {
+        return stalls;
+    }
+
+    private void check ()
+    {
+        long start = waitStart;
+        if (start == NOT_WAITING)
+        {
+            return;
+        }
+        long timeout = firstFrame ? Math.max(FIRST_FRAME_TIMEOUT, stallTimeout) : stallTimeout;
+        if (System.nanoTime() - start > timeout)
+        {
+            // reported once per wait, the capture thread starts another one only after this one ends
+            waitStart = NOT_WAITING;
+            stalls++;
+            stallListener.run();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package br.com.jmedia.ffmpeg.service;
 
+import br.com.jmedia.ffmpeg.model.FrameTransport;
 import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
+import br.com.jmedia.ffmpeg.model.RecordingMode;
 import br.com.jmedia.core.control.MediaFacadeClient;
 import br.com.jmedia.core.model.NoMediaDeviceException;
 import br.com.jwheel.utils.StringUtils;
@@ -20,6 +22,12 @@ public abstract class MediaFramework
     private @Inject Logger       logger;
     private @Inject ProcessUtils processUtils;
 
+    /**
+     * The pixel format of the recordings. Without it, libx264 keeps the chroma of a yuyv422 or bgr0 capture, in a
+     * profile few players decode.
+     */
+    static final String RECORDED_PIXEL_FORMAT = "yuv420p";
+
     /**
      * Query the OS to set default settings to the media provider object. This method will find the most suitable video
      * device and its appropriate settings and set them to the settings object.
@@ -61,10 +69,15 @@ public abstract class MediaFramework
 
     abstract String inputVideoDeviceCommand ();
 
+    /**
+     * @return the input option that sets the format the device is asked for
+     */
+    abstract String inputFormatCommand ();
+
     abstract String crossbarVideoInputPinNumberCommand ();
 
     abstract void guessDesiredVideoSettings (MediaFrameworkSettings settings, String listDevicesCommandResult)
-            throws IOException, NoMediaDeviceException;
+            throws IOException, NoMediaDeviceException, InterruptedException;
 
     //</editor-fold>
 
@@ -73,35 +86,15 @@ public abstract class MediaFramework
         settings.setCrf("18");
         //noinspection SpellCheckingInspection
         settings.setPreset("ultrafast");
+        settings.setRecordingMode(RecordingMode.SEGMENTED);
+        settings.setSegmentDuration(MediaFrameworkSettings.DEFAULT_SEGMENT_DURATION);
 
         //<editor-fold desc="Capture command">
 
         {
             List<String> captureCommand = new ArrayList<>();
-
-            // input
-            captureCommand.add("-f");
-            captureCommand.add(filterName());
-            captureCommand.add("-framerate");
-            captureCommand.add(MediaFrameworkSettings.FRAME_RATE);
-            captureCommand.add("-pixel_format");
-            captureCommand.add(MediaFrameworkSettings.PIXEL_FORMAT);
-            captureCommand.add("-video_size");
-            captureCommand.add(MediaFrameworkSettings.VIDEO_SIZE);
-            if (!StringUtils.isNullOrEmpty(settings.getPinNumber()))
-            {
-                //noinspection SpellCheckingInspection
-                captureCommand.add(crossbarVideoInputPinNumberCommand());
-                captureCommand.add(MediaFrameworkSettings.PIN_NUMBER);
-            }
-            captureCommand.add("-i");
-            captureCommand.add(inputVideoDeviceCommand());
-
-            // output
-            captureCommand.add("-f");
-            //noinspection SpellCheckingInspection
-            captureCommand.add("rawvideo");
-            captureCommand.add("pipe:");
+            addCaptureInput(captureCommand, settings);
+            addPipeOutput(captureCommand, settings, MediaFrameworkSettings.PIXEL_FORMAT);
             settings.setCaptureCommand(captureCommand);
         }
 
@@ -146,6 +139,9 @@ public abstract class MediaFramework
             recordCommand.add("-f");
             //noinspection SpellCheckingInspection
             recordCommand.add("rawvideo");
+            // rawvideo has no timestamps, so the frames must be timed at the capture frame rate
+            recordCommand.add("-framerate");
+            recordCommand.add(MediaFrameworkSettings.FRAME_RATE);
             recordCommand.add("-pixel_format");
             recordCommand.add(MediaFrameworkSettings.PIXEL_FORMAT);
             recordCommand.add("-video_size");
@@ -157,14 +153,204 @@ public abstract class MediaFramework
             recordCommand.add("-codec:v");
             //noinspection SpellCheckingInspection
             recordCommand.add("libx264");
+            //noinspection SpellCheckingInspection
+            recordCommand.add("-pix_fmt");
+            recordCommand.add(RECORDED_PIXEL_FORMAT);
             recordCommand.add("-crf");
             recordCommand.add(MediaFrameworkSettings.CRF);
             recordCommand.add("-preset");
             recordCommand.add(MediaFrameworkSettings.PRESET);
-            recordCommand.add(MediaFrameworkSettings.FILE_TO_RECORD);
+            recordCommand.add("-threads");
+            recordCommand.add(MediaFrameworkSettings.THREADS);
+            // the parameter sets are repeated in each key frame, so segments encoded with another preset decode after
+            // being concatenated
+            recordCommand.add("-x264-params");
+            recordCommand.add("repeat-headers=1");
+            recordCommand.add(MediaFrameworkSettings.RECORD_OUTPUT);
             settings.setRecordCommand(recordCommand);
         }
 
         //</editor-fold>
+
+        //<editor-fold desc="Concat command">
+
+        {
+            // the segments are copied into the file, without encoding them again
+            List<String> concatCommand = new ArrayList<>();
+            concatCommand.add("-f");
+            concatCommand.add("concat");
+            concatCommand.add("-safe");
+            concatCommand.add("0");
+            concatCommand.add("-i");
+            concatCommand.add(MediaFrameworkSettings.SEGMENT_LIST);
+            concatCommand.add("-codec");
+            concatCommand.add("copy");
+            concatCommand.add(MediaFrameworkSettings.FILE_TO_RECORD);
+            settings.setConcatCommand(concatCommand);
+        }
+
+        //</editor-fold>
+
+        //<editor-fold desc="Pre-record commands">
+
+        {
+            List<String> preRecordCommand = new ArrayList<>();
+
+            // input
+            preRecordCommand.add("-f");
+            //noinspection SpellCheckingInspection
+            preRecordCommand.add("rawvideo");
+            preRecordCommand.add("-framerate");
+            preRecordCommand.add(MediaFrameworkSettings.FRAME_RATE);
+            preRecordCommand.add("-pixel_format");
+            preRecordCommand.add(MediaFrameworkSettings.PIXEL_FORMAT);
+            preRecordCommand.add("-video_size");
+            preRecordCommand.add(MediaFrameworkSettings.VIDEO_SIZE);
+            preRecordCommand.add("-i");
+            preRecordCommand.add("pipe:");
+
+            // output: the same encoding as the recording, so the streams can be concatenated without encoding them
+            // again, with a key frame each second, so the buffer is dropped a second at a time
+            preRecordCommand.add("-codec:v");
+            //noinspection SpellCheckingInspection
+            preRecordCommand.add("libx264");
+            //noinspection SpellCheckingInspection
+            preRecordCommand.add("-pix_fmt");
+            preRecordCommand.add(RECORDED_PIXEL_FORMAT);
+            preRecordCommand.add("-crf");
+            preRecordCommand.add(MediaFrameworkSettings.CRF);
+            preRecordCommand.add("-preset");
+            preRecordCommand.add(MediaFrameworkSettings.PRESET);
+            preRecordCommand.add("-force_key_frames");
+            preRecordCommand.add("expr:gte(t,n_forced)");
+            // the delimiters and the repeated headers let the buffer find the frames and the key frames
+            preRecordCommand.add("-x264-params");
+            preRecordCommand.add("aud=1:repeat-headers=1");
+            preRecordCommand.add("-f");
+            preRecordCommand.add("h264");
+            preRecordCommand.add("pipe:");
+            settings.setPreRecordCommand(preRecordCommand);
+
+            // a raw H.264 stream has no timestamps, so they are generated from the frame rate
+            List<String> preRecordRemuxCommand = new ArrayList<>();
+            //noinspection SpellCheckingInspection
+            preRecordRemuxCommand.add("-fflags");
+            //noinspection SpellCheckingInspection
+            preRecordRemuxCommand.add("+genpts");
+            preRecordRemuxCommand.add("-f");
+            preRecordRemuxCommand.add("h264");
+            preRecordRemuxCommand.add("-framerate");
+            preRecordRemuxCommand.add(MediaFrameworkSettings.FRAME_RATE);
+            preRecordRemuxCommand.add("-i");
+            preRecordRemuxCommand.add("pipe:");
+            preRecordRemuxCommand.add("-codec");
+            preRecordRemuxCommand.add("copy");
+            preRecordRemuxCommand.add(MediaFrameworkSettings.FILE_TO_RECORD);
+            settings.setPreRecordRemuxCommand(preRecordRemuxCommand);
+        }
+
+        //</editor-fold>
+
+        //<editor-fold desc="Pipeline commands">
+
+        {
+            // the device is decoded once and the frames go straight to the preview pixel format
+            List<String> pipelineCommand = new ArrayList<>();
+            addCaptureInput(pipelineCommand, settings);
+            addPipeOutput(pipelineCommand, settings, FfmpegFacade.SUPPORTED_PIXEL_FORMAT);
+            settings.setPipelineCommand(pipelineCommand);
+
+            // while recording, the decoded frames are split between the preview and the encoder
+            List<String> pipelineRecordCommand = new ArrayList<>();
+            addCaptureInput(pipelineRecordCommand, settings);
+            //noinspection SpellCheckingInspection
+            pipelineRecordCommand.add("-filter_complex");
+            pipelineRecordCommand.add("[0:v]split=2[preview][record]");
+            pipelineRecordCommand.add("-map");
+            pipelineRecordCommand.add("[preview]");
+            addPipeOutput(pipelineRecordCommand, settings, FfmpegFacade.SUPPORTED_PIXEL_FORMAT);
+            pipelineRecordCommand.add("-map");
+            pipelineRecordCommand.add("[record]");
+            pipelineRecordCommand.add("-codec:v");
+            //noinspection SpellCheckingInspection
+            pipelineRecordCommand.add("libx264");
+            //noinspection SpellCheckingInspection
+            pipelineRecordCommand.add("-pix_fmt");
+            pipelineRecordCommand.add(RECORDED_PIXEL_FORMAT);
+            pipelineRecordCommand.add("-crf");
+            pipelineRecordCommand.add(MediaFrameworkSettings.CRF);
+            pipelineRecordCommand.add("-preset");
+            pipelineRecordCommand.add(MediaFrameworkSettings.PRESET);
+            pipelineRecordCommand.add("-threads");
+            pipelineRecordCommand.add(MediaFrameworkSettings.THREADS);
+            pipelineRecordCommand.add(MediaFrameworkSettings.RECORD_OUTPUT);
+            settings.setPipelineRecordCommand(pipelineRecordCommand);
+        }
+
+        //</editor-fold>
+    }
+
+    /**
+     * Adds the device input, with the options that set the format, size and frame rate it is asked for
+     */
+    private void addCaptureInput (List<String> command, MediaFrameworkSettings settings)
+    {
+        command.add("-f");
+        command.add(filterName());
+        command.add("-framerate");
+        command.add(MediaFrameworkSettings.FRAME_RATE);
+        command.add(inputFormatCommand());
+        command.add(MediaFrameworkSettings.INPUT_FORMAT);
+        command.add("-video_size");
+        command.add(MediaFrameworkSettings.VIDEO_SIZE);
+        if (!StringUtils.isNullOrEmpty(settings.getPinNumber()))
+        {
+            //noinspection SpellCheckingInspection
+            command.add(crossbarVideoInputPinNumberCommand());
+            command.add(MediaFrameworkSettings.PIN_NUMBER);
+        }
+        if (settings.getFrameTransport() == FrameTransport.NUT)
+        {
+            // stamp each frame with the time ffmpeg received it, so the capture latency can be measured
+            command.add("-use_wallclock_as_timestamps");
+            command.add("1");
+        }
+        command.add("-i");
+        command.add(inputVideoDeviceCommand());
+    }
+
+    /**
+     * Adds the output that writes the frames to the JVM through the process output pipe
+     *
+     * @param pixelFormat the pixel format of the frames written to the pipe
+     */
+    private void addPipeOutput (List<String> command, MediaFrameworkSettings settings, String pixelFormat)
+    {
+        command.add("-codec:v");
+        //noinspection SpellCheckingInspection
+        command.add("rawvideo");
+        // the device may provide a compressed input format, which must be decoded to the pixel format
+        //noinspection SpellCheckingInspection
+        command.add("-pix_fmt");
+        command.add(pixelFormat);
+        if (settings.getFrameTransport() == FrameTransport.NUT)
+        {
+            // keep the wall clock timestamps instead of shifting them to start at zero
+            //noinspection SpellCheckingInspection
+            command.add("-copyts");
+            // do not duplicate frames to fill the gaps, so the frames the device dropped can be detected
+            //noinspection SpellCheckingInspection
+            command.add("-vsync");
+            command.add("passthrough");
+            command.add("-f");
+            command.add("nut");
+        }
+        else
+        {
+            command.add("-f");
+            //noinspection SpellCheckingInspection
+            command.add("rawvideo");
+        }
+        command.add("pipe:");
     }
 }
@@ -0,0 +1,605 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.Frame;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads rawvideo frames muxed by ffmpeg in the NUT container, which gives each frame its presentation time and
+ * describes the stream resolution in its headers. Only the first stream is read. Info and index packets are skipped
+ * and checksums are not verified, since the data comes from a local pipe.
+ * <p>
+ * See the NUT specification at https://ffmpeg.org/~michael/nut.txt
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+class NutFrameReader implements FrameReader
+{
+    //noinspection SpellCheckingInspection
+    private static final byte[] FILE_ID = "nut/multimedia container\0".getBytes(StandardCharsets.US_ASCII);
+
+    private static final long MAIN_STARTCODE      = 0x4E4D7A561F5F04ADL;
+    private static final long STREAM_STARTCODE    = 0x4E5311405BF2F9DBL;
+    private static final long SYNCPOINT_STARTCODE = 0x4E4BE4ADEECA4569L;
+
+    /**
+     * Every startcode begins with this byte, which is never a valid frame code
+     */
+    private static final int STARTCODE_PREFIX = 'N';
+
+    private static final int FLAG_CODED_PTS  = 8;
+    private static final int FLAG_STREAM_ID  = 16;
+    private static final int FLAG_SIZE_MSB   = 32;
+    private static final int FLAG_CHECKSUM   = 64;
+    private static final int FLAG_RESERVED   = 128;
+    private static final int FLAG_SM_DATA    = 256;
+    private static final int FLAG_HEADER_IDX = 1024;
+    private static final int FLAG_MATCH_TIME = 2048;
+    private static final int FLAG_CODED      = 4096;
+    private static final int FLAG_INVALID    = 8192;
+
+    /**
+     * Packets bigger than this are always followed by a header checksum, and frames bigger than this never use an
+     * elision header
+     */
+    private static final int  CHECKSUM_THRESHOLD = 4096;
+    private static final int  MAX_HEADER_SIZE    = 1 << 20;
+    private static final long MICROSECONDS       = 1_000_000;
+
+    private final ReadableByteChannel channel;
+    private final String              pixelFormat;
+    private final ByteBuffer          readAhead  = ByteBuffer.allocate(64 * 1024);
+    private final FrameCode[]         frameCodes = new FrameCode[256];
+
+    private boolean  fileIdRead     = false;
+    private boolean  mainHeaderRead = false;
+    private long     version;
+    private long[]   timeBaseNumerators;
+    private long[]   timeBaseDenominators;
+    private byte[][] elisionHeaders = {new byte[0]};
+
+    private int  streamTimeBase = -1;
+    private int  msbPtsShift;
+    private long lastPts;
+    private int  width;
+    private int  height;
+
+    private long sequenceNumber = 0;
+    private long skippedFrames  = 0;
+
+    /**
+     * @param channel     the process output
+     * @param pixelFormat the ffmpeg name of the pixel format the capture was asked for, since the stream only has its
+     *                    codec tag
+     */
+    NutFrameReader (ReadableByteChannel channel, String pixelFormat)
+    {
+        this.channel = channel;
+        this.pixelFormat = pixelFormat;
+        readAhead.flip();
+    }
+
+    @Override
+    public boolean read (Frame frame) throws IOException
+    {
+        try
+        {
+            if (!fileIdRead)
+            {
+                readFileId();
+            }
+            while (true)
+            {
+                if (peekByte() == STARTCODE_PREFIX)
+                {
+                    readPacket(readLong());
+                }
+                else if (readFrame(frame))
+                {
+                    return true;
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public long getSkippedFrames ()
+    {
+        return skippedFrames;
+    }
+
+    //<editor-fold desc="packets">
+    private void readFileId () throws IOException
+    {
+        byte[] fileId = readBytes(FILE_ID.length);
+        if (!Arrays.equals(fileId, FILE_ID))
+        {
+            throw new IOException("The process output is not a NUT stream!");
+        }
+        fileIdRead = true;
+    }
+
+    private void readPacket (long startcode) throws IOException
+    {
+        long forwardPointer = readVarlen();
+        if (forwardPointer > CHECKSUM_THRESHOLD)
+        {
+            skip(4);
+        }
+        if (startcode == MAIN_STARTCODE)
+        {
+            readMainHeader(new PacketParser(readPacketBytes(forwardPointer)));
+        }
+        else if (startcode == STREAM_STARTCODE)
+        {
+            readStreamHeader(new PacketParser(readPacketBytes(forwardPointer)));
+        }
+        else if (startcode == SYNCPOINT_STARTCODE && streamTimeBase >= 0)
+        {
+            readSyncpoint(new PacketParser(readPacketBytes(forwardPointer)));
+        }
+        else
+        {
+            skip(forwardPointer);
+        }
+    }
+
+    private void readMainHeader (PacketParser packet) throws IOException
+    {
+        version = packet.readVarlen();
+        if (version > 3)
+        {
+            packet.readVarlen();
+        }
+        packet.readVarlen();
+        packet.readVarlen();
+        int timeBaseCount = (int) packet.readVarlen();
+        if (timeBaseCount <= 0)
+        {
+            throw new IOException("NUT main header without time bases!");
+        }
+        timeBaseNumerators = new long[timeBaseCount];
+        timeBaseDenominators = new long[timeBaseCount];
+        for (int i = 0; i < timeBaseCount; i++)
+        {
+            timeBaseNumerators[i] = packet.readVarlen();
+            timeBaseDenominators[i] = packet.readVarlen();
+        }
+        readFrameCodes(packet);
+        elisionHeaders = new byte[][]{new byte[0]};
+        if (packet.hasMore())
+        {
+            int headerCount = (int) packet.readVarlen() + 1;
+            elisionHeaders = new byte[headerCount][];
+            elisionHeaders[0] = new byte[0];
+            for (int i = 1; i < headerCount; i++)
+            {
+                elisionHeaders[i] = packet.readBytes((int) packet.readVarlen());
+            }
+        }
+        mainHeaderRead = true;
+    }
+
+    private void readFrameCodes (PacketParser packet) throws IOException
+    {
+        long pts = 0;
+        long sizeMultiplier = 1;
+        long streamId = 0;
+        long headerIndex = 0;
+        for (int i = 0; i < 256; )
+        {
+            int flags = (int) packet.readVarlen();
+            long fields = packet.readVarlen();
+            if (fields > 0)
+            {
+                pts = packet.readSigned();
+            }
+            if (fields > 1)
+            {
+                sizeMultiplier = packet.readVarlen();
+            }
+            if (fields > 2)
+            {
+                streamId = packet.readVarlen();
+            }
+            long sizeLsb = fields > 3 ? packet.readVarlen() : 0;
+            long reservedCount = fields > 4 ? packet.readVarlen() : 0;
+            long count = fields > 5 ? packet.readVarlen() : sizeMultiplier - sizeLsb;
+            if (fields > 6)
+            {
+                packet.readSigned();
+            }
+            if (fields > 7)
+            {
+                headerIndex = packet.readVarlen();
+            }
+            for (long field = 8; field < fields; field++)
+            {
+                packet.readVarlen();
+            }
+            if (count <= 0 || count > 256 - i)
+            {
+                throw new IOException("Invalid NUT frame code table!");
+            }
+            for (long j = 0; j < count && i < 256; i++)
+            {
+                if (i == STARTCODE_PREFIX)
+                {
+                    frameCodes[i] = new FrameCode(FLAG_INVALID, 0, 0, 0, 0, 0, 0);
+                }
+                else
+                {
+                    frameCodes[i] = new FrameCode(flags, pts, sizeMultiplier, sizeLsb + j, streamId, reservedCount,
+                            headerIndex);
+                    j++;
+                }
+            }
+        }
+    }
+
+    private void readStreamHeader (PacketParser packet) throws IOException
+    {
+        if (!mainHeaderRead)
+        {
+            throw new IOException("NUT stream header before the main header!");
+        }
+        long streamId = packet.readVarlen();
+        long streamClass = packet.readVarlen();
+        packet.readBytes((int) packet.readVarlen());
+        int timeBase = (int) packet.readVarlen();
+        int shift = (int) packet.readVarlen();
+        packet.readVarlen();
+        packet.readVarlen();
+        packet.readVarlen();
+        packet.readBytes((int) packet.readVarlen());
+        if (streamId != 0)
+        {
+            return;
+        }
+        if (streamClass != 0)
+        {
+            throw new IOException("The first NUT stream is not a video stream!");
+        }
+        if (timeBase >= timeBaseNumerators.length || shift > 62)
+        {
+            throw new IOException("Invalid NUT stream header!");
+        }
+        streamTimeBase = timeBase;
+        msbPtsShift = shift;
+        width = (int) packet.readVarlen();
+        height = (int) packet.readVarlen();
+    }
+
+    private void readSyncpoint (PacketParser packet) throws IOException
+    {
+        long globalPts = packet.readVarlen();
+        int timeBase = (int) (globalPts % timeBaseNumerators.length);
+        lastPts = rescale(globalPts / timeBaseNumerators.length, timeBaseNumerators[timeBase],
+                timeBaseDenominators[timeBase], timeBaseNumerators[streamTimeBase],
+                timeBaseDenominators[streamTimeBase]);
+    }
+
+    /**
+     * Reads a frame header and its payload.
+     *
+     * @return false if the frame was skipped
+     */
+    private boolean readFrame (Frame frame) throws IOException
+    {
+        if (streamTimeBase < 0)
+        {
+            throw new IOException("NUT frame before the stream header!");
+        }
+        FrameCode code = frameCodes[readByte()];
+        int flags = code.flags;
+        if ((flags & FLAG_INVALID) != 0)
+        {
+            throw new IOException("Invalid NUT frame code!");
+        }
+        if ((flags & FLAG_CODED) != 0)
+        {
+            flags ^= (int) readVarlen();
+        }
+        long streamId = (flags & FLAG_STREAM_ID) != 0 ? readVarlen() : code.streamId;
+        long pts;
+        if ((flags & FLAG_CODED_PTS) != 0)
+        {
+            long codedPts = readVarlen();
+            pts = codedPts < 1L << msbPtsShift ? lsbToFull(codedPts) : codedPts - (1L << msbPtsShift);
+        }
+        else
+        {
+            pts = lastPts + code.ptsDelta;
+        }
+        long size = code.sizeLsb;
+        if ((flags & FLAG_SIZE_MSB) != 0)
+        {
+            size += code.sizeMultiplier * readVarlen();
+        }
+        if ((flags & FLAG_MATCH_TIME) != 0)
+        {
+            readSigned();
+        }
+        long headerIndex = (flags & FLAG_HEADER_IDX) != 0 ? readVarlen() : code.headerIndex;
+        long reservedCount = (flags & FLAG_RESERVED) != 0 ? readVarlen() : code.reservedCount;
+        for (long i = 0; i < reservedCount; i++)
+        {
+            readVarlen();
+        }
+        if (headerIndex >= elisionHeaders.length)
+        {
+            throw new IOException("Invalid NUT elision header index!");
+        }
+        if (size > CHECKSUM_THRESHOLD)
+        {
+            headerIndex = 0;
+        }
+        byte[] elisionHeader = elisionHeaders[(int) headerIndex];
+        size -= elisionHeader.length;
+        if ((flags & FLAG_CHECKSUM) != 0)
+        {
+            skip(4);
+        }
+        if ((flags & FLAG_SM_DATA) != 0)
+        {
+            throw new IOException("NUT side data is not supported!");
+        }
+
+        if (streamId != 0)
+        {
+            skip(size);
+            return false;
+        }
+        lastPts = pts;
+        if (elisionHeader.length + size != frame.length())
+        {
+            // the device changed its resolution or pixel format, the frames no longer fit the pool
+            skip(size);
+            skippedFrames++;
+            return false;
+        }
+        ByteBuffer buffer = frame.writableBuffer();
+        buffer.put(elisionHeader);
+        readFully(buffer);
+        frame.describe(sequenceNumber++, toMicroseconds(pts), width, height, pixelFormat);
+        return true;
+    }
+
+    private long lsbToFull (long lsb)
+    {
+        long mask = (1L << msbPtsShift) - 1;
+        long delta = lastPts - mask / 2;
+        return ((lsb - delta) & mask) + delta;
+    }
+
+    private long toMicroseconds (long pts)
+    {
+        return rescale(pts, timeBaseNumerators[streamTimeBase], timeBaseDenominators[streamTimeBase], 1,
+                MICROSECONDS);
+    }
+
+    private static long rescale (long value, long fromNumerator, long fromDenominator, long toNumerator,
+            long toDenominator)
+    {
+        // wall clock timestamps in small time bases overflow a long when multiplied
+        return BigInteger.valueOf(value)
+                .multiply(BigInteger.valueOf(fromNumerator).multiply(BigInteger.valueOf(toDenominator)))
+                .divide(BigInteger.valueOf(fromDenominator).multiply(BigInteger.valueOf(toNumerator)))
+                .longValue();
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="channel">
+    private int peekByte () throws IOException
+    {
+        ensureAvailable(1);
+        return readAhead.get(readAhead.position()) & 0xFF;
+    }
+
+    private int readByte () throws IOException
+    {
+        ensureAvailable(1);
+        return readAhead.get() & 0xFF;
+    }
+
+    private long readLong () throws IOException
+    {
+        ensureAvailable(8);
+        return readAhead.getLong();
+    }
+
+    private long readVarlen () throws IOException
+    {
+        long value = 0;
+        int b;
+        do
+        {
+            b = readByte();
+            value = (value << 7) | (b & 0x7F);
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private long readSigned () throws IOException
+    {
+        return PacketParser.toSigned(readVarlen());
+    }
+
+    private byte[] readBytes (int length) throws IOException
+    {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length)
+        {
+            ensureAvailable(1);
+            int chunk = Math.min(length - read, readAhead.remaining());
+            readAhead.get(bytes, read, chunk);
+            read += chunk;
+        }
+        return bytes;
+    }
+
+    private byte[] readPacketBytes (long forwardPointer) throws IOException
+    {
+        if (forwardPointer > MAX_HEADER_SIZE)
+        {
+            throw new IOException("NUT header too big: " + forwardPointer + " bytes!");
+        }
+        return readBytes((int) forwardPointer);
+    }
+
+    /**
+     * Fills the buffer, first with the bytes already read ahead, then straight from the channel
+     */
+    private void readFully (ByteBuffer buffer) throws IOException
+    {
+        if (readAhead.hasRemaining())
+        {
+            int chunk = Math.min(buffer.remaining(), readAhead.remaining());
+            ByteBuffer slice = readAhead.duplicate();
+            slice.limit(slice.position() + chunk);
+            buffer.put(slice);
+            readAhead.position(readAhead.position() + chunk);
+        }
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) == -1)
+            {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private void skip (long length) throws IOException
+    {
+        while (length > 0)
+        {
+            ensureAvailable(1);
+            int chunk = (int) Math.min(length, readAhead.remaining());
+            readAhead.position(readAhead.position() + chunk);
+            length -= chunk;
+        }
+    }
+
+    private void ensureAvailable (int length) throws IOException
+    {
+        if (readAhead.remaining() >= length)
+        {
+            return;
+        }
+        readAhead.compact();
+        try
+        {
+            while (readAhead.position() < length)
+            {
+                if (channel.read(readAhead) == -1)
+                {
+                    throw new EOFException();
+                }
+            }
+        }
+        finally
+        {
+            readAhead.flip();
+        }
+    }
+    //</editor-fold>
+
+    private static class FrameCode
+    {
+        private final int  flags;
+        private final long ptsDelta;
+        private final long sizeMultiplier;
+        private final long sizeLsb;
+        private final long streamId;
+        private final long reservedCount;
+        private final long headerIndex;
+
+        private FrameCode (int flags, long ptsDelta, long sizeMultiplier, long sizeLsb, long streamId,
+                long reservedCount, long headerIndex)
+        {
+            this.flags = flags;
+            this.ptsDelta = ptsDelta;
+            this.sizeMultiplier = sizeMultiplier;
+            this.sizeLsb = sizeLsb;
+            this.streamId = streamId;
+            this.reservedCount = reservedCount;
+            this.headerIndex = headerIndex;
+        }
+    }
+
+    /**
+     * Parses the content of a packet already read, which ends with its 4 bytes checksum
+     */
+    private static class PacketParser
+    {
+        private final byte[] bytes;
+
+        private int position = 0;
+
+        private PacketParser (byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        private static long toSigned (long value)
+        {
+            value++;
+            return (value & 1) != 0 ? -(value >> 1) : value >> 1;
+        }
+
+        private boolean hasMore ()
+        {
+            return position < bytes.length - 4;
+        }
+
+        private int readByte () throws IOException
+        {
+            if (position >= bytes.length)
+            {
+                throw new IOException("Truncated NUT header!");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        private long readVarlen () throws IOException
+        {
+            long value = 0;
+            int b;
+            do
+            {
+                b = readByte();
+                value = (value << 7) | (b & 0x7F);
+            }
+            while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private long readSigned () throws IOException
+        {
+            return toSigned(readVarlen());
+        }
+
+        private byte[] readBytes (int length) throws IOException
+        {
+            if (length < 0 || position + length > bytes.length)
+            {
+                throw new IOException("Truncated NUT header!");
+            }
+            byte[] read = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return read;
+        }
+    }
+}
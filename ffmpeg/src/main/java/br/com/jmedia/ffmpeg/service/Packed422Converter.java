@@ -0,0 +1,65 @@
+package br.com.jmedia.ffmpeg.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the packed 4:2:2 YUV formats, where every two pixels are four bytes holding both lumas and the shared
+ * chroma samples
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+class Packed422Converter extends PixelConverter
+{
+    private final int firstLumaOffset;
+    private final int secondLumaOffset;
+    private final int uOffset;
+    private final int vOffset;
+
+    private Packed422Converter (String pixelFormat, int width, int height, int firstLumaOffset, int uOffset,
+            int secondLumaOffset, int vOffset)
+    {
+        super(pixelFormat, width, height);
+        this.firstLumaOffset = firstLumaOffset;
+        this.secondLumaOffset = secondLumaOffset;
+        this.uOffset = uOffset;
+        this.vOffset = vOffset;
+    }
+
+    static Packed422Converter yuyv422 (int width, int height)
+    {
+        //noinspection SpellCheckingInspection
+        return new Packed422Converter("yuyv422", width, height, 0, 1, 2, 3);
+    }
+
+    static Packed422Converter uyvy422 (int width, int height)
+    {
+        //noinspection SpellCheckingInspection
+        return new Packed422Converter("uyvy422", width, height, 1, 0, 3, 2);
+    }
+
+    @Override
+    public void convertRows (ByteBuffer source, ByteBuffer target, int firstRow, int endRow)
+    {
+        int base = source.position();
+        int stride = sourceLayout.getStride(0, width);
+        for (int row = firstRow; row < endRow; row++)
+        {
+            int sourceIndex = base + row * stride;
+            int targetIndex = row * width * BYTES_PER_TARGET_PIXEL;
+            for (int pair = 0; pair < width / 2; pair++, sourceIndex += 4)
+            {
+                int u = source.get(sourceIndex + uOffset) & 0xFF;
+                int v = source.get(sourceIndex + vOffset) & 0xFF;
+                int redChroma = RV_TABLE[v];
+                int greenChroma = GU_TABLE[u] + GV_TABLE[v];
+                int blueChroma = BU_TABLE[u];
+                target.putInt(targetIndex, bgra(Y_TABLE[source.get(sourceIndex + firstLumaOffset) & 0xFF],
+                        redChroma, greenChroma, blueChroma));
+                targetIndex += BYTES_PER_TARGET_PIXEL;
+                target.putInt(targetIndex, bgra(Y_TABLE[source.get(sourceIndex + secondLumaOffset) & 0xFF],
+                        redChroma, greenChroma, blueChroma));
+                targetIndex += BYTES_PER_TARGET_PIXEL;
+            }
+        }
+    }
+}
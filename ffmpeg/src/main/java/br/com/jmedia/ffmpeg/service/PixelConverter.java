@@ -0,0 +1,170 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.PixelLayout;
+import br.com.jmedia.ffmpeg.model.PixelLayouts;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts frames of a pixel format to the BGRA format of the preview, in the JVM. The conversion of each pixel is a
+ * few lookups in precomputed tables, and nothing is allocated while converting. Rows are independent, so a frame can
+ * be split in stripes converted by different threads.
+ * <p>
+ * YUV formats are converted with the BT.601 limited range coefficients, which are the ones of SD video devices and of
+ * the ffmpeg conversion this class replaces.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public abstract class PixelConverter
+{
+    static final int BYTES_PER_TARGET_PIXEL = 4;
+
+    private static final int SHIFT        = 10;
+    private static final int CLAMP_OFFSET = 384;
+
+    /**
+     * Luma contribution to each component, scaled by 2^SHIFT
+     */
+    static final int[] Y_TABLE  = new int[256];
+    static final int[] RV_TABLE = new int[256];
+    static final int[] GU_TABLE = new int[256];
+    static final int[] GV_TABLE = new int[256];
+    static final int[] BU_TABLE = new int[256];
+
+    /**
+     * Clamps a component, already shifted, to 0 - 255. The index is the component plus {@link #CLAMP_OFFSET}.
+     */
+    private static final int[] CLAMP_TABLE = new int[1024];
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            Y_TABLE[i] = (int) Math.round(1.164 * (i - 16) * (1 << SHIFT));
+            RV_TABLE[i] = (int) Math.round(1.596 * (i - 128) * (1 << SHIFT));
+            GU_TABLE[i] = (int) Math.round(-0.391 * (i - 128) * (1 << SHIFT));
+            GV_TABLE[i] = (int) Math.round(-0.813 * (i - 128) * (1 << SHIFT));
+            BU_TABLE[i] = (int) Math.round(2.018 * (i - 128) * (1 << SHIFT));
+        }
+        for (int i = 0; i < CLAMP_TABLE.length; i++)
+        {
+            CLAMP_TABLE[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+        }
+    }
+
+    private static final PixelLayout TARGET_LAYOUT = PixelLayouts.forName("bgra");
+
+    final PixelLayout sourceLayout;
+    final int         width;
+    final int         height;
+
+    PixelConverter (String sourcePixelFormat, int width, int height)
+    {
+        this.sourceLayout = PixelLayouts.forName(sourcePixelFormat);
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Finds a converter for the pixel format
+     *
+     * @param pixelFormat the ffmpeg name of the pixel format
+     * @param width       the frame width
+     * @param height      the frame height
+     * @return the converter, or null if there is none for the pixel format
+     */
+    public static PixelConverter forPixelFormat (String pixelFormat, int width, int height)
+    {
+        if (pixelFormat == null || width % 2 != 0 || height % 2 != 0)
+        {
+            return null;
+        }
+        //noinspection SpellCheckingInspection
+        switch (pixelFormat)
+        {
+            case "yuyv422":
+                return Packed422Converter.yuyv422(width, height);
+            case "uyvy422":
+                return Packed422Converter.uyvy422(width, height);
+            case "nv12":
+                return Yuv420Converter.nv12(width, height);
+            case "yuv420p":
+                return Yuv420Converter.yuv420p(width, height);
+            case "rgb24":
+                return new Rgb24Converter(width, height);
+            default:
+                return null;
+        }
+    }
+
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    /**
+     * @return the number of bytes of a source frame
+     */
+    public int getSourceLength ()
+    {
+        return sourceLayout.bytesPerFrame(width, height);
+    }
+
+    /**
+     * @return the number of bytes of a converted frame
+     */
+    public int getTargetLength ()
+    {
+        return TARGET_LAYOUT.bytesPerFrame(width, height);
+    }
+
+    /**
+     * Stripes must start at a multiple of this number of rows, because the rows share their chroma samples
+     *
+     * @return the number of rows
+     */
+    public int getRowAlignment ()
+    {
+        return 1;
+    }
+
+    /**
+     * Converts a whole frame
+     *
+     * @param source the source frame, from its position
+     * @param target the converted frame, from position zero. Its byte order is changed to little endian.
+     */
+    public void convert (ByteBuffer source, ByteBuffer target)
+    {
+        target.order(ByteOrder.LITTLE_ENDIAN);
+        convertRows(source, target, 0, height);
+    }
+
+    /**
+     * Converts some rows of a frame. Can be invoked by different threads for different rows of the same frame.
+     *
+     * @param source   the source frame, from its position, which is not changed
+     * @param target   the converted frame, from position zero, in little endian byte order. Its position is not
+     *                 changed.
+     * @param firstRow the first row to convert
+     * @param endRow   the row after the last row to convert
+     */
+    public abstract void convertRows (ByteBuffer source, ByteBuffer target, int firstRow, int endRow);
+
+    /**
+     * @return the BGRA pixel as a little endian int
+     */
+    static int bgra (int luma, int redChroma, int greenChroma, int blueChroma)
+    {
+        return 0xFF000000
+                | CLAMP_TABLE[((luma + redChroma) >> SHIFT) + CLAMP_OFFSET] << 16
+                | CLAMP_TABLE[((luma + greenChroma) >> SHIFT) + CLAMP_OFFSET] << 8
+                | CLAMP_TABLE[((luma + blueChroma) >> SHIFT) + CLAMP_OFFSET];
+    }
+}
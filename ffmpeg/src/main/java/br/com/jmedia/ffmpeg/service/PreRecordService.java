@@ -0,0 +1,280 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.GopRing;
+import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the last seconds of the capture in memory, so a recording can start with what happened before it was
+ * started. The captured frames are encoded by a lightweight encoder process to an H.264 stream with a key frame each
+ * second, and a {@link GopRing} keeps its last groups of pictures, under a memory cap.
+ * <p>
+ * Flushing closes the encoder input, so the frames it still holds are written too, and writes the groups kept to an mp4
+ * file without encoding them again. A flushed service receives no more frames: another one must be started to keep
+ * buffering.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class PreRecordService implements ProcessClient, CaptureServiceClient
+{
+    private @Inject Logger            logger;
+    private @Inject ProcessUtils      processUtils;
+    private @Inject ProcessSupervisor supervisor;
+
+    /**
+     * The frame rate assumed when the settings do not have a valid one
+     */
+    private static final double DEFAULT_FRAME_RATE = 30;
+    private static final int    READ_BUFFER_SIZE   = 64 * 1024;
+
+    private final CompletableFuture<Path> flushed = new CompletableFuture<>();
+
+    private MediaFrameworkSettings      settings;
+    private ProcessUtils.ProcessManager processManager;
+    private OutputStream                outputStream;
+    private GopRing                     gopRing;
+
+    /**
+     * The file the kept stream is written to when the encoder output ends, null if it was not flushed
+     */
+    private volatile Path target;
+
+    private volatile boolean exited      = false;
+    private volatile boolean writeFailed = false;
+    private          boolean closed      = false;
+
+    /**
+     * Starts the encoder. The service must be added to the capture to receive the frames.
+     *
+     * @param settings     the settings that created the pre-record commands
+     * @param pixelFormat  the pixel format of the captured frames
+     * @param seconds      how many seconds of video are kept
+     * @param maxMegabytes the memory cap of the kept stream
+     * @throws IOException if the encoder could not be started or the settings were created without its command
+     */
+    public void start (MediaFrameworkSettings settings, String pixelFormat, int seconds, int maxMegabytes) throws
+            IOException
+    {
+        List<String> command = settings.getPreRecordCommand(pixelFormat);
+        if (command == null)
+        {
+            throw new IOException("The settings were created without the pre-record commands!");
+        }
+        this.settings = settings;
+        double frameRate = settings.frameRateValue() > 0 ? settings.frameRateValue() : DEFAULT_FRAME_RATE;
+        gopRing = new GopRing((int) Math.ceil(seconds * frameRate), maxMegabytes * 1024L * 1024L);
+        processManager = processUtils.createManager(command, this);
+        outputStream = processManager.getProcessInput();
+        supervisor.execute(processName() + " output to ring reader", new OutputToRingTask());
+    }
+
+    /**
+     * Stops receiving frames and writes what is kept, including the frames the encoder still holds, to an mp4 file.
+     *
+     * @param videoFilePath the mp4 file, in an existing folder
+     * @return a future completed with the file when it is written, or with null if nothing could be written
+     */
+    public CompletableFuture<Path> flush (Path videoFilePath)
+    {
+        target = videoFilePath;
+        closeOutputStream();
+        return flushed;
+    }
+
+    @Override
+    public synchronized void receive (ByteBuffer frame)
+    {
+        if (closed || writeFailed || exited)
+        {
+            return;
+        }
+        try
+        {
+            processManager.writeFrame(frame);
+        }
+        catch (IOException e)
+        {
+            // the pre-record is lost, but the capture, the preview and the recordings go on
+            logger.error(processName() + ": Could not write to output stream!", e);
+            writeFailed = true;
+        }
+    }
+
+    @Override
+    public void captureStopped ()
+    {
+        closeOutputStream();
+    }
+
+    @Override
+    public String processName ()
+    {
+        return "Video pre-record process";
+    }
+
+    @Override
+    public void processExited (int exitCode)
+    {
+        exited = true;
+        String stdErrOutput = processManager.getStdErrOutput();
+        if (exitCode == 0)
+        {
+            logger.info(processName() + " exited successfully.");
+            if (stdErrOutput != null)
+            {
+                logger.debug("Process stdErr output: " + stdErrOutput);
+            }
+        }
+        else
+        {
+            logger.error(processName() + " did not exit normally! Exit code: " + exitCode);
+            if (stdErrOutput != null)
+            {
+                logger.error("Process stdErr output: " + stdErrOutput);
+            }
+        }
+    }
+
+    @Override
+    public void handleWaitForException (Exception e)
+    {
+        logger.error(processName() + " waitFor exception!", e);
+        exited = true;
+    }
+
+    private synchronized void closeOutputStream ()
+    {
+        if (closed || exited)
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            outputStream.close();
+        }
+        catch (IOException e)
+        {
+            logger.error(processName() + ": Could not close output stream!", e);
+        }
+    }
+
+    /**
+     * Writes the kept stream to the target file through a remux process
+     *
+     * @param ended if the encoder output ended, so its last frame is complete
+     */
+    private void writeTarget (Path videoFilePath, boolean ended)
+    {
+        byte[] stream = gopRing.drain(ended);
+        if (stream.length == 0)
+        {
+            logger.warn("The pre-record buffer is empty! Nothing written to " + videoFilePath);
+            flushed.complete(null);
+            return;
+        }
+        RemuxClient remuxClient = new RemuxClient(videoFilePath);
+        try
+        {
+            remuxClient.processManager = processUtils.createManager(settings.getPreRecordRemuxCommand(videoFilePath),
+                    remuxClient);
+            try (OutputStream remuxInput = remuxClient.processManager.getProcessInput())
+            {
+                remuxInput.write(stream);
+            }
+            logger.info(stream.length + " bytes of pre-record written to the remux process");
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not write the pre-record to " + videoFilePath + "!", e);
+            flushed.complete(null);
+        }
+    }
+
+    private class OutputToRingTask implements Runnable
+    {
+        @Override
+        public void run ()
+        {
+            boolean ended = false;
+            try
+            {
+                InputStream processOutput = processManager.getProcessOutput();
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int read;
+                while ((read = processOutput.read(buffer)) != -1)
+                {
+                    gopRing.append(buffer, 0, read);
+                }
+                ended = true;
+            }
+            catch (IOException e)
+            {
+                logger.error("Error in " + processName(), e);
+            }
+            Path videoFilePath = target;
+            if (videoFilePath == null)
+            {
+                flushed.complete(null);
+            }
+            else
+            {
+                writeTarget(videoFilePath, ended);
+            }
+        }
+    }
+
+    private class RemuxClient implements ProcessClient
+    {
+        private final Path videoFilePath;
+
+        private ProcessUtils.ProcessManager processManager;
+
+        private RemuxClient (Path videoFilePath)
+        {
+            this.videoFilePath = videoFilePath;
+        }
+
+        @Override
+        public void handleWaitForException (Exception e)
+        {
+            logger.error(processName() + " waitFor exception!", e);
+            flushed.complete(null);
+        }
+
+        @Override
+        public String processName ()
+        {
+            return "Video pre-record remux process";
+        }
+
+        @Override
+        public void processExited (int exitCode)
+        {
+            if (exitCode == 0)
+            {
+                logger.info(processName() + " exited successfully. " + videoFilePath + " written.");
+                flushed.complete(videoFilePath);
+            }
+            else
+            {
+                logger.error(processName() + " did not exit normally! Exit code: " + exitCode);
+                String stdErrOutput = processManager == null ? null : processManager.getStdErrOutput();
+                if (stdErrOutput != null)
+                {
+                    logger.error("Process stdErr output: " + stdErrOutput);
+                }
+                flushed.complete(null);
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package br.com.jmedia.ffmpeg.service;
 
+import br.com.jmedia.ffmpeg.model.EncoderProgress;
+
 /**
  * @author Lima Filho, A. L. - amsterdam@luvva.com.br
  */
@@ -25,4 +27,13 @@ interface ProcessClient
      * @param exitCode the waitFor result
      */
     void processExited (int exitCode);
+
+    /**
+     * Invoked, in the stdErr reader thread, whenever the process reports its progress
+     *
+     * @param progress the progress
+     */
+    default void progressUpdated (EncoderProgress progress)
+    {
+    }
 }
@@ -0,0 +1,283 @@
+package br.com.jmedia.ffmpeg.service;
+
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Supervises every ffmpeg process of the application with shared threads. The blocking tasks of the processes, like
+ * reading their outputs, run on one executor: virtual threads when the runtime has them, otherwise a pool of daemon
+ * threads reused between processes. Exits are waited for by the runtime process reaper when it exposes
+ * {@code Process.onExit()}, otherwise by a task of the executor.
+ * <p>
+ * The services run their other background work on the same threads: the one-shot tasks, like preparing an encoder,
+ * on the executor, and the periodic checks, like the capture watchdogs, on a single scheduler thread that only starts
+ * their runs on the executor, so a check that blocks delays no other.
+ * <p>
+ * A single shutdown hook waits for the tasks the application must not exit without, then destroys all the processes
+ * still running at once and destroys forcibly the ones that did not exit after {@value #DESTROY_TIMEOUT}
+ * milliseconds, so the shutdown takes as long with one pipeline as with many.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+@Singleton
+public class ProcessSupervisor
+{
+    private @Inject Logger logger;
+
+    /**
+     * How long the processes have to exit after being destroyed on shutdown, in milliseconds
+     */
+    private static final long DESTROY_TIMEOUT = 3000;
+
+    /**
+     * {@code Process.onExit()}, null if the runtime does not have it
+     */
+    private static final Method ON_EXIT = findMethod(Process.class, "onExit");
+
+    private final Set<Process>                 liveProcesses  = ConcurrentHashMap.newKeySet();
+    /**
+     * The tasks the shutdown hook waits for
+     */
+    private final Set<CompletableFuture<Void>> unfinishedWork = ConcurrentHashMap.newKeySet();
+
+    private ExecutorService          executor;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Runs a blocking task, like reading an output of a process
+     *
+     * @param name the name of the task, given to the thread while it runs
+     * @param task the task
+     * @return the future of the task, which interrupts it if cancelled with {@code mayInterruptIfRunning}
+     */
+    public Future<?> execute (String name, Runnable task)
+    {
+        return getExecutor().submit(() ->
+        {
+            Thread thread = Thread.currentThread();
+            String previousName = thread.getName();
+            thread.setName(name);
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                logger.error(name + " failed!", e);
+            }
+            finally
+            {
+                thread.setName(previousName);
+            }
+        });
+    }
+
+    /**
+     * Runs a task the application must not exit without, like finishing a recorded file. The threads of the executor
+     * are daemons, so the shutdown hook waits for the task before it destroys the processes.
+     *
+     * @param name the name of the task, given to the thread while it runs
+     * @param task the task
+     */
+    public void executeBeforeExit (String name, Runnable task)
+    {
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        unfinishedWork.add(finished);
+        execute(name, () ->
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                unfinishedWork.remove(finished);
+                finished.complete(null);
+            }
+        });
+    }
+
+    /**
+     * Runs a check periodically, on the executor, until the returned future is cancelled. A run that is due while the
+     * previous one still runs is skipped, so a slow check never runs twice at once.
+     *
+     * @param name   the name of the check, given to the thread while it runs
+     * @param check  the check
+     * @param period the time between the end of a run and the start of the next one, and before the first run
+     * @param unit   the unit of the period
+     * @return the future that stops the check when cancelled
+     */
+    public ScheduledFuture<?> schedule (String name, Runnable check, long period, TimeUnit unit)
+    {
+        AtomicBoolean running = new AtomicBoolean();
+        return getScheduler().scheduleWithFixedDelay(() ->
+        {
+            if (running.compareAndSet(false, true))
+            {
+                execute(name, () ->
+                {
+                    try
+                    {
+                        check.run();
+                    }
+                    finally
+                    {
+                        running.set(false);
+                    }
+                });
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Destroys the process if the application shuts down while it runs, and runs a task when it exits
+     *
+     * @param process the process
+     * @param name    the name of the process
+     * @param exited  the task, which may invoke {@link Process#waitFor()} to get the exit code without blocking
+     */
+    @SuppressWarnings("unchecked")
+    public void supervise (Process process, String name, Runnable exited)
+    {
+        // the shutdown hook is added with the executor
+        getExecutor();
+        liveProcesses.add(process);
+        Runnable exitedTask = () ->
+        {
+            try
+            {
+                exited.run();
+            }
+            finally
+            {
+                liveProcesses.remove(process);
+            }
+        };
+        if (ON_EXIT != null)
+        {
+            try
+            {
+                CompletableFuture<Process> onExit = (CompletableFuture<Process>) ON_EXIT.invoke(process);
+                onExit.whenComplete((exitedProcess, e) -> execute(name + " exit task", exitedTask));
+                return;
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                logger.debug("Could not wait for " + name + " with onExit. Waiting with a task.", e);
+            }
+        }
+        // the task blocks in waitFor until the process exits
+        execute(name + " waitFor task", exitedTask);
+    }
+
+    private synchronized ExecutorService getExecutor ()
+    {
+        if (executor == null)
+        {
+            executor = createExecutor();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::destroyAll, "Process supervisor shutdown hook"));
+        }
+        return executor;
+    }
+
+    private synchronized ScheduledExecutorService getScheduler ()
+    {
+        if (scheduler == null)
+        {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+            {
+                Thread thread = new Thread(runnable, "Process supervisor scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private ExecutorService createExecutor ()
+    {
+        Method virtualThreadExecutor = findMethod(Executors.class, "newVirtualThreadPerTaskExecutor");
+        if (virtualThreadExecutor != null)
+        {
+            try
+            {
+                logger.info("Supervising processes with virtual threads");
+                return (ExecutorService) virtualThreadExecutor.invoke(null);
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                logger.warn("Could not create the virtual thread executor! Supervising processes with a pool...", e);
+            }
+        }
+        // not bounded, because a task blocks its thread while its process runs: the outputs of the processes past a
+        // bound would not be read, and ffmpeg would block writing to the full pipe. The processes bound the pool
+        // instead, with two threads each at most, its stdErr reader and its waitFor task, besides the one-shot tasks
+        // and the runs of the checks, which never run twice at once. The pipelines run a handful of processes, so the
+        // pool stays at a few dozen threads, reused between processes and ended after a minute idle.
+        return Executors.newCachedThreadPool(runnable ->
+        {
+            Thread thread = new Thread(runnable, "Process supervisor thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void destroyAll ()
+    {
+        if (!unfinishedWork.isEmpty())
+        {
+            logger.info("Shutdown hook waiting for " + unfinishedWork.size() + " tasks to finish...");
+            CompletableFuture.allOf(unfinishedWork.toArray(new CompletableFuture[0])).join();
+        }
+        if (liveProcesses.isEmpty())
+        {
+            return;
+        }
+        logger.info("Shutdown hook request to stop " + liveProcesses.size() + " processes...");
+        for (Process process : liveProcesses)
+        {
+            process.destroy();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DESTROY_TIMEOUT);
+        for (Process process : liveProcesses)
+        {
+            try
+            {
+                if (!process.waitFor(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+                {
+                    logger.info("Destroying forcibly a process that did not exit...");
+                    process.destroyForcibly();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private static Method findMethod (Class<?> type, String name)
+    {
+        try
+        {
+            return type.getMethod(name);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+}
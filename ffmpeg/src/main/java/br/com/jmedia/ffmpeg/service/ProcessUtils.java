@@ -1,29 +1,60 @@
 package br.com.jmedia.ffmpeg.service;
 
+import br.com.jmedia.ffmpeg.model.EncoderProgress;
 import org.slf4j.Logger;
 
 import javax.inject.Inject;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Lima Filho, A. L. - amsterdam@luvva.com.br
  */
 public class ProcessUtils
 {
-    private @Inject Logger logger;
+    private @Inject Logger            logger;
+    private @Inject ProcessSupervisor supervisor;
+
+    /**
+     * How many lines of the stdErr output of a managed process are kept. ffmpeg writes a status line every half
+     * second, so a process running for hours would otherwise keep all of them; the status lines are parsed instead of
+     * kept, and only the last other lines, which hold the errors, are needed when the process exits.
+     */
+    private static final int  STD_ERR_MAX_LINES     = 200;
+    /**
+     * How long the stdErr output is waited for after the process exited, in milliseconds
+     */
+    private static final long STD_ERR_DRAIN_TIMEOUT = 2000;
 
     public String getStdOutAndStdErrOutput (List<String> command) throws IOException, InterruptedException
     {
         Process process = startProcess(command, true);
-        ProcessOutputReader stdErrAndStdOutReader = startInputReader(process.getInputStream());
-        process.waitFor();
+        ProcessOutputReader stdErrAndStdOutReader = new ProcessOutputReader(process.getInputStream(), 0);
+        supervisor.execute(command.get(0) + " output reader", stdErrAndStdOutReader);
+        try
+        {
+            process.waitFor();
+        }
+        catch (InterruptedException e)
+        {
+            // nobody would wait for its output anymore
+            process.destroyForcibly();
+            throw e;
+        }
+        // the output may still be in the pipe when the process exits
+        stdErrAndStdOutReader.finished.await();
         if (stdErrAndStdOutReader.exception == null)
         {
-            logger.debug(stdErrAndStdOutReader.result);
-            return stdErrAndStdOutReader.result;
+            String result = stdErrAndStdOutReader.getResult();
+            logger.debug(result);
+            return result;
         }
         throw stdErrAndStdOutReader.exception;
     }
@@ -31,19 +62,13 @@ public class ProcessUtils
     public ProcessManager createManager (List<String> command, ProcessClient client) throws IOException
     {
         Process process = startProcess(command, false);
-        ProcessOutputReader stdErrReader = startInputReader(process.getErrorStream());
+        ProcessOutputReader stdErrReader = new ProcessOutputReader(process.getErrorStream(), STD_ERR_MAX_LINES);
         ProcessManager processManager = new ProcessManager(client, stdErrReader, process);
-        processManager.start();
+        supervisor.execute(client.processName() + " stdErr reader", stdErrReader);
+        supervisor.supervise(process, client.processName(), processManager::waitFor);
         return processManager;
     }
 
-    private ProcessOutputReader startInputReader (InputStream inputStream)
-    {
-        ProcessOutputReader reader = new ProcessOutputReader("StdOut reader", inputStream);
-        reader.start();
-        return reader;
-    }
-
     private Process startProcess (List<String> command, boolean redirectErrorStream) throws IOException
     {
         logger.info("Executing process: " + String.join(" ", command));
@@ -55,52 +80,107 @@ public class ProcessUtils
         return processBuilder.start();
     }
 
-    private class ProcessOutputReader extends Thread
+    /**
+     * Reads the output of a process line by line, as it is written. A bounded reader keeps only the last lines, and
+     * the progress lines are handed to its {@link ProgressParser} instead of being kept.
+     */
+    private class ProcessOutputReader implements Runnable
     {
-        private final InputStream inputStream;
-        private       String      result;
-        private       IOException exception;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final InputStream    inputStream;
+        /**
+         * How many lines are kept, zero to keep all of them
+         */
+        private final int            maxLines;
+        private final Deque<String>  lines = new ArrayDeque<>();
+        private       long           droppedLines;
+        private       IOException    exception;
+        /**
+         * Set before the reader starts, null if the progress lines are kept like the others
+         */
+        private       ProgressParser progressParser;
 
-        public ProcessOutputReader (String threadName, InputStream inputStream)
+        private ProcessOutputReader (InputStream inputStream, int maxLines)
         {
-            super(threadName);
             this.inputStream = inputStream;
+            this.maxLines = maxLines;
         }
 
         @Override
         public void run ()
         {
-            StringBuilder sb = new StringBuilder();
             try (BufferedReader br = new BufferedReader(new InputStreamReader(inputStream)))
             {
+                // ffmpeg ends its status lines with a carriage return, which readLine takes as a line end too
                 String line;
                 while ((line = br.readLine()) != null)
                 {
-                    sb.append(line).append("\n");
+                    if (progressParser == null || !progressParser.parse(line))
+                    {
+                        keep(line);
+                    }
                 }
-                result = sb.toString();
             }
             catch (IOException e)
             {
                 exception = e;
             }
+            finally
+            {
+                finished.countDown();
+            }
+        }
+
+        private synchronized void keep (String line)
+        {
+            lines.addLast(line);
+            if (maxLines > 0 && lines.size() > maxLines)
+            {
+                lines.removeFirst();
+                droppedLines++;
+            }
+        }
+
+        /**
+         * @return the lines kept so far, after a line telling how many were dropped, if any
+         */
+        private synchronized String getResult ()
+        {
+            StringBuilder sb = new StringBuilder();
+            if (droppedLines > 0)
+            {
+                sb.append("[").append(droppedLines).append(" earlier lines dropped]\n");
+            }
+            for (String line : lines)
+            {
+                sb.append(line).append("\n");
+            }
+            return sb.toString();
         }
     }
 
-    public class ProcessManager extends Thread
+    public class ProcessManager
     {
         private final ProcessClient       client;
         private final ProcessOutputReader stdErrReader;
         private final Process             process;
-        private final Timer               destroyForciblyTimer;
+
+        private ReadableByteChannel outputChannel;
+        /**
+         * The arrays the buffers without an accessible array, like the read only frame views, are copied through, grown
+         * to the biggest frame. The output is read and the input written by different threads, so each has its own.
+         */
+        private byte[]              outputArray = new byte[0];
+        private byte[]              inputArray  = new byte[0];
+
+        private volatile EncoderProgress progress;
 
         public ProcessManager (ProcessClient client, ProcessOutputReader stdErrReader, Process process)
         {
-            super(client.processName() + " waitFor thread");
             this.client = client;
             this.stdErrReader = stdErrReader;
             this.process = process;
-            destroyForciblyTimer = new Timer(client.processName() + " destroy forcibly timer");
+            stdErrReader.progressParser = new ProgressParser(this::progressUpdated);
         }
 
         public InputStream getProcessOutput ()
@@ -114,15 +194,105 @@ public class ProcessUtils
         }
 
         /**
-         * The stdErr output of the process or null if it could not be read
+         * Closes the process output stream, once its reader is done with it. The pipe is only read, so an error closing
+         * it loses nothing and is just logged.
+         */
+        public void closeProcessOutput ()
+        {
+            try
+            {
+                process.getInputStream().close();
+            }
+            catch (IOException e)
+            {
+                logger.debug(client.processName() + ": Could not close output stream!", e);
+            }
+        }
+
+        /**
+         * A channel reading the process output stream with the same bulk reads as {@link #readFrame(ByteBuffer)}, for
+         * readers that need more than whole frames.
+         *
+         * @return the channel, always the same for this process
+         */
+        public synchronized ReadableByteChannel getProcessOutputChannel ()
+        {
+            if (outputChannel == null)
+            {
+                outputChannel = new ProcessOutputChannel();
+            }
+            return outputChannel;
+        }
+
+        /**
+         * Fills the buffer, from its position to its limit, with bulk reads from the process output stream. A read as
+         * big as the frame skips the stream buffer, so the pipe is read straight into the array of a heap buffer, like
+         * the ones of the pooled frames. Other buffers are filled through a frame sized array.
+         *
+         * @param frame the buffer to be filled
+         * @return false if the process output ended before the frame could be filled
+         * @throws IOException if an IOException occurs while reading the process output, including when it was closed
+         */
+        public boolean readFrame (ByteBuffer frame) throws IOException
+        {
+            while (frame.hasRemaining())
+            {
+                if (read(frame) == -1)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writes the whole buffer, from its position to its limit, to the process input stream.
+         *
+         * @param frame the buffer to be written
+         * @throws IOException if an IOException occurs while writing to the process input
+         */
+        public void writeFrame (ByteBuffer frame) throws IOException
+        {
+            OutputStream processInput = process.getOutputStream();
+            int length = frame.remaining();
+            if (frame.hasArray())
+            {
+                processInput.write(frame.array(), frame.arrayOffset() + frame.position(), length);
+            }
+            else
+            {
+                if (inputArray.length < length)
+                {
+                    inputArray = new byte[length];
+                }
+                frame.duplicate().get(inputArray, 0, length);
+                processInput.write(inputArray, 0, length);
+            }
+            frame.position(frame.limit());
+        }
+
+        /**
+         * The last lines of the stdErr output of the process, without the progress lines, or null if it could not be
+         * read. Once the process exited, waits a little for the rest of the output in the pipe.
          *
          * @return the stdErr output
          */
         public String getStdErrOutput ()
         {
+            if (!process.isAlive())
+            {
+                try
+                {
+                    stdErrReader.finished.await(STD_ERR_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
             if (stdErrReader.exception == null)
             {
-                return stdErrReader.result;
+                return stdErrReader.getResult();
             }
             else
             {
@@ -131,60 +301,111 @@ public class ProcessUtils
             }
         }
 
-        @Override
-        public void run ()
+        /**
+         * Kills the process, for when it does not respond anymore
+         */
+        public void destroyForcibly ()
         {
-            Thread shutdownHook = new Thread(this::shutdownHookEvent, getName() + " shutdown hook");
-            try
+            logger.info("Destroying forcibly " + client.processName() + "...");
+            process.destroyForcibly();
+        }
+
+        /**
+         * The last progress the process reported on its stdErr output
+         *
+         * @return the progress, or null if none was reported yet
+         */
+        public EncoderProgress getProgress ()
+        {
+            return progress;
+        }
+
+        private void progressUpdated (EncoderProgress progress)
+        {
+            this.progress = progress;
+            client.progressUpdated(progress);
+        }
+
+        /**
+         * Reads once from the process output stream, as many bytes as the buffer has room for
+         *
+         * @return the number of bytes read, or -1 if the process output ended
+         */
+        private int read (ByteBuffer buffer) throws IOException
+        {
+            InputStream processOutput = process.getInputStream();
+            int length = buffer.remaining();
+            int read;
+            if (buffer.hasArray())
             {
-                Runtime.getRuntime().addShutdownHook(shutdownHook);
-                client.processExited(process.waitFor());
-                logger.info(client.processName() + " exited");
-                destroyForciblyTimer.cancel();
+                read = processOutput.read(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                if (read > 0)
+                {
+                    buffer.position(buffer.position() + read);
+                }
             }
-            catch (Exception e)
+            else
             {
-                logger.error(client.processName() + " waitFor threw and Exception!", e);
-                client.handleWaitForException(e);
+                if (outputArray.length < length)
+                {
+                    outputArray = new byte[length];
+                }
+                read = processOutput.read(outputArray, 0, length);
+                if (read > 0)
+                {
+                    buffer.put(outputArray, 0, read);
+                }
             }
-            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            return read;
         }
 
-        private void shutdownHookEvent ()
+        /**
+         * Notifies the client that the process exited. Run by the {@link ProcessSupervisor} when it exits.
+         */
+        private void waitFor ()
         {
-            logger.info("Shutdown hook request to stop process...");
             try
             {
-                logger.info("Destroying " + client.processName() + "...");
-                process.destroy();
-                scheduleDestroyForciblyTask(3000);
+                client.processExited(process.waitFor());
+                logger.info(client.processName() + " exited");
             }
             catch (Exception e)
             {
-                logger.warn("Destroy timer could not be scheduled!", e);
-                scheduleDestroyForciblyTask(0);
+                logger.error(client.processName() + " waitFor threw and Exception!", e);
+                client.handleWaitForException(e);
             }
         }
 
-        private void scheduleDestroyForciblyTask (int delay)
+        /**
+         * Reads the process output stream. Closing the channel closes the stream, and reading it afterwards throws a
+         * {@link ClosedChannelException} instead of ending the output.
+         */
+        private class ProcessOutputChannel implements ReadableByteChannel
         {
-            destroyForciblyTimer.schedule(new TimerTask()
+            private volatile boolean open = true;
+
+            @Override
+            public int read (ByteBuffer dst) throws IOException
             {
-                @Override
-                public void run ()
+                if (!open)
                 {
-                    logger.info("Destroying forcibly" + client.processName() + "...");
-                    try
-                    {
-                        process.destroyForcibly();
-                    }
-                    catch (Exception e)
-                    {
-                        logger.warn("Could not destroy forcibly " + client.processName() + "!", e);
-                    }
-                    destroyForciblyTimer.cancel();
+                    throw new ClosedChannelException();
                 }
-            }, delay);
+                return dst.hasRemaining() ? ProcessManager.this.read(dst) : 0;
+            }
+
+            @Override
+            public boolean isOpen ()
+            {
+                return open;
+            }
+
+            @Override
+            public void close () throws IOException
+            {
+                open = false;
+                process.getInputStream().close();
+            }
         }
     }
 }
@@ -0,0 +1,110 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.EncoderProgress;
+
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the progress ffmpeg writes to its stderr, one line at a time, as it is written. Both the periodic status
+ * line, like {@code frame=  240 fps= 30 ... dup=0 drop=3 speed=1x}, and the {@code key=value} blocks of the
+ * {@code -progress} option are understood. A snapshot is published at the end of each status line and of each
+ * progress block.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+class ProgressParser
+{
+    private static final Pattern STATUS_LINE   = Pattern.compile("^frame=\\s*\\d+.*");
+    private static final Pattern PROGRESS_LINE = Pattern.compile("^[a-z0-9_]+=\\S*$");
+    private static final Pattern ENTRY         = Pattern.compile("([a-z0-9_]+)=\\s*(\\S+)");
+
+    private final Consumer<EncoderProgress> listener;
+
+    /**
+     * The values of the status line or progress block being parsed. Written by the reader thread only.
+     */
+    private long   frames           = 0;
+    private double fps              = 0;
+    private double speed            = 0;
+    private long   droppedFrames    = 0;
+    private long   duplicatedFrames = 0;
+
+    ProgressParser (Consumer<EncoderProgress> listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Parses a line of the stderr output
+     *
+     * @param line the line, without the line terminator. ffmpeg ends its status lines with a carriage return.
+     * @return true if the line was progress, which does not need to be kept
+     */
+    boolean parse (String line)
+    {
+        if (STATUS_LINE.matcher(line).matches())
+        {
+            Matcher matcher = ENTRY.matcher(line);
+            while (matcher.find())
+            {
+                entry(matcher.group(1), matcher.group(2));
+            }
+            publish();
+            return true;
+        }
+        if (PROGRESS_LINE.matcher(line).matches())
+        {
+            int separator = line.indexOf('=');
+            String key = line.substring(0, separator);
+            if ("progress".equals(key))
+            {
+                publish();
+            }
+            else
+            {
+                entry(key, line.substring(separator + 1));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void entry (String key, String value)
+    {
+        try
+        {
+            switch (key)
+            {
+                case "frame":
+                    frames = Long.parseLong(value);
+                    break;
+                case "fps":
+                    fps = Double.parseDouble(value);
+                    break;
+                case "speed":
+                    speed = Double.parseDouble(value.endsWith("x") ? value.substring(0, value.length() - 1) :
+                            value);
+                    break;
+                case "drop":
+                case "drop_frames":
+                    droppedFrames = Long.parseLong(value);
+                    break;
+                case "dup":
+                case "dup_frames":
+                    duplicatedFrames = Long.parseLong(value);
+                    break;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // ffmpeg writes N/A while a value is not known yet, the previous one is kept
+        }
+    }
+
+    private void publish ()
+    {
+        listener.accept(new EncoderProgress(frames, fps, speed, droppedFrames, duplicatedFrames));
+    }
+}
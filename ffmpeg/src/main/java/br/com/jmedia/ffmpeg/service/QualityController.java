@@ -0,0 +1,205 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.control.VideoPreview;
+import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
+import br.com.jmedia.ffmpeg.model.QualityLevel;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Gives up preview and recording quality while the capture pipeline can not keep up, so a long recording on a slow
+ * machine goes on without gaps. Once a second it checks the frames the capture lost, how far behind the recording
+ * encoder is and how long the preview frames wait to be shown. After a few pressured checks in a row it goes down one
+ * {@link QualityLevel}: first the preview frame rate, then the preview size, then the encoder preset. After a longer
+ * run of checks without pressure it goes back up one level.
+ * <p>
+ * Every level change is logged with its cause and counted in the {@link CaptureMetrics}.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class QualityController
+{
+    private @Inject Logger            logger;
+    private @Inject CaptureMetrics    metrics;
+    private @Inject ProcessSupervisor supervisor;
+
+    /**
+     * How often the pressure is checked, in milliseconds
+     */
+    private static final long CHECK_INTERVAL        = 1000;
+    /**
+     * How many pressured checks in a row make the quality go down
+     */
+    private static final int  STEP_DOWN_CHECKS      = 3;
+    /**
+     * How many checks without pressure in a row make the quality go up. Longer than going down, so the quality does
+     * not go up and down under a load that comes and goes.
+     */
+    private static final int  STEP_UP_CHECKS        = 20;
+    /**
+     * The longest a preview frame may wait to be shown before the preview is considered behind
+     */
+    private static final long PREVIEW_LAG_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private CaptureService         captureService;
+    private CaptureServiceClient   previewClient;
+    private VideoPreview           videoPreview;
+    private MediaFrameworkSettings settings;
+    private Predicate<String>      presetSwitcher;
+    private ScheduledFuture<?>     checks;
+
+    /**
+     * Read and written by the checks only, which never run at once
+     */
+    private QualityLevel  level              = QualityLevel.FULL;
+    private int           pressuredChecks    = 0;
+    private int           clearChecks        = 0;
+    private long          lostFrames         = 0;
+    private DeliveryLane  recordLane;
+    private long          recordDropped      = 0;
+    /**
+     * The encoder that could not be switched to another preset, so it is not tried again
+     */
+    private RecordService unswitchableEncoder;
+
+    /**
+     * Starts checking the pressure on a capture
+     *
+     * @param captureService the capture
+     * @param previewClient  the client of the capture that converts or shows the preview frames
+     * @param videoPreview   the preview
+     * @param settings       the settings with the preset of the recordings
+     * @param presetSwitcher continues the current recording with a preset, returning false if it can not
+     */
+    public void start (CaptureService captureService, CaptureServiceClient previewClient, VideoPreview videoPreview,
+                       MediaFrameworkSettings settings, Predicate<String> presetSwitcher)
+    {
+        this.captureService = captureService;
+        this.previewClient = previewClient;
+        this.videoPreview = videoPreview;
+        this.settings = settings;
+        this.presetSwitcher = presetSwitcher;
+        checks = supervisor.schedule("Quality controller check", this::check, CHECK_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void stop ()
+    {
+        if (checks != null)
+        {
+            checks.cancel(false);
+        }
+    }
+
+    private void check ()
+    {
+        List<String> causes = new ArrayList<>();
+        long lost = captureService.getLostFrames();
+        if (lost > lostFrames)
+        {
+            causes.add("the capture lost " + (lost - lostFrames) + " frames");
+        }
+        lostFrames = lost;
+        RecordService encoder = findEncoder();
+        DeliveryLane lane = encoder == null ? null : captureService.getLane(encoder);
+        if (lane != recordLane)
+        {
+            recordLane = lane;
+            recordDropped = 0;
+        }
+        if (lane != null)
+        {
+            long dropped = lane.getDroppedFrames();
+            int queued = lane.getQueuedFrames();
+            if (dropped > recordDropped || queued * 2 >= lane.getCapacity())
+            {
+                causes.add("the encoder dropped " + (dropped - recordDropped) + " frames and has " + queued + " of " +
+                        lane.getCapacity() + " queued");
+            }
+            recordDropped = dropped;
+        }
+        long lag = videoPreview.getAndResetMaxLag();
+        if (lag > PREVIEW_LAG_THRESHOLD)
+        {
+            causes.add("a preview frame waited " + TimeUnit.NANOSECONDS.toMillis(lag) + " ms to be shown");
+        }
+
+        // the preset levels only help a recording
+        QualityLevel lowest = encoder == null ? QualityLevel.REDUCED_PREVIEW_SIZE : QualityLevel.FASTEST_PRESET;
+        if (!causes.isEmpty())
+        {
+            clearChecks = 0;
+            if (++pressuredChecks >= STEP_DOWN_CHECKS && level.compareTo(lowest) < 0)
+            {
+                changeLevel(QualityLevel.values()[level.ordinal() + 1], String.join(", ", causes));
+            }
+        }
+        else
+        {
+            pressuredChecks = 0;
+            if (++clearChecks >= STEP_UP_CHECKS && level != QualityLevel.FULL)
+            {
+                changeLevel(QualityLevel.values()[level.ordinal() - 1], "no pressure for " + STEP_UP_CHECKS +
+                        " checks");
+            }
+        }
+        if (encoder != null)
+        {
+            switchPreset(encoder);
+        }
+    }
+
+    private void changeLevel (QualityLevel newLevel, String cause)
+    {
+        logger.info("Capture pipeline quality changed from " + level + " to " + newLevel + ": " + cause);
+        level = newLevel;
+        pressuredChecks = 0;
+        clearChecks = 0;
+        metrics.qualityChanged(newLevel);
+        captureService.setFrameDivisor(previewClient, atLeast(QualityLevel.REDUCED_PREVIEW_RATE) ? 2 : 1);
+        videoPreview.setExtraDownscaleFactor(atLeast(QualityLevel.REDUCED_PREVIEW_SIZE) ? 2 : 1);
+    }
+
+    /**
+     * Continues the recording with the preset of the current level, if it is not encoded with it
+     */
+    private void switchPreset (RecordService encoder)
+    {
+        String preset = level.preset(settings.getPreset());
+        if (encoder == unswitchableEncoder || preset == null || preset.equals(encoder.getPreset()))
+        {
+            return;
+        }
+        if (!presetSwitcher.test(preset))
+        {
+            logger.warn("The recording can not continue with preset " + preset + "! Keeping " + encoder.getPreset());
+            unswitchableEncoder = encoder;
+        }
+    }
+
+    private boolean atLeast (QualityLevel other)
+    {
+        return level.compareTo(other) >= 0;
+    }
+
+    /**
+     * @return the recording encoder receiving the frames, or null if there is no recording
+     */
+    private RecordService findEncoder ()
+    {
+        for (DeliveryLane lane : captureService.getLanes())
+        {
+            if (lane.getClient() instanceof RecordService && !lane.isPaused())
+            {
+                return (RecordService) lane.getClient();
+            }
+        }
+        return null;
+    }
+}
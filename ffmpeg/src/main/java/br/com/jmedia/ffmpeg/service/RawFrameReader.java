@@ -0,0 +1,39 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.Frame;
+
+import java.io.IOException;
+
+/**
+ * Reads headerless rawvideo, where frames are only delimited by their size.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+class RawFrameReader implements FrameReader
+{
+    private final ProcessUtils.ProcessManager processManager;
+    private final int                         width;
+    private final int                         height;
+    private final String                      pixelFormat;
+
+    private long sequenceNumber = 0;
+
+    RawFrameReader (ProcessUtils.ProcessManager processManager, int width, int height, String pixelFormat)
+    {
+        this.processManager = processManager;
+        this.width = width;
+        this.height = height;
+        this.pixelFormat = pixelFormat;
+    }
+
+    @Override
+    public boolean read (Frame frame) throws IOException
+    {
+        if (!processManager.readFrame(frame.writableBuffer()))
+        {
+            return false;
+        }
+        frame.describe(sequenceNumber++, Frame.NO_PRESENTATION_TIME, width, height, pixelFormat);
+        return true;
+    }
+}
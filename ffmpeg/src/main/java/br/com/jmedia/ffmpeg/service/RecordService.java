@@ -0,0 +1,628 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.core.control.MediaFacadeClient;
+import br.com.jmedia.ffmpeg.model.EncoderProgress;
+import br.com.jmedia.ffmpeg.model.Frame;
+import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
+import br.com.jmedia.ffmpeg.model.PixelLayout;
+import br.com.jmedia.ffmpeg.model.PixelLayouts;
+import br.com.jmedia.ffmpeg.model.RecordingMode;
+import br.com.jwheel.utils.StringUtils;
+import br.com.jwheel.weld.WeldContext;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * Records the captured frames, writing each one to the stdin of an encode process with bulk writes. Added to the
+ * capture with a bounded queue of {@link #queueCapacity(MediaFrameworkSettings, String) seconds of frames} that drops
+ * the frames the encoder can not keep up with, so it never stalls the capture nor the preview. The encoder reads the
+ * frames at a fixed frame rate, so the last recorded frame is written again for each dropped one, and the recording
+ * keeps the length of the capture. The dropped frames are reported when the recording finishes. Pausing the capture
+ * client pauses the recording without restarting the process.
+ * <p>
+ * In the {@link RecordingMode#SEGMENTED} mode, the segments are concatenated into the file when the encoder exits,
+ * before the client is notified that the recording finished.
+ * <p>
+ * The encoder may be {@link #prepare(MediaFrameworkSettings) prepared} before the file is known, so a recording starts
+ * without waiting for the process. A prepared encoder records to the staging folder of the settings, and what it
+ * recorded is renamed to the file when it exits. It only records files in the file system of the staging folder, so
+ * the rename never copies the recording, and what it recorded is kept in a persistent folder if the application
+ * crashes.
+ * <p>
+ * A segmented recording may be {@link #continueWith(String) continued} by another encoder, with another preset, which
+ * records the next segments to the same folder. The last encoder of the recording concatenates the segments of all of
+ * them and notifies the client.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class RecordService implements ProcessClient, CaptureServiceClient
+{
+    private @Inject Logger         logger;
+    private @Inject ProcessUtils   processUtils;
+    private @Inject MediaFramework mediaFramework;
+    private @Inject SegmentService segmentService;
+    private @Inject CaptureMetrics metrics;
+
+    /**
+     * How long the encoder may fall behind the capture before frames are dropped, in seconds
+     */
+    private static final int  QUEUE_SECONDS   = 5;
+    /**
+     * The memory the queued frames may take, which makes the queue of big frames shorter
+     */
+    private static final long QUEUE_MAX_BYTES = 256L * 1024 * 1024;
+    /**
+     * The frame rate assumed when the settings do not have a valid one
+     */
+    private static final int  DEFAULT_FPS     = 30;
+
+    private static final String STAGING_FOLDER_PREFIX = "jmedia-recording-";
+    private static final String STAGING_FILE_NAME     = "recording.mp4";
+
+    /**
+     * How long the last encoder waits for the ones it continues to exit before it finishes the recording
+     */
+    private static final int CONTINUED_TIMEOUT_SECONDS = 10;
+
+    /**
+     * Completed when this encoder and the ones it continues exited
+     */
+    private final CompletableFuture<Void> chainExited = new CompletableFuture<>();
+
+    private ProcessUtils.ProcessManager processManager;
+    private OutputStream                outputStream;
+    private MediaFrameworkSettings      settings;
+    private boolean                     segmented;
+    /**
+     * The folder a prepared encoder records to, null if it was started with the file
+     */
+    private Path                        stagingFolder;
+    /**
+     * The file the encoder was started with
+     */
+    private Path                        encoderFilePath;
+    /**
+     * The preset the encoder was started with, null if it is the one of the settings
+     */
+    private String                      preset;
+    /**
+     * The encoder this one continues, null if it started the recording
+     */
+    private RecordService               previous;
+
+    /**
+     * Set when the recording is bound to the encoder
+     */
+    private volatile MediaFacadeClient mediaFacadeClient;
+    private volatile Path              videoFilePath;
+    private volatile long              startTime;
+
+    private volatile boolean exited        = false;
+    private volatile boolean writeFailed   = false;
+    private volatile boolean discarded     = false;
+    /**
+     * If another encoder continues the recording, so this one must not finish it
+     */
+    private volatile boolean continued     = false;
+    /**
+     * If this encoder or one it continues did not exit normally, set before the chain exit is completed
+     */
+    private volatile boolean failed        = false;
+    private          boolean closed        = false;
+    private          boolean frameRecorded = false;
+
+    /**
+     * The last frame written, retained to be written again in place of the dropped ones. Used by the delivery thread
+     * only.
+     */
+    private          Frame lastFrame;
+    /**
+     * The frames the delivery lane dropped, written by the delivery thread only
+     */
+    private volatile long  droppedFrames = 0;
+
+    /**
+     * The capacity of the delivery lane of a recording: {@value #QUEUE_SECONDS} seconds of frames, but never more than
+     * {@value #QUEUE_MAX_BYTES} bytes, and at least a frame
+     *
+     * @param settings    the settings with the capture size and frame rate
+     * @param pixelFormat the captured pixel format
+     * @return the number of frames
+     */
+    public static int queueCapacity (MediaFrameworkSettings settings, String pixelFormat)
+    {
+        double frameRate = settings.frameRateValue() > 0 ? settings.frameRateValue() : DEFAULT_FPS;
+        long frames = (long) Math.ceil(frameRate * QUEUE_SECONDS);
+        PixelLayout pixelLayout = PixelLayouts.forName(pixelFormat);
+        if (pixelLayout != null)
+        {
+            frames = Math.min(frames, QUEUE_MAX_BYTES / pixelLayout.bytesPerFrame(settings.getWidth(),
+                    settings.getHeight()));
+        }
+        return (int) Math.max(frames, 1);
+    }
+
+    /**
+     * Starts the encoder and records the file
+     *
+     * @param settings      the settings that created the record command
+     * @param videoFilePath the file
+     * @param facadeClient  the client notified when the recording finishes
+     * @throws IOException if the encoder could not be started
+     */
+    public void start (MediaFrameworkSettings settings, Path videoFilePath, MediaFacadeClient facadeClient) throws
+            IOException
+    {
+        startTime = System.nanoTime();
+        this.settings = settings;
+        segmented = settings.getRecordingMode() == RecordingMode.SEGMENTED;
+        encoderFilePath = videoFilePath;
+        bind(videoFilePath, facadeClient);
+        processManager = processUtils.createManager(settings.getRecordCommand(videoFilePath), this);
+        outputStream = processManager.getProcessInput();
+    }
+
+    /**
+     * Starts the encoder before the file is known, recording to a staging folder. It waits for the frames until a
+     * recording is {@link #start(Path, MediaFacadeClient) started} or it is {@link #discard() discarded}.
+     *
+     * @param settings the settings that created the record command, with a staging folder
+     * @throws IOException if the settings have no staging folder, it could not be created or the encoder could not be
+     *                     started
+     */
+    public void prepare (MediaFrameworkSettings settings) throws IOException
+    {
+        this.settings = settings;
+        segmented = settings.getRecordingMode() == RecordingMode.SEGMENTED;
+        String folder = settings.getStagingFolder();
+        if (StringUtils.isNullOrEmpty(folder))
+        {
+            throw new IOException("The settings have no staging folder!");
+        }
+        stagingFolder = Files.createTempDirectory(Files.createDirectories(Paths.get(folder)), STAGING_FOLDER_PREFIX);
+        encoderFilePath = stagingFolder.resolve(STAGING_FILE_NAME);
+        if (segmented)
+        {
+            Files.createDirectories(MediaFrameworkSettings.segmentFolder(encoderFilePath));
+        }
+        processManager = processUtils.createManager(settings.getRecordCommand(encoderFilePath), this);
+        outputStream = processManager.getProcessInput();
+    }
+
+    /**
+     * Records the file with a prepared encoder
+     *
+     * @param videoFilePath the file
+     * @param facadeClient  the client notified when the recording finishes
+     * @throws IOException if the encoder exited while it waited, or the file is in another file system than the
+     *                     staging folder, in which case the encoder must be discarded
+     */
+    public void start (Path videoFilePath, MediaFacadeClient facadeClient) throws IOException
+    {
+        startTime = System.nanoTime();
+        if (!isReady())
+        {
+            throw new IOException("The prepared encoder is not running!");
+        }
+        Path videoFolder = videoFilePath.toAbsolutePath().getParent();
+        if (!Files.getFileStore(stagingFolder).equals(Files.getFileStore(videoFolder)))
+        {
+            throw new IOException("The staging folder " + stagingFolder + " is not in the file system of " +
+                    videoFolder + "!");
+        }
+        bind(videoFilePath, facadeClient);
+        logger.info("Recording " + videoFilePath + " with a prepared encoder, in " + stagingFolder);
+    }
+
+    /**
+     * @return if the encoder was prepared, no recording was bound to it and it is still running
+     */
+    public boolean isReady ()
+    {
+        return stagingFolder != null && videoFilePath == null && !exited && !discarded;
+    }
+
+    /**
+     * Stops a prepared encoder that no recording was bound to and deletes its staging folder
+     */
+    public void discard ()
+    {
+        discarded = true;
+        finish();
+    }
+
+    /**
+     * Starts another encoder that records the next segments of the recording, with another preset. It must be added
+     * to the capture before this one is drained and finished, so no frame is lost.
+     *
+     * @param preset the preset of the new encoder
+     * @return the new encoder
+     * @throws IOException if the recording is not segmented or the new encoder could not be started
+     */
+    public RecordService continueWith (String preset) throws IOException
+    {
+        if (!segmented || videoFilePath == null)
+        {
+            throw new IOException("Only a segmented recording can be continued by another encoder!");
+        }
+        RecordService next = WeldContext.getInstance().getAny(RecordService.class);
+        next.continueFrom(this, preset);
+        continued = true;
+        logger.info("Recording " + videoFilePath + " continued with preset " + preset);
+        return next;
+    }
+
+    /**
+     * @return the preset the encoder was started with
+     */
+    public String getPreset ()
+    {
+        return preset == null ? settings.getPreset() : preset;
+    }
+
+    /**
+     * @return the folder the segments are recorded to, null if the recording is not segmented
+     */
+    public Path getSegmentFolder ()
+    {
+        return segmented ? segmentService.getSegmentFolder() : null;
+    }
+
+    private void continueFrom (RecordService previous, String preset) throws IOException
+    {
+        this.previous = previous;
+        this.preset = preset;
+        settings = previous.settings;
+        segmented = true;
+        segmentService = previous.segmentService;
+        stagingFolder = previous.stagingFolder;
+        encoderFilePath = previous.encoderFilePath;
+        mediaFacadeClient = previous.mediaFacadeClient;
+        startTime = previous.startTime;
+        // the recording already started, with the first encoder
+        frameRecorded = true;
+        int firstSegment = segmentService.continuationSegmentNumber();
+        processManager = processUtils.createManager(settings.getRecordCommand(encoderFilePath, preset, firstSegment),
+                this);
+        outputStream = processManager.getProcessInput();
+        videoFilePath = previous.videoFilePath;
+    }
+
+    private void bind (Path videoFilePath, MediaFacadeClient facadeClient) throws IOException
+    {
+        this.mediaFacadeClient = facadeClient;
+        if (segmented)
+        {
+            segmentService.start(settings, videoFilePath, encoderFilePath, facadeClient);
+        }
+        this.videoFilePath = videoFilePath;
+    }
+
+    /**
+     * Adds a segment before the recorded ones. Only a {@link RecordingMode#SEGMENTED} recording can have it.
+     *
+     * @param segment a future completed with the segment when it is written, or with null if it was not
+     * @return false if the recording is not segmented
+     */
+    public boolean prependSegment (CompletableFuture<Path> segment)
+    {
+        if (!segmented)
+        {
+            return false;
+        }
+        segmentService.prependSegment(segment);
+        return true;
+    }
+
+    /**
+     * Closes the encoder input, so it finishes the file and exits. The client is notified when the file is finished.
+     */
+    public synchronized void finish ()
+    {
+        if (closed || exited)
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            outputStream.close();
+        }
+        catch (IOException e)
+        {
+            logger.error(processName() + ": Could not close output stream!", e);
+        }
+    }
+
+    @Override
+    public void receive (Frame frame)
+    {
+        receive(frame.view());
+        if (lastFrame != null)
+        {
+            lastFrame.release();
+        }
+        lastFrame = frame.retain();
+    }
+
+    /**
+     * Writes the last frame again for each dropped one, so the frames after them are not recorded earlier than they
+     * were captured
+     */
+    @Override
+    public void framesDropped (int frames)
+    {
+        droppedFrames += frames;
+        metrics.recordingFramesDropped(frames);
+        if (lastFrame == null)
+        {
+            // nothing was recorded yet, so the recording just starts later
+            return;
+        }
+        for (int i = 0; i < frames; i++)
+        {
+            receive(lastFrame.view());
+        }
+    }
+
+    @Override
+    public void receive (ByteBuffer frame)
+    {
+        if (writeFailed || exited)
+        {
+            return;
+        }
+        try
+        {
+            processManager.writeFrame(frame);
+            if (!frameRecorded)
+            {
+                frameRecorded = true;
+                metrics.recordStartCompleted(System.nanoTime() - startTime);
+            }
+        }
+        catch (IOException e)
+        {
+            // the error is reported when the process exits. The capture and the preview go on.
+            logger.error(processName() + ": Could not write to output stream!", e);
+            writeFailed = true;
+            finish();
+        }
+    }
+
+    @Override
+    public void captureStopped ()
+    {
+        releaseLastFrame();
+        finish();
+    }
+
+    @Override
+    public void removedFromCapture ()
+    {
+        releaseLastFrame();
+    }
+
+    @Override
+    public String processName ()
+    {
+        return "Video record process";
+    }
+
+    @Override
+    public void progressUpdated (EncoderProgress progress)
+    {
+        // a continued encoder is only writing the frames it still holds
+        if (videoFilePath != null && !discarded && !continued)
+        {
+            metrics.encoderProgress(progress);
+        }
+    }
+
+    @Override
+    public void processExited (int exitCode)
+    {
+        exited = true;
+        if (discarded || videoFilePath == null)
+        {
+            logger.info(processName() + " discarded. Exit code: " + exitCode);
+            deleteStagingFolder();
+            return;
+        }
+        if (continued)
+        {
+            // the encoder that continues the recording finishes it
+            logger.info(processName() + " continued by another encoder exited. Exit code: " + exitCode);
+            String stdErrOutput = processManager.getStdErrOutput();
+            if (exitCode != 0 && stdErrOutput != null)
+            {
+                logger.error("Process stdErr output: " + stdErrOutput);
+            }
+            chainExited(exitCode != 0 || writeFailed);
+            return;
+        }
+        boolean previousFailed = awaitPrevious();
+        // the segments recorded before a failure are kept in the file too
+        boolean concatenated = segmented ? segmentService.finish() : moveStagingFile();
+        if (concatenated)
+        {
+            deleteStagingFolder();
+        }
+        reportDroppedFrames();
+        if (exitCode == 0 && !writeFailed && concatenated && !previousFailed)
+        {
+            logger.info(processName() + " exited successfully. " + videoFilePath + " recorded.");
+            String stdErrOutput = processManager.getStdErrOutput();
+            if (stdErrOutput != null)
+            {
+                logger.debug("Process stdErr output: " + stdErrOutput);
+            }
+        }
+        else
+        {
+            logger.error(processName() + " did not exit normally! Exit code: " + exitCode);
+            String stdErrOutput = processManager.getStdErrOutput();
+            if (exitCode != 0 && stdErrOutput != null)
+            {
+                logger.error("Process stdErr output: " + stdErrOutput);
+                mediaFramework.parseRecordError(stdErrOutput, mediaFacadeClient);
+            }
+            else
+            {
+                mediaFacadeClient.recordingException();
+            }
+        }
+        mediaFacadeClient.recordingFinished();
+    }
+
+    @Override
+    public void handleWaitForException (Exception e)
+    {
+        logger.error(processName() + " waitFor exception!", e);
+        exited = true;
+        if (discarded || videoFilePath == null)
+        {
+            deleteStagingFolder();
+            return;
+        }
+        if (continued)
+        {
+            chainExited(true);
+            return;
+        }
+        awaitPrevious();
+        if (segmented)
+        {
+            segmentService.finish();
+        }
+        reportDroppedFrames();
+        mediaFacadeClient.recordingException();
+        mediaFacadeClient.recordingFinished();
+    }
+
+    private void releaseLastFrame ()
+    {
+        if (lastFrame != null)
+        {
+            lastFrame.release();
+            lastFrame = null;
+        }
+    }
+
+    /**
+     * Tells the client how many frames the encoders of the recording did not get, if any
+     */
+    private void reportDroppedFrames ()
+    {
+        long dropped = 0;
+        for (RecordService encoder = this; encoder != null; encoder = encoder.previous)
+        {
+            dropped += encoder.droppedFrames;
+        }
+        if (dropped > 0)
+        {
+            logger.warn("The encoder fell behind the capture! " + dropped + " frames of " + videoFilePath +
+                    " were replaced by the frame before them.");
+            mediaFacadeClient.recordingFramesDropped(dropped);
+        }
+    }
+
+    /**
+     * Completes the chain exit of a continued encoder, after the encoders it continues exited
+     */
+    private void chainExited (boolean failedNow)
+    {
+        failed = awaitPrevious() || failedNow;
+        chainExited.complete(null);
+    }
+
+    /**
+     * Waits for the encoders this one continues to exit, so their segments are finished
+     *
+     * @return true if any of them did not exit normally or did not exit in time
+     */
+    private boolean awaitPrevious ()
+    {
+        if (previous == null)
+        {
+            return false;
+        }
+        try
+        {
+            previous.chainExited.get(CONTINUED_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return previous.failed;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            logger.error("The encoder continued by " + processName() + " did not exit in time!", e);
+            return true;
+        }
+    }
+
+    /**
+     * Renames the file recorded by a prepared encoder to the recorded file, which is in the same file system
+     *
+     * @return false if the file could not be renamed, and is kept in the staging folder
+     */
+    private boolean moveStagingFile ()
+    {
+        if (stagingFolder == null)
+        {
+            return true;
+        }
+        try
+        {
+            Files.move(encoderFilePath, videoFilePath, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not move " + encoderFilePath + " to " + videoFilePath + "! It is kept in " +
+                    stagingFolder, e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the staging folder of a prepared encoder with everything left in it
+     */
+    private void deleteStagingFolder ()
+    {
+        if (stagingFolder == null)
+        {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(stagingFolder))
+        {
+            // the deepest paths first, so each folder is empty when it is deleted
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+            {
+                Files.delete(file);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not delete the staging folder " + stagingFolder + "!", e);
+        }
+    }
+}
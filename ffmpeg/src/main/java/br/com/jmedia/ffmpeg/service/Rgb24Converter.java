@@ -0,0 +1,32 @@
+package br.com.jmedia.ffmpeg.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts packed 24 bits RGB, which only needs its components reordered
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+class Rgb24Converter extends PixelConverter
+{
+    Rgb24Converter (int width, int height)
+    {
+        super("rgb24", width, height);
+    }
+
+    @Override
+    public void convertRows (ByteBuffer source, ByteBuffer target, int firstRow, int endRow)
+    {
+        int base = source.position();
+        int sourceIndex = base + firstRow * sourceLayout.getStride(0, width);
+        int targetIndex = firstRow * width * BYTES_PER_TARGET_PIXEL;
+        int targetEnd = endRow * width * BYTES_PER_TARGET_PIXEL;
+        for (; targetIndex < targetEnd; sourceIndex += 3, targetIndex += BYTES_PER_TARGET_PIXEL)
+        {
+            target.putInt(targetIndex, 0xFF000000
+                    | (source.get(sourceIndex) & 0xFF) << 16
+                    | (source.get(sourceIndex + 1) & 0xFF) << 8
+                    | source.get(sourceIndex + 2) & 0xFF);
+        }
+    }
+}
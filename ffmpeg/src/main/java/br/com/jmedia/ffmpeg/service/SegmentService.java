@@ -0,0 +1,325 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.core.control.MediaFacadeClient;
+import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
+import br.com.jmedia.ffmpeg.model.RecordingMode;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Follows the segments of a {@link RecordingMode#SEGMENTED} recording while it is recorded, notifying the client of
+ * each finished one, and concatenates them into the recorded file when the encoder exits. A segment with the video
+ * kept before the recording started may be prepended.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class SegmentService
+{
+    private @Inject Logger            logger;
+    private @Inject ProcessUtils      processUtils;
+    private @Inject ProcessSupervisor supervisor;
+
+    /**
+     * How often the segment list is read, in milliseconds
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    /**
+     * The name of the segment written before the recording started, in the segment folder
+     */
+    public static final String PRE_RECORD_FILE_NAME = "prerecord.mp4";
+
+    /**
+     * The file names of the recorded segments are the prefix, the segment number and the suffix
+     */
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".mp4";
+
+    /**
+     * How long the concatenation waits for the pre-record segment to be written, in seconds
+     */
+    private static final int PRE_RECORD_TIMEOUT_SECONDS = 10;
+
+    private final Set<Path> finishedSegments = new HashSet<>();
+
+    private MediaFrameworkSettings settings;
+    private Path                   videoFilePath;
+    /**
+     * The file the encoder was started with, whose segment folder has the segments
+     */
+    private Path                   encoderFilePath;
+    private MediaFacadeClient      mediaFacadeClient;
+    private ScheduledFuture<?>     segmentListReads;
+
+    /**
+     * The segment written before the recording started, null if there is none
+     */
+    private CompletableFuture<Path> preRecordSegment;
+
+    /**
+     * Creates the segment folder and starts following the segment list. Must be invoked before the encoder starts.
+     *
+     * @param settings      the settings that created the record command
+     * @param videoFilePath the recorded file
+     * @param facadeClient  the client notified of each finished segment
+     * @throws IOException if the segment folder could not be created
+     */
+    public void start (MediaFrameworkSettings settings, Path videoFilePath, MediaFacadeClient facadeClient) throws
+            IOException
+    {
+        start(settings, videoFilePath, videoFilePath, facadeClient);
+    }
+
+    /**
+     * Same as {@link #start(MediaFrameworkSettings, Path, MediaFacadeClient)}, for an encoder that records the segments
+     * somewhere else, because it was started before the file was known
+     *
+     * @param encoderFilePath the file the encoder was started with
+     */
+    public void start (MediaFrameworkSettings settings, Path videoFilePath, Path encoderFilePath,
+                       MediaFacadeClient facadeClient) throws IOException
+    {
+        this.settings = settings;
+        this.videoFilePath = videoFilePath;
+        this.encoderFilePath = encoderFilePath;
+        this.mediaFacadeClient = facadeClient;
+        Files.createDirectories(getSegmentFolder());
+        segmentListReads = supervisor.schedule("Recording segments check", this::readSegmentList, POLL_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the folder the segments are recorded to
+     */
+    public Path getSegmentFolder ()
+    {
+        return MediaFrameworkSettings.segmentFolder(encoderFilePath);
+    }
+
+    /**
+     * The number of the first segment of an encoder that continues the recording, after the segments the encoders
+     * recorded or may still record
+     *
+     * @return the segment number
+     * @throws IOException if the segment folder could not be listed
+     */
+    public int continuationSegmentNumber () throws IOException
+    {
+        int last = -1;
+        for (Path segment : listSegments(getSegmentFolder()))
+        {
+            String fileName = segment.getFileName().toString();
+            try
+            {
+                last = Math.max(last, Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(),
+                        fileName.length() - SEGMENT_SUFFIX.length())));
+            }
+            catch (NumberFormatException e)
+            {
+                logger.debug("Not a recorded segment: " + segment);
+            }
+        }
+        // the last segment is still being recorded, and the continued encoder may start a couple more while its queued
+        // frames are encoded
+        return last + 3;
+    }
+
+    /**
+     * Adds a segment before the recorded ones, written while the recording goes on. The client is notified when it is
+     * written, as if it was the first recorded segment.
+     *
+     * @param segment a future completed with the segment when it is written, or with null if it was not
+     */
+    public void prependSegment (CompletableFuture<Path> segment)
+    {
+        preRecordSegment = segment;
+        segment.thenAccept(path ->
+        {
+            if (path != null)
+            {
+                logger.debug("Pre-record segment finished: " + path);
+                mediaFacadeClient.recordingSegmentFinished(path);
+            }
+        });
+    }
+
+    /**
+     * Concatenates every segment into the recorded file, including the one the encoder was writing if it did not exit
+     * normally, and deletes the segments if it succeeds. Must be invoked after the encoder exits.
+     *
+     * @return true if the file was created, false if the segments were kept
+     */
+    public boolean finish ()
+    {
+        segmentListReads.cancel(false);
+        readSegmentList();
+        Path segmentFolder = getSegmentFolder();
+        try
+        {
+            List<Path> segments = listSegments(segmentFolder);
+            // an encoder continued by another one may have finished segments the list no longer has
+            segments.forEach(this::segmentFinished);
+            Path preRecord = waitPreRecordSegment();
+            if (preRecord != null && Files.exists(preRecord))
+            {
+                segments.add(0, preRecord);
+            }
+            if (segments.isEmpty())
+            {
+                logger.error("No segment was recorded to " + segmentFolder + "!");
+                return false;
+            }
+            // the list ffmpeg wrote misses the last segment if the encoder died, so it is written again
+            List<String> segmentList = new ArrayList<>();
+            //noinspection SpellCheckingInspection
+            segmentList.add("ffconcat version 1.0");
+            for (Path segment : segments)
+            {
+                segmentList.add("file '" + segment.getFileName() + "'");
+            }
+            Path segmentListPath = MediaFrameworkSettings.segmentList(encoderFilePath);
+            Files.write(segmentListPath, segmentList, StandardCharsets.UTF_8);
+            processUtils.getStdOutAndStdErrOutput(settings.getConcatCommand(segmentListPath, videoFilePath));
+            if (!Files.exists(videoFilePath) || Files.size(videoFilePath) == 0)
+            {
+                logger.error("Could not concatenate the segments of " + videoFilePath + "! They are kept in " +
+                        segmentFolder);
+                return false;
+            }
+            logger.info(segments.size() + " segments concatenated into " + videoFilePath);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not concatenate the segments of " + videoFilePath + "! They are kept in " +
+                    segmentFolder, e);
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while concatenating the segments of " + videoFilePath + "! They are kept in " +
+                    segmentFolder);
+            return false;
+        }
+        deleteSegments(segmentFolder);
+        return true;
+    }
+
+    /**
+     * Notifies the client of the segments ffmpeg added to the segment list since the last read. ffmpeg rewrites the
+     * list whenever a segment is finished, so a line being written is skipped until the next read.
+     */
+    private synchronized void readSegmentList ()
+    {
+        Path segmentList = MediaFrameworkSettings.segmentList(encoderFilePath);
+        if (Files.notExists(segmentList))
+        {
+            return;
+        }
+        try
+        {
+            for (String line : Files.readAllLines(segmentList, StandardCharsets.UTF_8))
+            {
+                if (!line.startsWith("file "))
+                {
+                    continue;
+                }
+                String fileName = line.substring(5).trim();
+                if (fileName.length() > 1 && fileName.startsWith("'") && fileName.endsWith("'"))
+                {
+                    fileName = fileName.substring(1, fileName.length() - 1);
+                }
+                // the concat format resolves relative paths from the list folder
+                Path segment = segmentList.resolveSibling(fileName);
+                if (Files.exists(segment))
+                {
+                    segmentFinished(segment);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not read the segment list " + segmentList, e);
+        }
+    }
+
+    /**
+     * @return the pre-record segment, or null if there is none or it could not be written in time
+     */
+    private Path waitPreRecordSegment () throws InterruptedException
+    {
+        if (preRecordSegment == null)
+        {
+            return null;
+        }
+        try
+        {
+            return preRecordSegment.get(PRE_RECORD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            logger.warn("The pre-record segment was not written in time! Concatenating without it...", e);
+            return null;
+        }
+    }
+
+    /**
+     * Notifies the client of a finished segment, once
+     */
+    private synchronized void segmentFinished (Path segment)
+    {
+        if (finishedSegments.add(segment))
+        {
+            logger.debug("Recording segment finished: " + segment);
+            mediaFacadeClient.recordingSegmentFinished(segment);
+        }
+    }
+
+    private List<Path> listSegments (Path segmentFolder) throws IOException
+    {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(segmentFolder,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+        {
+            for (Path segment : stream)
+            {
+                segments.add(segment);
+            }
+        }
+        // the segment numbers have leading zeros, so the names sort in recording order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private void deleteSegments (Path segmentFolder)
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(segmentFolder))
+        {
+            for (Path file : stream)
+            {
+                Files.delete(file);
+            }
+            Files.delete(segmentFolder);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not delete the segments in " + segmentFolder + "!", e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.core.model.InvalidPixelFormatException;
+import br.com.jmedia.ffmpeg.model.Frame;
+import br.com.jmedia.ffmpeg.model.PixelLayout;
+import br.com.jmedia.ffmpeg.model.PixelLayouts;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Finds out when the source of a capture card is unplugged. The card keeps sending frames, but they are a solid black
+ * or blue, which the capture can not tell apart from video. The luma of a sparse grid of pixels of each frame is
+ * sampled, and a frame whose samples are almost all the same and dark has no signal. A few frames in a row with no
+ * signal make the signal lost, and a few in a row with signal restore it.
+ * <p>
+ * A frame costs {@value #GRID_COLUMNS} times {@value #GRID_ROWS} byte reads and no allocation, whatever its size.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class SignalDetector implements CaptureServiceClient
+{
+    private @Inject Logger logger;
+
+    private static final int    GRID_COLUMNS       = 32;
+    private static final int    GRID_ROWS          = 18;
+    /**
+     * The luma variance under which the samples are taken for a solid color, above the noise of a blank frame
+     */
+    private static final double MAX_SOLID_VARIANCE = 9;
+    /**
+     * The brightest solid color taken for no signal, above the luma of black and of the blue screen of the cards, but
+     * below a gray or white wall
+     */
+    private static final double MAX_NO_SIGNAL_LUMA = 64;
+    /**
+     * The frames in a row with no signal that make the signal lost
+     */
+    private static final int    LOST_FRAMES        = 15;
+    /**
+     * The frames in a row with signal that restore it
+     */
+    private static final int    RESTORED_FRAMES    = 5;
+
+    /**
+     * The position of the first byte of each sampled pixel in the frame
+     */
+    private final int[] samples = new int[GRID_COLUMNS * GRID_ROWS];
+
+    /**
+     * Where the luma byte is in a pixel, or the red, green and blue bytes of an rgb pixel, -1 if it is not rgb
+     */
+    private int lumaOffset;
+    private int redOffset   = -1;
+    private int greenOffset = -1;
+    private int blueOffset  = -1;
+    private int frameLength;
+
+    private Consumer<Boolean> signalListener;
+
+    private volatile boolean signalPresent = true;
+
+    /**
+     * Read and written by the delivery thread only
+     */
+    private int  framesInARow = 0;
+    private long signalLosses = 0;
+
+    /**
+     * Prepares the samples of the frames. The detector must be added to the capture to receive them.
+     *
+     * @param pixelFormat    the pixel format of the captured frames
+     * @param width          the width of the captured frames
+     * @param height         the height of the captured frames
+     * @param signalListener notified, in the delivery thread, with false when the signal is lost and with true when
+     *                       it is restored
+     * @throws InvalidPixelFormatException if the pixel format has no known layout
+     */
+    public void start (String pixelFormat, int width, int height, Consumer<Boolean> signalListener) throws
+            InvalidPixelFormatException
+    {
+        PixelLayout pixelLayout = PixelLayouts.forName(pixelFormat);
+        if (pixelLayout == null)
+        {
+            throw new InvalidPixelFormatException(String.valueOf(pixelFormat));
+        }
+        this.signalListener = signalListener;
+        frameLength = pixelLayout.bytesPerFrame(width, height);
+        int bytesPerPixel = pixelLayout.getPlane(0).getBytesPerPixel();
+        int stride = pixelLayout.getStride(0, width);
+        String name = pixelLayout.getName();
+        if (name.contains("rgb") || name.contains("bgr"))
+        {
+            // the channels are named in the order of their bytes, like bgr0 or argb
+            redOffset = name.indexOf('r');
+            greenOffset = name.indexOf('g');
+            blueOffset = name.indexOf('b');
+        }
+        else
+        {
+            // the luma is in the first plane: the second byte of a uyvy422 pixel and the high byte of a p010le one
+            //noinspection SpellCheckingInspection
+            lumaOffset = name.startsWith("uyvy") || name.startsWith("p010") ? 1 : 0;
+        }
+        int i = 0;
+        for (int row = 0; row < GRID_ROWS; row++)
+        {
+            // the center of each cell of the grid
+            int y = (2 * row + 1) * height / (2 * GRID_ROWS);
+            for (int column = 0; column < GRID_COLUMNS; column++)
+            {
+                int x = (2 * column + 1) * width / (2 * GRID_COLUMNS);
+                samples[i++] = y * stride + x * bytesPerPixel;
+            }
+        }
+    }
+
+    /**
+     * @return false while the frames have no signal
+     */
+    public boolean isSignalPresent ()
+    {
+        return signalPresent;
+    }
+
+    @Override
+    public void receive (Frame frame)
+    {
+        if (frame.length() < frameLength)
+        {
+            // the device changed its resolution, so the samples would be somewhere else
+            return;
+        }
+        long sum = 0;
+        long sumOfSquares = 0;
+        for (int sample : samples)
+        {
+            int luma = luma(frame, sample);
+            sum += luma;
+            sumOfSquares += luma * luma;
+        }
+        double mean = (double) sum / samples.length;
+        double variance = (double) sumOfSquares / samples.length - mean * mean;
+        boolean signal = variance > MAX_SOLID_VARIANCE || mean > MAX_NO_SIGNAL_LUMA;
+        if (signal == signalPresent)
+        {
+            framesInARow = 0;
+            return;
+        }
+        if (++framesInARow >= (signal ? RESTORED_FRAMES : LOST_FRAMES))
+        {
+            framesInARow = 0;
+            signalPresent = signal;
+            if (signal)
+            {
+                logger.info("Capture signal restored.");
+            }
+            else
+            {
+                signalLosses++;
+                logger.warn("Capture signal lost! The frames are a solid color, luma " + Math.round(mean) + ".");
+            }
+            signalListener.accept(signal);
+        }
+    }
+
+    @Override
+    public void receive (ByteBuffer frame)
+    {
+        // every frame is received as a Frame
+    }
+
+    @Override
+    public void captureStopped ()
+    {
+        if (signalLosses > 0)
+        {
+            logger.info("Capture signal lost " + signalLosses + " times.");
+        }
+    }
+
+    private int luma (Frame frame, int sample)
+    {
+        if (redOffset < 0)
+        {
+            return frame.unsignedByte(sample + lumaOffset);
+        }
+        // BT.601 weights, in 8 bits fixed point
+        return (77 * frame.unsignedByte(sample + redOffset) + 150 * frame.unsignedByte(sample + greenOffset) +
+                29 * frame.unsignedByte(sample + blueOffset)) >> 8;
+    }
+}
@@ -0,0 +1,605 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.control.FfmpegFacade;
+import br.com.jmedia.ffmpeg.model.MediaFrameworkSettings;
+import br.com.jmedia.core.control.MediaFacadeClient;
+import br.com.jmedia.core.model.NoMediaDeviceException;
+import br.com.jwheel.weld.Custom;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Video4Linux2 media framework, used on Linux
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+@Custom
+public class V4l2 extends MediaFramework
+{
+    private @Inject Logger       logger;
+    private @Inject ProcessUtils processUtils;
+
+    //noinspection SpellCheckingInspection
+    private static final String PIPE_PIXEL_FORMAT = "yuyv422";
+    //noinspection SpellCheckingInspection
+    private static final String MJPEG             = "mjpeg";
+    private static final String UNSUPPORTED       = "Unsupported";
+
+    /**
+     * The biggest frame the preview needs. Bigger frames only cost bandwidth and frame rate.
+     */
+    private static final int MAX_WIDTH  = 1920;
+    private static final int MAX_HEIGHT = 1080;
+
+    /**
+     * The frame rate asked of the devices, and assumed when it is not known
+     */
+    private static final double TARGET_FRAME_RATE = 30;
+    /**
+     * The lowest frame rate a mode must deliver to be chosen over a smaller one
+     */
+    private static final double MIN_FRAME_RATE    = 24;
+
+    private static final Pattern DEVICE_PATTERN = Pattern.compile("^\\s*\\*?\\s*(/dev/video[0-9]+)\\s*\\[(.*)]\\s*$");
+    private static final Pattern FORMAT_PATTERN =
+            Pattern.compile("\\]\\s*(Raw|Compressed)\\s*:\\s*(\\S+)\\s+:\\s+(.*?)\\s+:\\s+(.*)$");
+    private static final Pattern SIZE_PATTERN   = Pattern.compile("([0-9]+)x([0-9]+)");
+    private static final Pattern RANGE_PATTERN  =
+            Pattern.compile("\\{([0-9]+)-([0-9]+), *([0-9]+)}x\\{([0-9]+)-([0-9]+), *([0-9]+)}");
+
+    private static final Pattern FOUR_CC_PATTERN       =
+            Pattern.compile("^\\s*\\[[0-9]+]:\\s*'(.{4})'\\s*\\((.*)\\)\\s*$");
+    private static final Pattern DISCRETE_SIZE_PATTERN =
+            Pattern.compile("^\\s*Size: Discrete ([0-9]+)x([0-9]+)\\s*$");
+    private static final Pattern SIZE_RANGE_PATTERN    =
+            Pattern.compile("^\\s*Size: \\w+ ([0-9]+)x([0-9]+) - ([0-9]+)x([0-9]+)(?: with step ([0-9]+)/([0-9]+))?");
+    private static final Pattern INTERVAL_PATTERN      =
+            Pattern.compile("^\\s*Interval: .*\\(([0-9.]+)(?:-([0-9.]+))? fps\\)\\s*$");
+
+    private static final Pattern RECORD_FILE_ACCESS_PATTERN =
+            Pattern.compile("Permission denied|No such file or directory|Read-only file system|Input/output error");
+
+    /**
+     * The pixel formats of v4l2-ctl, as four character codes, mapped to their ffmpeg names
+     */
+    private static final Map<String, String> FOUR_CC_FORMATS = new HashMap<>();
+
+    static
+    {
+        //noinspection SpellCheckingInspection
+        String[][] formats = {
+                {"MJPG", MJPEG}, {"JPEG", MJPEG}, {"YUYV", PIPE_PIXEL_FORMAT}, {"UYVY", "uyvy422"},
+                {"NV12", "nv12"}, {"YU12", "yuv420p"}, {"422P", "yuv422p"}, {"GREY", "gray"}, {"RGB3", "rgb24"},
+                {"BGR3", "bgr24"}, {"H264", "h264"}};
+        for (String[] format : formats)
+        {
+            FOUR_CC_FORMATS.put(format[0], format[1]);
+        }
+    }
+
+    @Override
+    public void parsePreviewError (String previewErrorMessage, MediaFacadeClient mediaFacadeClient)
+    {
+        Pattern pattern = Pattern.compile("(/dev/video[0-9]+): No such file or directory");
+        Matcher matcher = pattern.matcher(previewErrorMessage);
+        if (matcher.find())
+        {
+            mediaFacadeClient.deviceNotFound(matcher.group(1));
+        }
+        else
+        {
+            mediaFacadeClient.previewingException();
+        }
+    }
+
+    @Override
+    public void parseRecordError (String recordErrorMessage, MediaFacadeClient mediaFacadeClient)
+    {
+        // the strerror messages of ENOSPC, and of the errors of a folder removed, made read only or unmounted
+        if (recordErrorMessage.contains("No space left on device"))
+        {
+            mediaFacadeClient.outOfDiskSpaceWhileRecording();
+        }
+        else if (RECORD_FILE_ACCESS_PATTERN.matcher(recordErrorMessage).find())
+        {
+            mediaFacadeClient.lostFileAccessWhileRecording();
+        }
+        else
+        {
+            mediaFacadeClient.recordingException();
+        }
+    }
+
+    //<editor-fold desc="Template methods">
+
+    @Override
+    void guessDesiredVideoSettings (MediaFrameworkSettings settings, String listDevicesCommandResult) throws
+            IOException, NoMediaDeviceException, InterruptedException
+    {
+        Map<String, String> videoDevices = parseDevices(listDevicesCommandResult);
+        if (videoDevices.isEmpty())
+        {
+            // ffmpeg builds without device listing support print nothing, so look for the device files
+            File[] deviceFiles = new File("/dev").listFiles((dir, name) -> name.matches("video[0-9]+"));
+            if (deviceFiles != null)
+            {
+                Arrays.sort(deviceFiles);
+                for (File deviceFile : deviceFiles)
+                {
+                    videoDevices.put(deviceFile.getPath(), deviceFile.getName());
+                }
+            }
+        }
+        if (videoDevices.isEmpty())
+        {
+            throw new NoMediaDeviceException();
+        }
+        for (Map.Entry<String, String> videoDevice : videoDevices.entrySet())
+        {
+            logger.debug("Found video device " + videoDevice.getKey() + ": " + videoDevice.getValue());
+            // metadata nodes of a camera are listed as devices too, but they have no formats
+            Mode mode = chooseMode(listFormats(settings, videoDevice.getKey()));
+            if (mode != null)
+            {
+                logger.info("Video device {" + videoDevice.getKey() + "} mode chosen: " + mode);
+                settings.setFrameRate(formatFrameRate(mode.frameRate > 0 ? mode.frameRate : TARGET_FRAME_RATE));
+                settings.setHeight(mode.height);
+                settings.setInputFormat(mode.inputFormat);
+                settings.setPinNumber("");
+                // compressed frames are decoded anyway, so they go straight to the preview pixel format
+                settings.setPixelFormat(mode.inputFormat.equals(MJPEG) ? FfmpegFacade.SUPPORTED_PIXEL_FORMAT :
+                        PIPE_PIXEL_FORMAT);
+                settings.setVideoDevice(videoDevice.getKey());
+                settings.setWidth(mode.width);
+                return;
+            }
+        }
+        throw new NoMediaDeviceException();
+    }
+
+    @Override
+    List<String> getListDevicesCommand (MediaFrameworkSettings settings)
+    {
+        List<String> listDevicesCommand = settings.initialCommandsList();
+        listDevicesCommand.add("-hide_banner");
+        listDevicesCommand.add("-sources");
+        listDevicesCommand.add(filterName());
+        return listDevicesCommand;
+    }
+
+    @Override
+    String filterName ()
+    {
+        return "v4l2";
+    }
+
+    @Override
+    String inputVideoDeviceCommand ()
+    {
+        return MediaFrameworkSettings.VIDEO_DEVICE;
+    }
+
+    @Override
+    String inputFormatCommand ()
+    {
+        return "-input_format";
+    }
+
+    @Override
+    String crossbarVideoInputPinNumberCommand ()
+    {
+        // V4L2 devices select their input with v4l2-ctl, not with ffmpeg
+        return "";
+    }
+
+    //</editor-fold>
+
+    /**
+     * Lists the formats of the device with their frame rates, which only v4l2-ctl lists, or without them with ffmpeg
+     * if v4l2-ctl is not installed
+     */
+    private List<Format> listFormats (MediaFrameworkSettings settings, String videoDevice) throws IOException,
+            InterruptedException
+    {
+        try
+        {
+            List<Format> formats = parseV4l2CtlFormats(processUtils.getStdOutAndStdErrOutput(
+                    Arrays.asList("v4l2-ctl", "--device", videoDevice, "--list-formats-ext")));
+            if (!formats.isEmpty())
+            {
+                return formats;
+            }
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not list the frame rates of " + videoDevice + " with v4l2-ctl", e);
+        }
+        return parseFormats(processUtils.getStdOutAndStdErrOutput(getListFormatsCommand(settings, videoDevice)));
+    }
+
+    private List<String> getListFormatsCommand (MediaFrameworkSettings settings, String videoDevice)
+    {
+        List<String> listFormatsCommand = settings.initialCommandsList();
+        listFormatsCommand.add("-hide_banner");
+        listFormatsCommand.add("-f");
+        listFormatsCommand.add(filterName());
+        listFormatsCommand.add("-list_formats");
+        listFormatsCommand.add("all");
+        listFormatsCommand.add("-i");
+        listFormatsCommand.add(videoDevice);
+        return listFormatsCommand;
+    }
+
+    //<editor-fold desc="Parsers">
+
+    /**
+     * Parses the output of {@code ffmpeg -sources v4l2}, whose device lines look like
+     * {@code /dev/video0 [Integrated Camera: Integrated C]}
+     *
+     * @param listDevicesCommandResult the command output
+     * @return the device paths mapped to their names, in the listed order
+     */
+    static Map<String, String> parseDevices (String listDevicesCommandResult)
+    {
+        Map<String, String> videoDevices = new LinkedHashMap<>();
+        for (String line : listDevicesCommandResult.split("\n"))
+        {
+            Matcher matcher = DEVICE_PATTERN.matcher(line);
+            if (matcher.matches())
+            {
+                videoDevices.put(matcher.group(1), matcher.group(2).trim());
+            }
+        }
+        return videoDevices;
+    }
+
+    /**
+     * Parses the output of {@code ffmpeg -f v4l2 -list_formats all -i <device>}, whose format lines look like
+     * {@code [video4linux2,v4l2 @ 0x55d0c2b0] Raw : yuyv422 : YUYV 4:2:2 : 640x480 1280x720}. Devices with
+     * continuous or stepwise sizes list a range like {@code {32-1280, 2}x{32-720, 2}}, of which only the biggest
+     * size up to {@value #MAX_WIDTH}x{@value #MAX_HEIGHT} is kept.
+     *
+     * @param listFormatsCommandResult the command output
+     * @return the formats, in the listed order
+     */
+    static List<Format> parseFormats (String listFormatsCommandResult)
+    {
+        List<Format> formats = new ArrayList<>();
+        for (String line : listFormatsCommandResult.split("\n"))
+        {
+            Matcher matcher = FORMAT_PATTERN.matcher(line);
+            if (!matcher.find() || !line.contains("v4l2"))
+            {
+                continue;
+            }
+            Format format = new Format(matcher.group(1).equals("Compressed"), matcher.group(2));
+            String sizes = matcher.group(4);
+            Matcher rangeMatcher = RANGE_PATTERN.matcher(sizes);
+            if (rangeMatcher.find())
+            {
+                format.addSize(
+                        fitRange(rangeMatcher.group(1), rangeMatcher.group(2), rangeMatcher.group(3), MAX_WIDTH),
+                        fitRange(rangeMatcher.group(4), rangeMatcher.group(5), rangeMatcher.group(6), MAX_HEIGHT));
+            }
+            else
+            {
+                Matcher sizeMatcher = SIZE_PATTERN.matcher(sizes);
+                while (sizeMatcher.find())
+                {
+                    format.addSize(Integer.parseInt(sizeMatcher.group(1)), Integer.parseInt(sizeMatcher.group(2)));
+                }
+            }
+            if (!format.sizes.isEmpty())
+            {
+                formats.add(format);
+            }
+        }
+        return formats;
+    }
+
+    /**
+     * Parses the output of {@code v4l2-ctl --device <device> --list-formats-ext}, which lists the frame rates of each
+     * discrete size, like
+     * <pre>
+     *     [0]: 'MJPG' (Motion-JPEG, compressed)
+     *         Size: Discrete 1280x720
+     *             Interval: Discrete 0.033s (30.000 fps)
+     * </pre>
+     * The rate kept for each size is the highest up to {@value #TARGET_FRAME_RATE} fps, or the lowest above it.
+     * Stepwise and continuous sizes are kept like in {@link #parseFormats(String)}, without their frame rates. Formats
+     * ffmpeg has no name for here are named {@value #UNSUPPORTED}.
+     *
+     * @param v4l2CtlResult the command output
+     * @return the formats, in the listed order
+     */
+    static List<Format> parseV4l2CtlFormats (String v4l2CtlResult)
+    {
+        List<Format> formats = new ArrayList<>();
+        Format format = null;
+        List<Double> frameRates = new ArrayList<>();
+        for (String line : v4l2CtlResult.split("\n"))
+        {
+            Matcher matcher;
+            if ((matcher = FOUR_CC_PATTERN.matcher(line)).matches())
+            {
+                addFrameRate(format, frameRates);
+                String name = FOUR_CC_FORMATS.get(matcher.group(1));
+                format = new Format(matcher.group(2).endsWith("compressed"), name == null ? UNSUPPORTED : name);
+                formats.add(format);
+            }
+            else if (format == null)
+            {
+                continue;
+            }
+            else if ((matcher = DISCRETE_SIZE_PATTERN.matcher(line)).matches())
+            {
+                addFrameRate(format, frameRates);
+                format.addSize(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+            }
+            else if ((matcher = SIZE_RANGE_PATTERN.matcher(line)).find())
+            {
+                addFrameRate(format, frameRates);
+                String widthStep = matcher.group(5) == null ? "1" : matcher.group(5);
+                String heightStep = matcher.group(6) == null ? "1" : matcher.group(6);
+                format.addSize(fitRange(matcher.group(1), matcher.group(3), widthStep, MAX_WIDTH),
+                        fitRange(matcher.group(2), matcher.group(4), heightStep, MAX_HEIGHT));
+            }
+            else if ((matcher = INTERVAL_PATTERN.matcher(line)).matches())
+            {
+                double min = Double.parseDouble(matcher.group(1));
+                double max = matcher.group(2) == null ? min : Double.parseDouble(matcher.group(2));
+                // a range is taken as its bounds and the target rate in it
+                frameRates.add(min);
+                frameRates.add(max);
+                if (min < TARGET_FRAME_RATE && TARGET_FRAME_RATE < max)
+                {
+                    frameRates.add(TARGET_FRAME_RATE);
+                }
+            }
+        }
+        addFrameRate(format, frameRates);
+        formats.removeIf(listed -> listed.sizes.isEmpty());
+        return formats;
+    }
+
+    /**
+     * Sets the frame rate of the last size of the format to the chosen one of the listed rates, and clears them
+     */
+    private static void addFrameRate (Format format, List<Double> frameRates)
+    {
+        if (format == null || format.sizes.isEmpty() || frameRates.isEmpty())
+        {
+            frameRates.clear();
+            return;
+        }
+        double highestUpToTarget = 0;
+        double lowest = Double.MAX_VALUE;
+        for (double frameRate : frameRates)
+        {
+            if (frameRate <= TARGET_FRAME_RATE)
+            {
+                highestUpToTarget = Math.max(highestUpToTarget, frameRate);
+            }
+            lowest = Math.min(lowest, frameRate);
+        }
+        format.frameRates.set(format.frameRates.size() - 1, highestUpToTarget > 0 ? highestUpToTarget : lowest);
+        frameRates.clear();
+    }
+
+    /**
+     * @return the biggest value of the range up to the limit, or its maximum if even its minimum is bigger
+     */
+    private static int fitRange (String min, String max, String step, int limit)
+    {
+        int minValue = Integer.parseInt(min);
+        int maxValue = Integer.parseInt(max);
+        int stepValue = Math.max(1, Integer.parseInt(step));
+        if (maxValue <= limit || minValue > limit)
+        {
+            return maxValue;
+        }
+        return minValue + (limit - minValue) / stepValue * stepValue;
+    }
+
+    /**
+     * Chooses the biggest frame size up to {@value #MAX_WIDTH}x{@value #MAX_HEIGHT} the device delivers at
+     * {@value #MIN_FRAME_RATE} fps at least, or the fastest mode if none does. At the same size mjpeg is preferred to
+     * yuyv422, which is preferred to any other raw format. Formats ffmpeg does not support are listed as
+     * {@value #UNSUPPORTED}, and skipped.
+     * <p>
+     * Only v4l2-ctl lists the frame rates. Without them, raw sizes bigger than the biggest mjpeg size are assumed too
+     * slow, since USB cameras only deliver big uncompressed frames at a few frames per second and compress the sizes
+     * they deliver fast. A device without mjpeg, like a capture card, is assumed to deliver all its raw sizes fast.
+     *
+     * @param formats the device formats
+     * @return the chosen mode, or null if the device has no usable format
+     */
+    static Mode chooseMode (List<Format> formats)
+    {
+        long mjpegPixels = 0;
+        for (Format format : formats)
+        {
+            if (format.name.equals(MJPEG))
+            {
+                for (int[] size : format.sizes)
+                {
+                    if (size[0] <= MAX_WIDTH && size[1] <= MAX_HEIGHT)
+                    {
+                        mjpegPixels = Math.max(mjpegPixels, (long) size[0] * size[1]);
+                    }
+                }
+            }
+        }
+        Mode best = null;
+        for (Format format : formats)
+        {
+            int priority = format.name.equals(MJPEG) ? 2 : format.name.equals(PIPE_PIXEL_FORMAT) ? 1 :
+                    format.compressed || format.name.equals(UNSUPPORTED) ? -1 : 0;
+            if (priority < 0)
+            {
+                continue;
+            }
+            for (int i = 0; i < format.sizes.size(); i++)
+            {
+                int[] size = format.sizes.get(i);
+                if (size[0] > MAX_WIDTH || size[1] > MAX_HEIGHT)
+                {
+                    continue;
+                }
+                double frameRate = format.frameRates.get(i);
+                boolean fast = frameRate > 0 ? frameRate >= MIN_FRAME_RATE :
+                        format.compressed || mjpegPixels == 0 || (long) size[0] * size[1] <= mjpegPixels;
+                Mode mode = new Mode(format.name, size[0], size[1], priority, frameRate, fast);
+                if (best == null || mode.isBetterThan(best))
+                {
+                    best = mode;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the frame rate as ffmpeg takes it, with up to three decimals
+     */
+    private static String formatFrameRate (double frameRate)
+    {
+        String formatted = String.format(Locale.ROOT, "%.3f", frameRate);
+        return formatted.replaceAll("\\.?0+$", "");
+    }
+
+    //</editor-fold>
+
+    static class Format
+    {
+        private final boolean      compressed;
+        private final String       name;
+        private final List<int[]>  sizes      = new ArrayList<>();
+        /**
+         * The frame rate of each size, zero if it is not known
+         */
+        private final List<Double> frameRates = new ArrayList<>();
+
+        Format (boolean compressed, String name)
+        {
+            this.compressed = compressed;
+            this.name = name;
+        }
+
+        boolean isCompressed ()
+        {
+            return compressed;
+        }
+
+        String getName ()
+        {
+            return name;
+        }
+
+        /**
+         * @return the frame sizes, each one as {width, height}
+         */
+        List<int[]> getSizes ()
+        {
+            return sizes;
+        }
+
+        /**
+         * @return the frame rate of the size at the index, zero if it is not known
+         */
+        double getFrameRate (int index)
+        {
+            return frameRates.get(index);
+        }
+
+        private void addSize (int width, int height)
+        {
+            sizes.add(new int[]{width, height});
+            frameRates.add(0d);
+        }
+    }
+
+    static class Mode
+    {
+        private final String  inputFormat;
+        private final int     width;
+        private final int     height;
+        private final int     priority;
+        /**
+         * Zero if it is not known
+         */
+        private final double  frameRate;
+        /**
+         * If the mode delivers {@value #MIN_FRAME_RATE} fps at least, or is assumed to
+         */
+        private final boolean fast;
+
+        private Mode (String inputFormat, int width, int height, int priority, double frameRate, boolean fast)
+        {
+            this.inputFormat = inputFormat;
+            this.width = width;
+            this.height = height;
+            this.priority = priority;
+            this.frameRate = frameRate;
+            this.fast = fast;
+        }
+
+        String getInputFormat ()
+        {
+            return inputFormat;
+        }
+
+        int getWidth ()
+        {
+            return width;
+        }
+
+        int getHeight ()
+        {
+            return height;
+        }
+
+        /**
+         * @return the frame rate, zero if it is not known
+         */
+        double getFrameRate ()
+        {
+            return frameRate;
+        }
+
+        private boolean isBetterThan (Mode other)
+        {
+            if (fast != other.fast)
+            {
+                return fast;
+            }
+            // when no mode is fast enough, the fastest is the least bad
+            if (!fast && frameRate != other.frameRate)
+            {
+                return frameRate > other.frameRate;
+            }
+            long pixels = (long) width * height;
+            long otherPixels = (long) other.width * other.height;
+            return pixels != otherPixels ? pixels > otherPixels : priority > other.priority;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return inputFormat + " " + width + "x" + height + (frameRate > 0 ? " " + formatFrameRate(frameRate) +
+                    " fps" : "");
+        }
+    }
+}
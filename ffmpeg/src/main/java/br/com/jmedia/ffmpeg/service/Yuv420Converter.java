@@ -0,0 +1,76 @@
+package br.com.jmedia.ffmpeg.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the 4:2:0 YUV formats, where a full luma plane is followed by chroma planes with half the width and half
+ * the height, either interleaved (nv12) or separated (yuv420p)
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+class Yuv420Converter extends PixelConverter
+{
+    private final int lumaStride;
+    private final int uPlane;
+    private final int vPlane;
+    private final int chromaStride;
+    private final int chromaStep;
+
+    /**
+     * @param uPlaneIndex the plane of the u samples
+     * @param vPlaneIndex the plane of the v samples
+     * @param vOffset     the offset of the v sample from the u sample, in a plane of interleaved samples
+     */
+    private Yuv420Converter (String pixelFormat, int width, int height, int uPlaneIndex, int vPlaneIndex, int vOffset)
+    {
+        super(pixelFormat, width, height);
+        lumaStride = sourceLayout.getStride(0, width);
+        uPlane = sourceLayout.getPlaneOffset(uPlaneIndex, width, height);
+        vPlane = sourceLayout.getPlaneOffset(vPlaneIndex, width, height) + vOffset;
+        chromaStride = sourceLayout.getStride(uPlaneIndex, width);
+        chromaStep = sourceLayout.getPlane(uPlaneIndex).getBytesPerPixel();
+    }
+
+    static Yuv420Converter nv12 (int width, int height)
+    {
+        return new Yuv420Converter("nv12", width, height, 1, 1, 1);
+    }
+
+    static Yuv420Converter yuv420p (int width, int height)
+    {
+        //noinspection SpellCheckingInspection
+        return new Yuv420Converter("yuv420p", width, height, 1, 2, 0);
+    }
+
+    @Override
+    public int getRowAlignment ()
+    {
+        return 2;
+    }
+
+    @Override
+    public void convertRows (ByteBuffer source, ByteBuffer target, int firstRow, int endRow)
+    {
+        int base = source.position();
+        for (int row = firstRow; row < endRow; row++)
+        {
+            int lumaIndex = base + row * lumaStride;
+            int chromaIndex = base + (row / 2) * chromaStride;
+            int targetIndex = row * width * BYTES_PER_TARGET_PIXEL;
+            for (int pair = 0; pair < width / 2; pair++, chromaIndex += chromaStep)
+            {
+                int u = source.get(chromaIndex + uPlane) & 0xFF;
+                int v = source.get(chromaIndex + vPlane) & 0xFF;
+                int redChroma = RV_TABLE[v];
+                int greenChroma = GU_TABLE[u] + GV_TABLE[v];
+                int blueChroma = BU_TABLE[u];
+                target.putInt(targetIndex, bgra(Y_TABLE[source.get(lumaIndex++) & 0xFF], redChroma, greenChroma,
+                        blueChroma));
+                targetIndex += BYTES_PER_TARGET_PIXEL;
+                target.putInt(targetIndex, bgra(Y_TABLE[source.get(lumaIndex++) & 0xFF], redChroma, greenChroma,
+                        blueChroma));
+                targetIndex += BYTES_PER_TARGET_PIXEL;
+            }
+        }
+    }
+}
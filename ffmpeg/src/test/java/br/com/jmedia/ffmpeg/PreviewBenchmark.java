@@ -0,0 +1,107 @@
+package br.com.jmedia.ffmpeg;
+
+import br.com.jmedia.ffmpeg.control.VideoPreview;
+import br.com.jmedia.ffmpeg.model.LatencyHistogram;
+import br.com.jmedia.ffmpeg.service.CaptureMetrics;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.StackPane;
+import javafx.stage.Stage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the preview copying the frames into the image with the zero copy preview backed by PixelBuffers. Frames
+ * are delivered faster than the display refresh for a few seconds in each mode, and the time the FX application thread
+ * spent presenting each frame is printed.
+ * <p>
+ * The zero copy mode needs JavaFX 13 or newer. On older runtimes only the copy mode is measured.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class PreviewBenchmark extends Application
+{
+    private static final int WIDTH             = 1920;
+    private static final int HEIGHT            = 1080;
+    private static final int FRAMES_PER_SECOND = 120;
+    private static final int SECONDS           = 5;
+
+    private ImageView view;
+
+    public static void main (String[] args)
+    {
+        launch(args);
+    }
+
+    @Override
+    public void start (Stage stage)
+    {
+        view = new ImageView();
+        stage.setScene(new Scene(new StackPane(view), WIDTH / 2, HEIGHT / 2));
+        stage.show();
+        Thread benchmark = new Thread(() ->
+        {
+            try
+            {
+                run(false);
+                run(true);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            Platform.exit();
+        }, "Preview benchmark thread");
+        benchmark.setDaemon(true);
+        benchmark.start();
+    }
+
+    private void run (boolean zeroCopy) throws InterruptedException
+    {
+        CaptureMetrics metrics = new CaptureMetrics();
+        VideoPreview preview = new VideoPreview(view, WIDTH, HEIGHT, metrics, zeroCopy);
+        if (zeroCopy && !preview.isZeroCopy())
+        {
+            System.out.println("PixelBuffer is not available in this runtime, zero copy mode skipped");
+            return;
+        }
+        ByteBuffer[] frames = {frame(0xFF), frame(0x40)};
+        long interval = TimeUnit.SECONDS.toNanos(1) / FRAMES_PER_SECOND;
+        long start = System.nanoTime();
+        long next = start;
+        int delivered = 0;
+        while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(SECONDS))
+        {
+            preview.receive(frames[delivered++ % frames.length].duplicate());
+            next += interval;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0)
+            {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+        preview.captureStopped();
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        LatencyHistogram presentation = metrics.getPresentationTime();
+        System.out.println((preview.isZeroCopy() ? "Zero copy" : "Copy") + " preview: " + delivered + " frames " +
+                "delivered, " + preview.getPresentedFrames() + " presented, " + preview.getSkippedFrames() +
+                " skipped. FX thread time per presented frame: mean " + Math.round(presentation.getMean()) +
+                " us, 99th percentile " + presentation.getPercentile99() + " us, max " + presentation.getMax() +
+                " us");
+    }
+
+    private static ByteBuffer frame (int luminance)
+    {
+        ByteBuffer frame = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+        while (frame.hasRemaining())
+        {
+            frame.put((byte) luminance).put((byte) luminance).put((byte) luminance).put((byte) 0xFF);
+        }
+        frame.flip();
+        return frame;
+    }
+}
@@ -0,0 +1,288 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.DeliveryPolicy;
+import br.com.jmedia.ffmpeg.model.Frame;
+import br.com.jmedia.ffmpeg.model.FramePool;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fails the client of a lane while the capture thread offers it frames, which must all go back to the pool, or the
+ * capture would wait forever for a free frame. Also checks that the dropped frames are reported to the client where
+ * they were dropped.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class DeliveryLaneTest
+{
+    /**
+     * The failure races with the offers, so each policy is failed many times
+     */
+    private static final int ROUNDS          = 300;
+    private static final int CAPACITY        = 2;
+    private static final int FRAME_LENGTH    = 16;
+    /**
+     * The frames offered after the lane finished, which must be ignored
+     */
+    private static final int LATE_OFFERS     = 10;
+    private static final int TIMEOUT_SECONDS = 5;
+
+    @Test
+    public void releaseFramesOfAFailedBlockingLane () throws Exception
+    {
+        failWhileOffering(DeliveryPolicy.BLOCK);
+    }
+
+    @Test
+    public void releaseFramesOfAFailedDropOldestLane () throws Exception
+    {
+        failWhileOffering(DeliveryPolicy.DROP_OLDEST);
+    }
+
+    @Test
+    public void releaseFramesOfAFailedDropNewestLane () throws Exception
+    {
+        failWhileOffering(DeliveryPolicy.DROP_NEWEST);
+    }
+
+    @Test
+    public void releaseFramesOfAFailedLatestOnlyLane () throws Exception
+    {
+        failWhileOffering(DeliveryPolicy.LATEST_ONLY);
+    }
+
+    @Test
+    public void notifyTheFailure () throws Exception
+    {
+        AtomicInteger failures = new AtomicInteger();
+        FailingClient client = new FailingClient(1);
+        DeliveryLane lane = new DeliveryLane("Test", client, DeliveryPolicy.DROP_NEWEST, CAPACITY,
+                (failed, e) -> failures.incrementAndGet());
+        FramePool pool = new FramePool(FRAME_LENGTH, lane.maxHeldFrames() + 1);
+        lane.start();
+        offerUntilFinished(lane, pool).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(1, failures.get());
+        assertTrue(client.captureStopped);
+        assertEquals(1, client.received.get());
+        assertEquals(0, lane.getDeliveredFrames());
+        assertAllFramesFree(pool);
+    }
+
+    @Test
+    public void reportDropsWhereTheyWereDropped () throws Exception
+    {
+        // the client takes a permit for each frame, so the test decides when the queue has room
+        Semaphore permits = new Semaphore(0);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CaptureServiceClient client = new CaptureServiceClient()
+        {
+            @Override
+            public void receive (Frame frame) throws IOException
+            {
+                events.add("frame " + frame.getSequenceNumber());
+                try
+                {
+                    permits.acquire();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public void framesDropped (int frames)
+            {
+                events.add("dropped " + frames);
+            }
+
+            @Override
+            public void captureStopped ()
+            {
+            }
+
+            @Override
+            public void removedFromCapture ()
+            {
+                events.add("removed");
+            }
+        };
+        DeliveryLane lane = new DeliveryLane("Test", client, DeliveryPolicy.DROP_NEWEST, 1, (failed, e) -> {});
+        FramePool pool = new FramePool(FRAME_LENGTH, lane.maxHeldFrames() + 1);
+        lane.start();
+        offer(lane, pool, 0);
+        awaitEvent(events, "frame 0");
+        // frame 1 fills the queue, so frames 2 and 3 are dropped after it
+        offer(lane, pool, 1);
+        offer(lane, pool, 2);
+        offer(lane, pool, 3);
+        permits.release();
+        awaitEvent(events, "frame 1");
+        offer(lane, pool, 4);
+        offer(lane, pool, 5);
+        // a paused lane does not drop the frames it skips
+        lane.setPaused(true);
+        offer(lane, pool, 6);
+        lane.close(false);
+        permits.release(FRAME_LENGTH);
+        lane.getFinished().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        // frame 5 was dropped after the last frame received, so it is reported when the lane is closed
+        assertEquals(Arrays.asList("frame 0", "frame 1", "dropped 2", "frame 4", "dropped 1", "removed"), events);
+        assertEquals(3, lane.getDroppedFrames());
+        assertAllFramesFree(pool);
+    }
+
+    private void awaitEvent (List<String> events, String event) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!events.contains(event))
+        {
+            if (System.nanoTime() > deadline)
+            {
+                fail("The client did not get " + event + "! It got " + events);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void offer (DeliveryLane lane, FramePool pool, long sequenceNumber) throws InterruptedException
+    {
+        Frame frame = pool.acquire();
+        try
+        {
+            frame.describe(sequenceNumber, Frame.NO_PRESENTATION_TIME, 1, 1, "gray");
+            lane.offer(frame);
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    private void failWhileOffering (DeliveryPolicy policy) throws Exception
+    {
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            // fail at different frames, so the failure meets the offers at different points
+            FailingClient client = new FailingClient(1 + round % 4);
+            DeliveryLane lane = new DeliveryLane("Test", client, policy, CAPACITY, (failed, e) -> {});
+            FramePool pool = new FramePool(FRAME_LENGTH, lane.maxHeldFrames() + 1);
+            lane.start();
+            try
+            {
+                offerUntilFinished(lane, pool).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            catch (TimeoutException e)
+            {
+                fail(policy + ": the capture waited for a frame the failed lane did not release, in round " + round);
+            }
+            assertTrue(client.captureStopped);
+            assertAllFramesFree(pool);
+        }
+    }
+
+    /**
+     * Offers frames, as the capture thread does, until the lane finished and a few more after that
+     */
+    private CompletableFuture<Void> offerUntilFinished (DeliveryLane lane, FramePool pool)
+    {
+        return CompletableFuture.runAsync(() ->
+        {
+            try
+            {
+                int lateOffers = 0;
+                while (lateOffers < LATE_OFFERS)
+                {
+                    if (lane.getFinished().isDone())
+                    {
+                        lateOffers++;
+                    }
+                    Frame frame = pool.acquire();
+                    try
+                    {
+                        lane.offer(frame);
+                    }
+                    finally
+                    {
+                        frame.release();
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Acquires every frame of the pool, which only completes if none is held anymore
+     */
+    private void assertAllFramesFree (FramePool pool) throws Exception
+    {
+        CompletableFuture<Void> acquired = CompletableFuture.runAsync(() ->
+        {
+            try
+            {
+                for (int i = 0; i < pool.getFrameCount(); i++)
+                {
+                    pool.acquire();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw new CompletionException(e);
+            }
+        });
+        try
+        {
+            acquired.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            fail("A frame was not released to the pool!");
+        }
+    }
+
+    private static class FailingClient implements CaptureServiceClient
+    {
+        private final int           failingFrame;
+        private final AtomicInteger received = new AtomicInteger();
+
+        private volatile boolean captureStopped = false;
+
+        private FailingClient (int failingFrame)
+        {
+            this.failingFrame = failingFrame;
+        }
+
+        @Override
+        public void receive (ByteBuffer frame) throws IOException
+        {
+            if (received.incrementAndGet() == failingFrame)
+            {
+                throw new IOException("Failing on purpose");
+            }
+        }
+
+        @Override
+        public void captureStopped ()
+        {
+            captureStopped = true;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package br.com.jmedia.ffmpeg.service;
+
+import br.com.jmedia.ffmpeg.model.Frame;
+import br.com.jmedia.ffmpeg.model.FramePool;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads NUT streams laid out like the ones the ffmpeg muxer writes for a rawvideo capture with wall clock timestamps:
+ * a main header, a stream header per stream, an info packet, a syncpoint, then the frames, with the headers repeated
+ * later in the stream and an index at its end. The checksums are zeros, since the reader does not verify them.
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class NutFrameReaderTest
+{
+    private static final long MAIN_STARTCODE      = 0x4E4D7A561F5F04ADL;
+    private static final long STREAM_STARTCODE    = 0x4E5311405BF2F9DBL;
+    private static final long SYNCPOINT_STARTCODE = 0x4E4BE4ADEECA4569L;
+    private static final long INFO_STARTCODE      = 0x4E49AB68B596BA78L;
+    private static final long INDEX_STARTCODE     = 0x4E58DD672F23E64EL;
+
+    private static final int FLAG_KEY       = 1;
+    private static final int FLAG_CODED_PTS = 8;
+    private static final int FLAG_SIZE_MSB  = 32;
+    private static final int FLAG_CHECKSUM  = 64;
+    private static final int FLAG_CODED     = 4096;
+    private static final int FLAG_INVALID   = 8192;
+
+    /**
+     * A frame with its pts and size coded in its header
+     */
+    private static final int CODE_CODED_PTS    = 1;
+    /**
+     * A frame {@value #FRAME_DURATION} ticks after the previous one, with its size coded in its header
+     */
+    private static final int CODE_NEXT_PTS     = 2;
+    /**
+     * A frame of the audio stream, with a checksum
+     */
+    private static final int CODE_OTHER_STREAM = 3;
+    /**
+     * A frame whose flags are coded in its header
+     */
+    private static final int CODE_CODED_FLAGS  = 4;
+
+    private static final int  PTS_SHIFT      = 14;
+    /**
+     * One frame at 30 fps in the 90 kHz time base of the stream
+     */
+    private static final int  FRAME_DURATION = 3000;
+    /**
+     * 2023-11-14T22:13:20Z, in the 90 kHz time base
+     */
+    private static final long WALL_CLOCK_PTS = 153_000_000_000_000L;
+    private static final long WALL_CLOCK_US  = 1_700_000_000_000_000L;
+
+    //noinspection SpellCheckingInspection
+    private static final String PIXEL_FORMAT = "bgr0";
+    private static final int    WIDTH        = 4;
+    private static final int    HEIGHT       = 2;
+    private static final int    FRAME_LENGTH = WIDTH * HEIGHT * 4;
+
+    @Test
+    public void readFrames () throws Exception
+    {
+        NutStream stream = new NutStream();
+        stream.headers(WIDTH, HEIGHT);
+        stream.info(100);
+        stream.syncpoint(WALL_CLOCK_PTS);
+        stream.frame(CODE_CODED_PTS, WALL_CLOCK_PTS, payload(FRAME_LENGTH, 0));
+        stream.frame(CODE_NEXT_PTS, 0, payload(FRAME_LENGTH, 1));
+        stream.frame(CODE_CODED_FLAGS, WALL_CLOCK_PTS + 2 * FRAME_DURATION, payload(FRAME_LENGTH, 2));
+        stream.index();
+        NutFrameReader reader = new NutFrameReader(stream.channel(), PIXEL_FORMAT);
+        FramePool pool = new FramePool(FRAME_LENGTH, 1);
+
+        assertFrame(reader, pool, 0, WALL_CLOCK_US, WIDTH, HEIGHT, 0);
+        assertFrame(reader, pool, 1, WALL_CLOCK_US + 33_333, WIDTH, HEIGHT, 1);
+        assertFrame(reader, pool, 2, WALL_CLOCK_US + 66_666, WIDTH, HEIGHT, 2);
+        assertEnd(reader, pool);
+        assertEquals(0, reader.getSkippedFrames());
+    }
+
+    @Test
+    public void skipOtherStreamsAndPackets () throws Exception
+    {
+        NutStream stream = new NutStream();
+        stream.headers(WIDTH, HEIGHT);
+        // bigger than the checksum threshold, so its header has a checksum too
+        stream.info(5000);
+        stream.syncpoint(WALL_CLOCK_PTS);
+        stream.frame(CODE_OTHER_STREAM, WALL_CLOCK_PTS, payload(5, 9));
+        stream.frame(CODE_CODED_PTS, WALL_CLOCK_PTS + FRAME_DURATION, payload(FRAME_LENGTH, 0));
+        stream.frame(CODE_OTHER_STREAM, WALL_CLOCK_PTS + FRAME_DURATION, payload(5, 9));
+        stream.frame(CODE_NEXT_PTS, 0, payload(FRAME_LENGTH, 1));
+        NutFrameReader reader = new NutFrameReader(stream.channel(), PIXEL_FORMAT);
+        FramePool pool = new FramePool(FRAME_LENGTH, 1);
+
+        assertFrame(reader, pool, 0, WALL_CLOCK_US + 33_333, WIDTH, HEIGHT, 0);
+        assertFrame(reader, pool, 1, WALL_CLOCK_US + 66_666, WIDTH, HEIGHT, 1);
+        assertEnd(reader, pool);
+        // the frames of other streams are not frames of the capture
+        assertEquals(0, reader.getSkippedFrames());
+    }
+
+    @Test
+    public void skipFramesOfAnotherResolution () throws Exception
+    {
+        NutStream stream = new NutStream();
+        stream.headers(WIDTH, HEIGHT);
+        stream.syncpoint(WALL_CLOCK_PTS);
+        stream.frame(CODE_CODED_PTS, WALL_CLOCK_PTS, payload(FRAME_LENGTH, 0));
+        // the device changed its resolution, and the headers are written again with it
+        stream.headers(WIDTH * 2, HEIGHT);
+        stream.syncpoint(WALL_CLOCK_PTS + FRAME_DURATION);
+        stream.frame(CODE_CODED_PTS, WALL_CLOCK_PTS + FRAME_DURATION, payload(FRAME_LENGTH * 2, 1));
+        stream.frame(CODE_NEXT_PTS, 0, payload(FRAME_LENGTH * 2, 2));
+        // and back
+        stream.headers(WIDTH, HEIGHT);
+        stream.syncpoint(WALL_CLOCK_PTS + 3 * FRAME_DURATION);
+        stream.frame(CODE_CODED_PTS, WALL_CLOCK_PTS + 3 * FRAME_DURATION, payload(FRAME_LENGTH, 3));
+        stream.frame(CODE_NEXT_PTS, 0, payload(FRAME_LENGTH, 4));
+        NutFrameReader reader = new NutFrameReader(stream.channel(), PIXEL_FORMAT);
+        FramePool pool = new FramePool(FRAME_LENGTH, 1);
+
+        assertFrame(reader, pool, 0, WALL_CLOCK_US, WIDTH, HEIGHT, 0);
+        // the sequence numbers go on without the skipped frames
+        assertFrame(reader, pool, 1, WALL_CLOCK_US + 100_000, WIDTH, HEIGHT, 3);
+        assertFrame(reader, pool, 2, WALL_CLOCK_US + 133_333, WIDTH, HEIGHT, 4);
+        assertEnd(reader, pool);
+        assertEquals(2, reader.getSkippedFrames());
+    }
+
+    @Test
+    public void readFramesInSmallReads () throws Exception
+    {
+        NutStream stream = new NutStream();
+        stream.headers(WIDTH, HEIGHT);
+        stream.info(100);
+        stream.syncpoint(WALL_CLOCK_PTS);
+        for (int i = 0; i < 10; i++)
+        {
+            stream.frame(CODE_CODED_PTS, WALL_CLOCK_PTS + i * FRAME_DURATION, payload(FRAME_LENGTH, i));
+        }
+        ReadableByteChannel channel = stream.channel();
+        // a pipe may return any number of bytes, so the headers and the frames are split between reads
+        ReadableByteChannel trickle = new ReadableByteChannel()
+        {
+            @Override
+            public int read (ByteBuffer dst) throws IOException
+            {
+                ByteBuffer chunk = dst.duplicate();
+                chunk.limit(Math.min(dst.limit(), dst.position() + 7));
+                int read = channel.read(chunk);
+                if (read > 0)
+                {
+                    dst.position(dst.position() + read);
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen ()
+            {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close () throws IOException
+            {
+                channel.close();
+            }
+        };
+        NutFrameReader reader = new NutFrameReader(trickle, PIXEL_FORMAT);
+        FramePool pool = new FramePool(FRAME_LENGTH, 1);
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertFrame(reader, pool, i, WALL_CLOCK_US + i * 100_000 / 3, WIDTH, HEIGHT, i);
+        }
+        assertEnd(reader, pool);
+    }
+
+    @Test
+    public void endBeforeTheFirstFrame () throws Exception
+    {
+        NutStream stream = new NutStream();
+        stream.headers(WIDTH, HEIGHT);
+        assertEnd(new NutFrameReader(stream.channel(), PIXEL_FORMAT), new FramePool(FRAME_LENGTH, 1));
+    }
+
+    @Test
+    public void endInTheMiddleOfAFrame () throws Exception
+    {
+        NutStream stream = new NutStream();
+        stream.headers(WIDTH, HEIGHT);
+        stream.syncpoint(WALL_CLOCK_PTS);
+        stream.frame(CODE_CODED_PTS, WALL_CLOCK_PTS, payload(FRAME_LENGTH, 0));
+        byte[] bytes = stream.toByteArray();
+        ReadableByteChannel truncated = Channels.newChannel(new ByteArrayInputStream(bytes, 0, bytes.length - 5));
+        assertEnd(new NutFrameReader(truncated, PIXEL_FORMAT), new FramePool(FRAME_LENGTH, 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectAnotherContainer () throws Exception
+    {
+        byte[] matroska = new byte[64];
+        matroska[0] = 0x1A;
+        matroska[1] = 0x45;
+        matroska[2] = (byte) 0xDF;
+        matroska[3] = (byte) 0xA3;
+        NutFrameReader reader = new NutFrameReader(Channels.newChannel(new ByteArrayInputStream(matroska)),
+                PIXEL_FORMAT);
+        reader.read(new FramePool(FRAME_LENGTH, 1).acquire());
+    }
+
+    private static void assertFrame (NutFrameReader reader, FramePool pool, long sequenceNumber,
+            long presentationTime, int width, int height, int payloadSeed) throws Exception
+    {
+        Frame frame = pool.acquire();
+        try
+        {
+            assertTrue(reader.read(frame));
+            assertEquals(sequenceNumber, frame.getSequenceNumber());
+            assertEquals(presentationTime, frame.getPresentationTime());
+            assertEquals(width, frame.getWidth());
+            assertEquals(height, frame.getHeight());
+            assertEquals(PIXEL_FORMAT, frame.getPixelFormat());
+            byte[] bytes = new byte[frame.length()];
+            frame.view().get(bytes);
+            assertArrayEquals(payload(FRAME_LENGTH, payloadSeed), bytes);
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    private static void assertEnd (NutFrameReader reader, FramePool pool) throws Exception
+    {
+        Frame frame = pool.acquire();
+        try
+        {
+            assertFalse(reader.read(frame));
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    private static byte[] payload (int length, int seed)
+    {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            payload[i] = (byte) (seed * 31 + i);
+        }
+        return payload;
+    }
+
+    /**
+     * Writes a NUT stream with a video stream in a 90 kHz time base and an audio stream, whose frames are skipped
+     */
+    private static class NutStream
+    {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private NutStream ()
+        {
+            byte[] fileId = "nut/multimedia container\0".getBytes(StandardCharsets.US_ASCII);
+            out.write(fileId, 0, fileId.length);
+        }
+
+        private void headers (int width, int height)
+        {
+            ByteArrayOutputStream main = new ByteArrayOutputStream();
+            putVarlen(main, 3);
+            putVarlen(main, 2);
+            putVarlen(main, 65536);
+            // the time bases: microseconds and 90 kHz
+            putVarlen(main, 2);
+            putVarlen(main, 1);
+            putVarlen(main, 1_000_000);
+            putVarlen(main, 1);
+            putVarlen(main, 90_000);
+            // the frame codes, each one given with all its fields: flags, field count, pts delta, size multiplier,
+            // stream, size lsb, reserved count and code count
+            putFrameCodes(main, FLAG_INVALID, 0, 0, 1);
+            putFrameCodes(main, FLAG_KEY | FLAG_CODED_PTS | FLAG_SIZE_MSB, 0, 0, 1);
+            putFrameCodes(main, FLAG_KEY | FLAG_SIZE_MSB, FRAME_DURATION, 0, 1);
+            putFrameCodes(main, FLAG_KEY | FLAG_CODED_PTS | FLAG_SIZE_MSB | FLAG_CHECKSUM, 0, 1, 1);
+            putFrameCodes(main, FLAG_CODED, 0, 0, 1);
+            // the rest, except 'N', which is always invalid
+            putFrameCodes(main, FLAG_INVALID, 0, 0, 250);
+            // no elision header
+            putVarlen(main, 0);
+            packet(MAIN_STARTCODE, main);
+
+            ByteArrayOutputStream video = new ByteArrayOutputStream();
+            putVarlen(video, 0);
+            putVarlen(video, 0);
+            putBytes(video, "BGR\0".getBytes(StandardCharsets.US_ASCII));
+            putVarlen(video, 1);
+            putVarlen(video, PTS_SHIFT);
+            putVarlen(video, 0);
+            putVarlen(video, 0);
+            putVarlen(video, 0);
+            putBytes(video, new byte[0]);
+            putVarlen(video, width);
+            putVarlen(video, height);
+            putVarlen(video, 1);
+            putVarlen(video, 1);
+            putVarlen(video, 0);
+            packet(STREAM_STARTCODE, video);
+
+            ByteArrayOutputStream audio = new ByteArrayOutputStream();
+            putVarlen(audio, 1);
+            putVarlen(audio, 1);
+            putBytes(audio, "PSM\1".getBytes(StandardCharsets.US_ASCII));
+            putVarlen(audio, 1);
+            putVarlen(audio, PTS_SHIFT);
+            putVarlen(audio, 0);
+            putVarlen(audio, 0);
+            putVarlen(audio, 0);
+            putBytes(audio, new byte[0]);
+            putVarlen(audio, 48_000);
+            putVarlen(audio, 1);
+            putVarlen(audio, 2);
+            packet(STREAM_STARTCODE, audio);
+        }
+
+        private void info (int length)
+        {
+            ByteArrayOutputStream info = new ByteArrayOutputStream();
+            info.write(new byte[length], 0, length);
+            packet(INFO_STARTCODE, info);
+        }
+
+        /**
+         * @param pts the pts of the next frame, in the 90 kHz time base, given to the syncpoint in microseconds
+         */
+        private void syncpoint (long pts)
+        {
+            ByteArrayOutputStream syncpoint = new ByteArrayOutputStream();
+            long microseconds = pts * 100 / 9;
+            putVarlen(syncpoint, microseconds * 2);
+            putVarlen(syncpoint, 0);
+            packet(SYNCPOINT_STARTCODE, syncpoint);
+        }
+
+        private void index ()
+        {
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            putVarlen(index, 0);
+            packet(INDEX_STARTCODE, index);
+        }
+
+        /**
+         * @param pts the pts, in the 90 kHz time base, ignored by the codes that do not code it
+         */
+        private void frame (int code, long pts, byte[] payload)
+        {
+            out.write(code);
+            int flags;
+            if (code == CODE_CODED_FLAGS)
+            {
+                // the pts is coded in full, not as its least significant bits
+                flags = FLAG_KEY | FLAG_CODED_PTS | FLAG_SIZE_MSB;
+                putVarlen(out, flags ^ FLAG_CODED);
+                putVarlen(out, pts + (1L << PTS_SHIFT));
+                putVarlen(out, payload.length);
+                out.write(payload, 0, payload.length);
+                return;
+            }
+            if (code != CODE_NEXT_PTS)
+            {
+                putVarlen(out, pts & ((1L << PTS_SHIFT) - 1));
+            }
+            putVarlen(out, payload.length);
+            if (code == CODE_OTHER_STREAM)
+            {
+                out.write(new byte[4], 0, 4);
+            }
+            out.write(payload, 0, payload.length);
+        }
+
+        private ReadableByteChannel channel ()
+        {
+            return Channels.newChannel(new ByteArrayInputStream(toByteArray()));
+        }
+
+        private byte[] toByteArray ()
+        {
+            return out.toByteArray();
+        }
+
+        private void packet (long startcode, ByteArrayOutputStream content)
+        {
+            for (int shift = 56; shift >= 0; shift -= 8)
+            {
+                out.write((int) (startcode >>> shift));
+            }
+            // the forward pointer counts the checksum at the end of the packet
+            int forwardPointer = content.size() + 4;
+            putVarlen(out, forwardPointer);
+            if (forwardPointer > 4096)
+            {
+                out.write(new byte[4], 0, 4);
+            }
+            out.write(content.toByteArray(), 0, content.size());
+            out.write(new byte[4], 0, 4);
+        }
+
+        private static void putFrameCodes (ByteArrayOutputStream out, int flags, long ptsDelta, int streamId,
+                int count)
+        {
+            putVarlen(out, flags);
+            putVarlen(out, 6);
+            putVarlen(out, ptsDelta > 0 ? 2 * ptsDelta - 1 : -2 * ptsDelta);
+            putVarlen(out, 1);
+            putVarlen(out, streamId);
+            putVarlen(out, 0);
+            putVarlen(out, 0);
+            putVarlen(out, count);
+        }
+
+        private static void putBytes (ByteArrayOutputStream out, byte[] bytes)
+        {
+            putVarlen(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private static void putVarlen (ByteArrayOutputStream out, long value)
+        {
+            int bytes = 1;
+            while (bytes < 10 && value >>> (7 * bytes) != 0)
+            {
+                bytes++;
+            }
+            for (int i = bytes - 1; i > 0; i--)
+            {
+                out.write((int) (0x80 | (value >>> (7 * i)) & 0x7F));
+            }
+            out.write((int) (value & 0x7F));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package br.com.jmedia.ffmpeg.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses the output ffmpeg 4.4 writes for a laptop with an integrated camera, which also lists its metadata node, and
+ * for a USB capture card with stepwise sizes, and the output v4l2-ctl 1.22 writes for a USB camera that delivers its
+ * biggest uncompressed frames at a few frames per second
+ *
+ * @author Lima Filho, A. L. - amsterdam@luvva.com.br
+ */
+public class V4l2Test
+{
+    //noinspection SpellCheckingInspection
+    private static final String SOURCES =
+            "Auto-detected sources for video4linux2,v4l2:\n" +
+            "* /dev/video0 [Integrated Camera: Integrated C]\n" +
+            "  /dev/video1 [Integrated Camera: Integrated C]\n" +
+            "  /dev/video2 [USB3.0 HD Video Capture: USB3.0 HD Video Capture]\n";
+
+    //noinspection SpellCheckingInspection
+    private static final String CAMERA_FORMATS =
+            "[video4linux2,v4l2 @ 0x55d0c2b0e580] Compressed:       mjpeg :          Motion-JPEG : 1280x720 " +
+            "960x540 848x480 640x480 640x360\n" +
+            "[video4linux2,v4l2 @ 0x55d0c2b0e580] Raw       :     yuyv422 :           YUYV 4:2:2 : 640x480 " +
+            "640x360 424x240 320x240 320x180 160x120\n" +
+            "/dev/video0: Immediate exit requested\n";
+
+    /**
+     * The metadata node of the camera has no video format
+     */
+    private static final String METADATA_FORMATS =
+            "[video4linux2,v4l2 @ 0x5618d4a1c8c0] ioctl(VIDIOC_G_INPUT): Inappropriate ioctl for device\n" +
+            "/dev/video1: Inappropriate ioctl for device\n";
+
+    //noinspection SpellCheckingInspection
+    private static final String CARD_FORMATS =
+            "[video4linux2,v4l2 @ 0x5636f8a3d040] Raw       :     yuyv422 :           YUYV 4:2:2 : " +
+            "{32-3840, 2}x{32-2160, 2}\n" +
+            "[video4linux2,v4l2 @ 0x5636f8a3d040] Raw       :        nv12 :         Y/CbCr 4:2:0 : " +
+            "{32-3840, 2}x{32-2160, 2}\n" +
+            "[video4linux2,v4l2 @ 0x5636f8a3d040] Compressed: Unsupported :                 HEVC : " +
+            "{32-3840, 2}x{32-2160, 2}\n" +
+            "/dev/video2: Immediate exit requested\n";
+
+    //noinspection SpellCheckingInspection
+    private static final String SLOW_YUYV_CAMERA_FORMATS =
+            "ioctl: VIDIOC_ENUM_FMT\n" +
+            "\tType: Video Capture\n" +
+            "\n" +
+            "\t[0]: 'MJPG' (Motion-JPEG, compressed)\n" +
+            "\t\tSize: Discrete 1280x720\n" +
+            "\t\t\tInterval: Discrete 0.033s (30.000 fps)\n" +
+            "\t\tSize: Discrete 640x480\n" +
+            "\t\t\tInterval: Discrete 0.033s (30.000 fps)\n" +
+            "\t[1]: 'YUYV' (YUYV 4:2:2)\n" +
+            "\t\tSize: Discrete 1920x1080\n" +
+            "\t\t\tInterval: Discrete 0.200s (5.000 fps)\n" +
+            "\t\tSize: Discrete 1280x720\n" +
+            "\t\t\tInterval: Discrete 0.100s (10.000 fps)\n" +
+            "\t\tSize: Discrete 640x480\n" +
+            "\t\t\tInterval: Discrete 0.033s (30.000 fps)\n" +
+            "\t\t\tInterval: Discrete 0.067s (15.000 fps)\n" +
+            "\t[2]: 'NV12' (Y/CbCr 4:2:0)\n" +
+            "\t\tSize: Stepwise 32x32 - 3840x2160 with step 2/2\n" +
+            "\t[3]: 'HEVC' (HEVC, compressed)\n" +
+            "\t\tSize: Discrete 3840x2160\n" +
+            "\t\t\tInterval: Discrete 0.017s (60.000 fps)\n";
+
+    @Test
+    public void parseDevices ()
+    {
+        Map<String, String> devices = V4l2.parseDevices(SOURCES);
+        assertEquals(3, devices.size());
+        Iterator<Map.Entry<String, String>> iterator = devices.entrySet().iterator();
+        Map.Entry<String, String> device = iterator.next();
+        assertEquals("/dev/video0", device.getKey());
+        assertEquals("Integrated Camera: Integrated C", device.getValue());
+        assertEquals("/dev/video1", iterator.next().getKey());
+        device = iterator.next();
+        assertEquals("/dev/video2", device.getKey());
+        assertEquals("USB3.0 HD Video Capture: USB3.0 HD Video Capture", device.getValue());
+    }
+
+    @Test
+    public void parseDevicesWithoutDevices ()
+    {
+        assertTrue(V4l2.parseDevices("Auto-detected sources for video4linux2,v4l2:\n").isEmpty());
+        assertTrue(V4l2.parseDevices("").isEmpty());
+    }
+
+    @Test
+    public void parseDiscreteFormats ()
+    {
+        List<V4l2.Format> formats = V4l2.parseFormats(CAMERA_FORMATS);
+        assertEquals(2, formats.size());
+        V4l2.Format mjpeg = formats.get(0);
+        assertTrue(mjpeg.isCompressed());
+        assertEquals("mjpeg", mjpeg.getName());
+        assertEquals(5, mjpeg.getSizes().size());
+        assertArrayEquals(new int[]{1280, 720}, mjpeg.getSizes().get(0));
+        assertArrayEquals(new int[]{640, 360}, mjpeg.getSizes().get(4));
+        V4l2.Format yuyv = formats.get(1);
+        assertFalse(yuyv.isCompressed());
+        //noinspection SpellCheckingInspection
+        assertEquals("yuyv422", yuyv.getName());
+        assertEquals(6, yuyv.getSizes().size());
+        assertArrayEquals(new int[]{160, 120}, yuyv.getSizes().get(5));
+    }
+
+    @Test
+    public void parseRangeFormats ()
+    {
+        List<V4l2.Format> formats = V4l2.parseFormats(CARD_FORMATS);
+        assertEquals(3, formats.size());
+        for (V4l2.Format format : formats)
+        {
+            // only the biggest size the preview needs is kept
+            assertEquals(1, format.getSizes().size());
+            assertArrayEquals(new int[]{1920, 1080}, format.getSizes().get(0));
+        }
+        assertEquals("Unsupported", formats.get(2).getName());
+        assertTrue(formats.get(2).isCompressed());
+    }
+
+    @Test
+    public void parseRangeFormatsAlignedToTheStep ()
+    {
+        List<V4l2.Format> formats = V4l2.parseFormats(
+                "[video4linux2,v4l2 @ 0x5636f8a3d040] Raw       :     yuyv422 :           YUYV 4:2:2 : " +
+                "{48-4096, 16}x{34-2304, 4}\n");
+        assertEquals(1, formats.size());
+        assertArrayEquals(new int[]{1920, 1078}, formats.get(0).getSizes().get(0));
+    }
+
+    @Test
+    public void parseFormatsWithoutFormats ()
+    {
+        assertTrue(V4l2.parseFormats(METADATA_FORMATS).isEmpty());
+    }
+
+    @Test
+    public void parseV4l2CtlFormats ()
+    {
+        List<V4l2.Format> formats = V4l2.parseV4l2CtlFormats(SLOW_YUYV_CAMERA_FORMATS);
+        assertEquals(4, formats.size());
+        V4l2.Format mjpeg = formats.get(0);
+        assertTrue(mjpeg.isCompressed());
+        assertEquals("mjpeg", mjpeg.getName());
+        assertEquals(2, mjpeg.getSizes().size());
+        assertArrayEquals(new int[]{1280, 720}, mjpeg.getSizes().get(0));
+        assertEquals(30, mjpeg.getFrameRate(0), 0);
+        V4l2.Format yuyv = formats.get(1);
+        assertFalse(yuyv.isCompressed());
+        //noinspection SpellCheckingInspection
+        assertEquals("yuyv422", yuyv.getName());
+        assertEquals(3, yuyv.getSizes().size());
+        assertArrayEquals(new int[]{1920, 1080}, yuyv.getSizes().get(0));
+        assertEquals(5, yuyv.getFrameRate(0), 0);
+        assertEquals(10, yuyv.getFrameRate(1), 0);
+        // the highest rate up to the target is kept
+        assertEquals(30, yuyv.getFrameRate(2), 0);
+        // stepwise sizes are fit like the ffmpeg ranges, and their rates are not listed
+        V4l2.Format nv12 = formats.get(2);
+        assertArrayEquals(new int[]{1920, 1080}, nv12.getSizes().get(0));
+        assertEquals(0, nv12.getFrameRate(0), 0);
+        assertEquals("Unsupported", formats.get(3).getName());
+        // the lowest rate above the target is kept if none is up to it
+        assertEquals(60, formats.get(3).getFrameRate(0), 0);
+    }
+
+    @Test
+    public void parseV4l2CtlFormatsWithoutFormats ()
+    {
+        assertTrue(V4l2.parseV4l2CtlFormats("ioctl: VIDIOC_ENUM_FMT\n\tType: Video Capture\n\n").isEmpty());
+        assertTrue(V4l2.parseV4l2CtlFormats("").isEmpty());
+    }
+
+    @Test
+    public void chooseMjpegOverABiggerSlowYuyvSize ()
+    {
+        // the nv12 sizes have no listed rates, but the camera compresses smaller sizes only, so they are slow too
+        V4l2.Mode mode = V4l2.chooseMode(V4l2.parseV4l2CtlFormats(SLOW_YUYV_CAMERA_FORMATS));
+        assertNotNull(mode);
+        assertEquals("mjpeg", mode.getInputFormat());
+        assertEquals(1280, mode.getWidth());
+        assertEquals(720, mode.getHeight());
+        assertEquals(30, mode.getFrameRate(), 0);
+    }
+
+    @Test
+    public void chooseMjpegOverABiggerYuyvSizeWithoutFrameRates ()
+    {
+        //noinspection SpellCheckingInspection
+        V4l2.Mode mode = V4l2.chooseMode(V4l2.parseFormats(
+                "[video4linux2,v4l2 @ 0x55d0c2b0e580] Compressed:       mjpeg :          Motion-JPEG : 1280x720 " +
+                "640x480\n" +
+                "[video4linux2,v4l2 @ 0x55d0c2b0e580] Raw       :     yuyv422 :           YUYV 4:2:2 : 1920x1080 " +
+                "1280x720 640x480\n"));
+        assertNotNull(mode);
+        assertEquals("mjpeg", mode.getInputFormat());
+        assertEquals(1280, mode.getWidth());
+        assertEquals(720, mode.getHeight());
+        assertEquals(0, mode.getFrameRate(), 0);
+    }
+
+    @Test
+    public void chooseTheFastestModeIfNoneIsFastEnough ()
+    {
+        //noinspection SpellCheckingInspection
+        V4l2.Mode mode = V4l2.chooseMode(V4l2.parseV4l2CtlFormats(
+                "\t[0]: 'YUYV' (YUYV 4:2:2)\n" +
+                "\t\tSize: Discrete 1920x1080\n" +
+                "\t\t\tInterval: Discrete 0.200s (5.000 fps)\n" +
+                "\t\tSize: Discrete 640x480\n" +
+                "\t\t\tInterval: Discrete 0.067s (15.000 fps)\n"));
+        assertNotNull(mode);
+        assertEquals(640, mode.getWidth());
+        assertEquals(15, mode.getFrameRate(), 0);
+    }
+
+    @Test
+    public void chooseMjpegAtTheBiggestSize ()
+    {
+        V4l2.Mode mode = V4l2.chooseMode(V4l2.parseFormats(CAMERA_FORMATS));
+        assertNotNull(mode);
+        assertEquals("mjpeg", mode.getInputFormat());
+        assertEquals(1280, mode.getWidth());
+        assertEquals(720, mode.getHeight());
+    }
+
+    @Test
+    public void chooseYuyvOverOtherRawFormats ()
+    {
+        V4l2.Mode mode = V4l2.chooseMode(V4l2.parseFormats(CARD_FORMATS));
+        assertNotNull(mode);
+        //noinspection SpellCheckingInspection
+        assertEquals("yuyv422", mode.getInputFormat());
+        assertEquals(1920, mode.getWidth());
+        assertEquals(1080, mode.getHeight());
+    }
+
+    @Test
+    public void chooseABiggerFastRawSizeOverMjpeg ()
+    {
+        // without the rates the raw sizes bigger than the mjpeg ones would be taken for slow
+        //noinspection SpellCheckingInspection
+        V4l2.Mode mode = V4l2.chooseMode(V4l2.parseV4l2CtlFormats(
+                "\t[0]: 'MJPG' (Motion-JPEG, compressed)\n" +
+                "\t\tSize: Discrete 640x480\n" +
+                "\t\t\tInterval: Discrete 0.033s (30.000 fps)\n" +
+                "\t[1]: 'NV12' (Y/CbCr 4:2:0)\n" +
+                "\t\tSize: Discrete 1280x720\n" +
+                "\t\t\tInterval: Discrete 0.033s (30.000 fps)\n" +
+                "\t\tSize: Discrete 3840x2160\n" +
+                "\t\t\tInterval: Discrete 0.033s (30.000 fps)\n"));
+        assertNotNull(mode);
+        //noinspection SpellCheckingInspection
+        assertEquals("nv12", mode.getInputFormat());
+        assertEquals(1280, mode.getWidth());
+        assertEquals(720, mode.getHeight());
+    }
+
+    @Test
+    public void chooseNothingWithoutUsableFormats ()
+    {
+        List<V4l2.Format> formats = new ArrayList<>();
+        assertNull(V4l2.chooseMode(formats));
+        //noinspection SpellCheckingInspection
+        formats = V4l2.parseFormats(
+                "[video4linux2,v4l2 @ 0x5636f8a3d040] Compressed:        h264 :                H.264 : 1920x1080\n" +
+                "[video4linux2,v4l2 @ 0x5636f8a3d040] Raw       : Unsupported :          Y/UV 4:2:0 : 1920x1080\n" +
+                "[video4linux2,v4l2 @ 0x5636f8a3d040] Raw       :     yuyv422 :           YUYV 4:2:2 : 3840x2160\n");
+        assertEquals(3, formats.size());
+        assertNull(V4l2.chooseMode(formats));
+    }
+}